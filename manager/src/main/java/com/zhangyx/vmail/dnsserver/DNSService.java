@@ -21,6 +21,7 @@ package com.zhangyx.vmail.dnsserver;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * DNS解析抽象接口，
@@ -89,4 +90,44 @@ public interface DNSService {
      */
     String getHostName(InetAddress addr);
 
+
+    /**
+     * {@link #findMXRecords(String)}的异步版本，不阻塞调用线程
+     *
+     * @param hostname 需要查找的domain
+     * @return 处理服务器的不可修改列表，临时问题时以{@link TemporaryResolutionException}失败
+     */
+    CompletableFuture<Collection<String>> findMXRecordsAsync(String hostname);
+
+    /**
+     * {@link #findTXTRecords(String)}的异步版本
+     *
+     * @param hostname 需要检查的domain
+     * @return txt记录的列表
+     */
+    CompletableFuture<Collection<String>> findTXTRecordsAsync(String hostname);
+
+    /**
+     * {@link #getAllByName(String)}的异步版本
+     *
+     * @param host
+     * @return InetAddress列表，无法解析时以{@link UnknownHostException}失败
+     */
+    CompletableFuture<Collection<InetAddress>> getAllByNameAsync(String host);
+
+    /**
+     * {@link #getByName(String)}的异步版本
+     *
+     * @param host
+     * @return InetAddress，无法解析时以{@link UnknownHostException}失败
+     */
+    CompletableFuture<InetAddress> getByNameAsync(String host);
+
+    /**
+     * {@link #getHostName(InetAddress)}的异步版本
+     *
+     * @param addr
+     * @return 已解析的主机名，没有PTR记录时为ip地址
+     */
+    CompletableFuture<String> getHostNameAsync(InetAddress addr);
 }
@@ -0,0 +1,335 @@
+package com.zhangyx.vmail.dnsserver.impl;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.SimpleResolver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 基于netty UDP channel的非阻塞DNS resolver，发送和接收dnsjava的{@link Message}
+ * <p>
+ * 与{@link org.xbill.DNS.ExtendedResolver}一样按顺序尝试服务器，超时后换下一个，每个服务器最多尝试retries次。
+ * 每个查询绑定一个新的临时端口，ID随机，响应的端口、ID匹配并且来自该查询发往过的服务器才接受，查询结束后关闭端口。
+ * 被截断(TC)的响应改用TCP在单独的线程中重新查询，每个查询最多一次
+ * <p>
+ * 使用的event loop可以在运行中切换，比如和服务器共享worker线程，进行中的查询在原来的event loop中完成
+ */
+public class AsyncResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncResolver.class);
+
+    private final List<InetSocketAddress> servers;
+    private final long timeoutMillis;
+    private final int maxAttempts;
+    // 当前使用的event loop
+    private volatile EventLoopGroup group;
+    // 没有共享的event loop时使用，第一次需要时创建，stop时关闭
+    private EventLoopGroup ownGroup;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+    // 每个查询使用单独的临时端口，降低伪造响应的成功率
+    private volatile Bootstrap bootstrap;
+    private final ResponseHandler responseHandler = new ResponseHandler();
+    // TCP重试使用阻塞的dnsjava resolver
+    private final ExecutorService tcpExecutor = Executors.newCachedThreadPool(new DefaultThreadFactory("dns-tcp", true));
+
+    /**
+     * @param servers       DNS服务器地址
+     * @param group         共享的event loop，为null时创建一个单线程的event loop
+     * @param timeoutMillis 每次尝试的超时时间
+     * @param retries       每个服务器的尝试次数
+     */
+    public AsyncResolver(List<InetSocketAddress> servers, EventLoopGroup group, long timeoutMillis, int retries) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("At least one DNS server is required");
+        }
+        this.servers = new ArrayList<InetSocketAddress>(servers);
+        this.timeoutMillis = timeoutMillis;
+        this.maxAttempts = Math.max(1, retries) * servers.size();
+        this.group = group == null ? ownGroup() : group;
+    }
+
+    private synchronized EventLoopGroup ownGroup() {
+        if (ownGroup == null) {
+            ownGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("dns", true));
+        }
+        return ownGroup;
+    }
+
+    public synchronized void start() {
+        bootstrap = newBootstrap(group);
+    }
+
+    private Bootstrap newBootstrap(EventLoopGroup group) {
+        return new Bootstrap()
+                .group(group)
+                .channel(group instanceof EpollEventLoopGroup ? EpollDatagramChannel.class : NioDatagramChannel.class)
+                .handler(responseHandler);
+    }
+
+    /**
+     * 之后的查询改用group，进行中的查询不受影响。共享的event loop关闭前需要切换回来
+     *
+     * @param group 共享的event loop，为null时使用resolver自己的event loop
+     */
+    public synchronized void setEventLoopGroup(EventLoopGroup group) {
+        this.group = group == null ? ownGroup() : group;
+        if (bootstrap != null) {
+            bootstrap = newBootstrap(this.group);
+        }
+    }
+
+    public synchronized void stop() {
+        bootstrap = null;
+        for (Pending p : pending.values()) {
+            p.fail(new IOException("DNS resolver stopped"));
+        }
+        pending.clear();
+        tcpExecutor.shutdownNow();
+        if (ownGroup != null) {
+            ownGroup.shutdownGracefully();
+            ownGroup = null;
+        }
+    }
+
+    /**
+     * 当前线程是否是resolver使用的event loop，在这些线程中不能同步等待查询结果
+     *
+     * @return inEventLoop
+     */
+    public boolean inEventLoop() {
+        EventLoopGroup own;
+        synchronized (this) {
+            own = ownGroup;
+        }
+        return inEventLoop(group) || own != null && inEventLoop(own);
+    }
+
+    private static boolean inEventLoop(EventLoopGroup group) {
+        for (EventExecutor executor : group) {
+            if (executor.inEventLoop()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 发送查询，ID会被替换成随机值
+     *
+     * @param query
+     * @return response，所有服务器都超时时以{@link SocketTimeoutException}失败
+     */
+    public CompletableFuture<Message> send(Message query) {
+        Bootstrap b = bootstrap;
+        if (b == null) {
+            CompletableFuture<Message> future = new CompletableFuture<Message>();
+            future.completeExceptionally(new IOException("DNS resolver stopped"));
+            return future;
+        }
+        final Pending p = new Pending((Message) query.clone());
+        int id;
+        do {
+            id = random.nextInt(0x10000);
+        } while (pending.putIfAbsent(id, p) != null);
+        p.id = id;
+        p.query.getHeader().setID(id);
+        p.wire = p.query.toWire();
+        b.bind(0).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture f) throws Exception {
+                if (!f.isSuccess()) {
+                    p.fail(f.cause());
+                    return;
+                }
+                p.channel = f.channel();
+                // 绑定期间resolver已经停止
+                if (p.future.isDone()) {
+                    f.channel().close();
+                    return;
+                }
+                p.attempt();
+            }
+        });
+        return p.future;
+    }
+
+    /**
+     * 一个等待响应的查询
+     */
+    private final class Pending implements Runnable {
+
+        private final Message query;
+        private final CompletableFuture<Message> future = new CompletableFuture<Message>();
+        private int id;
+        private byte[] wire;
+        // 绑定完成前为null，同一个查询的所有尝试使用同一个端口
+        private volatile Channel channel;
+        private volatile int attempts;
+        private volatile ScheduledFuture<?> timeout;
+        // 发送过查询的服务器，只接受来自这些服务器的响应
+        private final Set<InetSocketAddress> tried = Collections.newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
+        // 迟到的TC响应不会再次触发TCP重试
+        private final AtomicBoolean tcpRetried = new AtomicBoolean();
+
+        Pending(Message query) {
+            this.query = query;
+        }
+
+        void attempt() {
+            final Channel channel = this.channel;
+            final InetSocketAddress server = servers.get(attempts++ % servers.size());
+            tried.add(server);
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    timeout = channel.eventLoop().schedule(Pending.this, timeoutMillis, TimeUnit.MILLISECONDS);
+                    channel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(wire), server)).addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture f) throws Exception {
+                            if (!f.isSuccess()) {
+                                logger.debug("Unable to send DNS query to " + server, f.cause());
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        // 超时，换下一个服务器
+        @Override
+        public void run() {
+            if (future.isDone()) {
+                return;
+            }
+            if (attempts >= maxAttempts) {
+                fail(new SocketTimeoutException("DNS query timed out"));
+            } else {
+                attempt();
+            }
+        }
+
+        void complete(Message response) {
+            cancelTimeout();
+            pending.remove(id, this);
+            future.complete(response);
+            closeChannel();
+        }
+
+        void fail(Throwable cause) {
+            cancelTimeout();
+            pending.remove(id, this);
+            future.completeExceptionally(cause);
+            closeChannel();
+        }
+
+        private void closeChannel() {
+            Channel c = channel;
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        private void cancelTimeout() {
+            ScheduledFuture<?> t = timeout;
+            if (t != null) {
+                t.cancel(false);
+            }
+        }
+    }
+
+    // 所有查询的channel共用一个实例
+    @ChannelHandler.Sharable
+    private final class ResponseHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception {
+            ByteBuf content = packet.content();
+            if (content.readableBytes() < 12) {
+                return;
+            }
+            int id = content.getUnsignedShort(content.readerIndex());
+            final Pending p = pending.get(id);
+            // 来源和ID都必须匹配，之前尝试过的服务器迟到的响应同样接受
+            if (p == null || p.channel != ctx.channel() || !p.tried.contains(packet.sender())) {
+                return;
+            }
+            Message response;
+            try {
+                response = new Message(ByteBufUtil.getBytes(content));
+            } catch (IOException e) {
+                logger.debug("Discard malformed DNS response from " + packet.sender(), e);
+                return;
+            }
+            if (response.getHeader().getFlag(Flags.TC)) {
+                tcpRetry(p, packet.sender());
+                return;
+            }
+            p.complete(response);
+        }
+    }
+
+    // 截断的响应通过TCP重新查询
+    private void tcpRetry(final Pending p, final InetSocketAddress server) {
+        if (!p.tcpRetried.compareAndSet(false, true)) {
+            return;
+        }
+        p.cancelTimeout();
+        try {
+            tcpExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SimpleResolver resolver = new SimpleResolver(server.getAddress().getHostAddress());
+                        resolver.setPort(server.getPort());
+                        resolver.setTCP(true);
+                        resolver.setTimeout((int) TimeUnit.MILLISECONDS.toSeconds(Math.max(1000, timeoutMillis)));
+                        p.complete(resolver.send(p.query));
+                    } catch (IOException e) {
+                        p.fail(e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            p.fail(e);
+        }
+    }
+}
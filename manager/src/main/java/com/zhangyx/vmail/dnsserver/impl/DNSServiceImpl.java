@@ -19,11 +19,13 @@
 package com.zhangyx.vmail.dnsserver.impl;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.RateLimiter;
 
 import com.zhangyx.vmail.configure.ConfigurationProvider;
 import com.zhangyx.vmail.dnsserver.DNSService;
 import com.zhangyx.vmail.dnsserver.TemporaryResolutionException;
 import com.zhangyx.vmail.leftcycle.Configurable;
+import io.netty.channel.EventLoopGroup;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.slf4j.Logger;
@@ -33,12 +35,32 @@ import org.springframework.stereotype.Service;
 import org.xbill.DNS.*;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * 提供dns查询服务
+ * <p>
+ * 查询通过{@link AsyncResolver}异步发出，使用与{@link ExtendedResolver}相同的服务器、search path和credibility规则，
+ * 结果同样写入dnsjava的{@link Cache}。同步方法只是等待异步结果；在resolver的event loop中调用同步方法时
+ * 退回到阻塞的{@link Lookup}，避免死锁
+ * <p>
+ * MX、A、TXT和PTR的最终结果另外缓存在{@link DnsResultCache}中，按上游响应中最小的TTL过期，命中时不再查询和转换记录；
+ * 由{@link Cache}中的记录得到的结果不知道剩余的TTL，不进入这个缓存。
+ * 没有记录的结果按RFC 2308用SOA的TTL缓存；TRY_AGAIN的查询在短时间内直接失败，不再发往上游。
+ * 经常访问的结果在TTL过去一定比例后由命中的调用在后台重新查询，过期前就被新的结果替换，刷新的速率有上限
  */
 @Service("dnsService")
 public class DNSServiceImpl implements DNSService, Configurable {
@@ -52,6 +74,26 @@ public class DNSServiceImpl implements DNSService, Configurable {
      */
     protected Resolver resolver;
 
+    /**
+     * 非阻塞resolver，使用与{@link #resolver}相同的服务器
+     */
+    protected AsyncResolver asyncResolver;
+
+    /**
+     * 异步resolver使用的event loop，可以和服务器共享，未设置时resolver自己创建
+     */
+    private EventLoopGroup eventLoopGroup;
+
+    /**
+     * 每次尝试的超时时间，单位毫秒
+     */
+    private long timeout = 5000;
+
+    /**
+     * 每个服务器的尝试次数
+     */
+    private int retries = 3;
+
     /**
      * A TTL cache of results received from the DNS server. This is a reference
      * to a third party library object.
@@ -63,6 +105,48 @@ public class DNSServiceImpl implements DNSService, Configurable {
      */
     private int maxCacheSize = 50000;
 
+    /**
+     * 最终结果的缓存，容量同样是maxCacheSize，满时淘汰访问频率低的结果
+     */
+    private DnsResultCache results;
+
+    /**
+     * 否定缓存的最大TTL，单位秒
+     */
+    private long maxNegativeTtl = 3600;
+
+    /**
+     * TRY_AGAIN之后的back-off时间，单位秒，0表示不back-off
+     */
+    private long tryAgainTtl = 5;
+
+    /**
+     * 最近TRY_AGAIN过的查询
+     */
+    private DnsResultCache backoff;
+
+    // 结果缓存中表示没有记录的值
+    private static final Object NEGATIVE = new Object();
+
+    /**
+     * TTL过去这个比例后开始提前刷新，0表示不刷新
+     */
+    private double prefetchRatio = 0.8;
+
+    /**
+     * 访问次数达到这个值的结果才提前刷新
+     */
+    private int prefetchMinHits = 3;
+
+    /**
+     * 每秒最多发起的提前刷新数
+     */
+    private double prefetchRate = 20;
+
+    private RateLimiter prefetchLimiter;
+
+    private final LongAdder prefetches = new LongAdder();
+
     /**
      * Whether the DNS response is required to be authoritative
      */
@@ -97,6 +181,21 @@ public class DNSServiceImpl implements DNSService, Configurable {
 
     private Logger logger = LoggerFactory.getLogger(DNSServiceImpl.class);
 
+    /**
+     * 正在进行的查询，相同(name, type)的调用共享同一个结果
+     */
+    private final ConcurrentHashMap<LookupKey, CompletableFuture<Outcome>> inFlight = new ConcurrentHashMap<LookupKey, CompletableFuture<Outcome>>();
+
+    private final LongAdder lookups = new LongAdder();
+
+    private final LongAdder coalescedLookups = new LongAdder();
+
+    // 与Lookup相同的CNAME/DNAME跟随次数上限
+    private static final int MAX_ITERATIONS = 16;
+
+    // EDNS0通告的UDP包大小，减少TC之后改用TCP的次数
+    private static final int EDNS_PAYLOAD_SIZE = 1232;
+
     @Override
     public void configure(HierarchicalConfiguration configuration) throws ConfigurationException {
 
@@ -153,6 +252,41 @@ public class DNSServiceImpl implements DNSService, Configurable {
         dnsCredibility = authoritative ? Credibility.AUTH_ANSWER : Credibility.NONAUTH_ANSWER;
 
         maxCacheSize = configuration.getInt("maxcachesize", maxCacheSize);
+
+        maxNegativeTtl = configuration.getLong("maxnegativettl", maxNegativeTtl);
+        tryAgainTtl = configuration.getLong("tryagainttl", tryAgainTtl);
+        if (maxNegativeTtl < 0 || tryAgainTtl < 0) {
+            throw new ConfigurationException("DNS maxnegativettl and tryagainttl must not be negative");
+        }
+
+        prefetchRatio = configuration.getDouble("prefetchratio", prefetchRatio);
+        prefetchMinHits = configuration.getInt("prefetchminhits", prefetchMinHits);
+        prefetchRate = configuration.getDouble("prefetchrate", prefetchRate);
+        if (prefetchRatio < 0 || prefetchRatio >= 1) {
+            throw new ConfigurationException("DNS prefetchratio must be in [0, 1)");
+        }
+        if (prefetchRate <= 0) {
+            throw new ConfigurationException("DNS prefetchrate must be greater than zero");
+        }
+
+        timeout = configuration.getLong("timeout", timeout);
+        retries = configuration.getInt("retries", retries);
+        if (timeout <= 0 || retries <= 0) {
+            throw new ConfigurationException("DNS timeout and retries must be greater than zero");
+        }
+    }
+
+    /**
+     * 使用服务器的event loop执行DNS查询，init之前或之后都可以设置。
+     * 服务器的worker线程在服务器启动时才创建，启动后传入服务器的worker group，停止前传入null切换回自己的event loop
+     *
+     * @param eventLoopGroup
+     */
+    public void setEventLoopGroup(EventLoopGroup eventLoopGroup) {
+        this.eventLoopGroup = eventLoopGroup;
+        if (asyncResolver != null) {
+            asyncResolver.setEventLoopGroup(eventLoopGroup);
+        }
     }
 
     @PostConstruct
@@ -180,15 +314,33 @@ public class DNSServiceImpl implements DNSService, Configurable {
             }
         }
 
+        // 服务器可以写成host:port，方便指向本地的测试DNS服务器
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(serversArray.length);
+        Resolver[] resolvers = new Resolver[serversArray.length];
         try {
-            resolver = new ExtendedResolver(serversArray);
+            for (int i = 0; i < serversArray.length; i++) {
+                InetSocketAddress address = parseServer(serversArray[i]);
+                SimpleResolver simpleResolver = new SimpleResolver(address.getAddress().getHostAddress());
+                simpleResolver.setPort(address.getPort());
+                resolvers[i] = simpleResolver;
+                addresses.add(address);
+            }
+            resolver = new ExtendedResolver(resolvers);
         } catch (UnknownHostException uhe) {
             logger.error("DNS service could not be initialized.  The DNS servers specified are not recognized hosts.", uhe);
             throw uhe;
         }
+        resolver.setTimeout((int) Math.max(1, timeout / 1000));
+
+        asyncResolver = new AsyncResolver(addresses, eventLoopGroup, timeout, retries);
+        asyncResolver.start();
 
         cache = new Cache(DClass.IN);
         cache.setMaxEntries(maxCacheSize);
+        cache.setMaxNCache((int) Math.min(maxNegativeTtl, Integer.MAX_VALUE));
+        results = new DnsResultCache(maxCacheSize);
+        backoff = new DnsResultCache(maxCacheSize);
+        prefetchLimiter = RateLimiter.create(prefetchRate);
 
         if (setAsDNSJavaDefault) {
             Lookup.setDefaultResolver(resolver);
@@ -209,6 +361,31 @@ public class DNSServiceImpl implements DNSService, Configurable {
         logger.debug("DNSService ...init end");
     }
 
+    @PreDestroy
+    public void destroy() {
+        if (asyncResolver != null) {
+            asyncResolver.stop();
+            asyncResolver = null;
+        }
+    }
+
+    // host、host:port、[ipv6]:port，不带端口时使用53
+    private static InetSocketAddress parseServer(String server) throws UnknownHostException {
+        String host = server;
+        int port = SimpleResolver.DEFAULT_PORT;
+        if (server.startsWith("[")) {
+            int end = server.indexOf(']');
+            host = server.substring(1, end);
+            if (end + 1 < server.length() && server.charAt(end + 1) == ':') {
+                port = Integer.parseInt(server.substring(end + 2));
+            }
+        } else if (server.indexOf(':') > 0 && server.indexOf(':') == server.lastIndexOf(':')) {
+            host = server.substring(0, server.indexOf(':'));
+            port = Integer.parseInt(server.substring(server.indexOf(':') + 1));
+        }
+        return new InetSocketAddress(InetAddress.getByName(host), port);
+    }
+
     /**
      * Return the list of DNS servers in use by this service
      *
@@ -219,18 +396,16 @@ public class DNSServiceImpl implements DNSService, Configurable {
     }
 
     /**
-     * Return a prioritized unmodifiable list of MX records obtained from the
-     * server.
+     * Group MX targets by priority, lowest priority first. The groups are
+     * cached, the order inside a group is shuffled on every call by
+     * {@link #shuffle(List)}.
      *
-     * @param hostname domain name to look up
-     * @return a list of MX records corresponding to this mail domain
-     * @throws TemporaryResolutionException get thrown on temporary problems
+     * @param answers MX records, may be null
+     * @return unmodifiable groups of MX targets with the same priority
      */
-    private List<String> findMXRecordsRaw(String hostname) throws TemporaryResolutionException {
-        Record answers[] = lookup(hostname, Type.MX, "MX");
-        List<String> servers = new ArrayList<String>();
+    private List<List<String>> groupByPriority(Record[] answers) {
         if (answers == null) {
-            return servers;
+            return Collections.emptyList();
         }
 
         MXRecord[] mxAnswers = new MXRecord[answers.length];
@@ -242,69 +417,102 @@ public class DNSServiceImpl implements DNSService, Configurable {
         // are in sequence
         Arrays.sort(mxAnswers, mxComparator);
 
-        // now add the mx records to the right list and take care of shuffle
-        // mx records with the same priority
+        ImmutableList.Builder<List<String>> groups = ImmutableList.builder();
+        ImmutableList.Builder<String> samePrio = null;
         int currentPrio = -1;
-        List<String> samePrio = new ArrayList<String>();
-        for (int i = 0; i < mxAnswers.length; i++) {
-            boolean same = false;
-            boolean lastItem = i + 1 == mxAnswers.length;
-            MXRecord mx = mxAnswers[i];
-            if (i == 0) {
+        for (MXRecord mx : mxAnswers) {
+            if (samePrio == null || mx.getPriority() != currentPrio) {
+                if (samePrio != null) {
+                    groups.add(samePrio.build());
+                }
+                samePrio = ImmutableList.builder();
                 currentPrio = mx.getPriority();
-            } else {
-                same = currentPrio == mx.getPriority();
             }
-
             String mxRecord = mx.getTarget().toString();
-            if (same) {
-                samePrio.add(mxRecord);
-            } else {
-                // shuffle entries with same prio
-                // JAMES-913
-                Collections.shuffle(samePrio);
-                servers.addAll(samePrio);
-
-                samePrio.clear();
-                samePrio.add(mxRecord);
-
-            }
+            samePrio.add(mxRecord);
+            logger.debug("Found MX record " + mxRecord);
+        }
+        if (samePrio != null) {
+            groups.add(samePrio.build());
+        }
+        return groups.build();
+    }
 
-            if (lastItem) {
-                // shuffle entries with same prio
-                // JAMES-913
-                Collections.shuffle(samePrio);
-                servers.addAll(samePrio);
+    /**
+     * Return a prioritized list of MX targets, entries with the same priority
+     * are shuffled (JAMES-913)
+     *
+     * @param groups MX targets grouped by priority
+     * @return a list of MX targets
+     */
+    private static List<String> shuffle(List<List<String>> groups) {
+        List<String> servers = new ArrayList<String>();
+        for (List<String> samePrio : groups) {
+            if (samePrio.size() == 1) {
+                servers.add(samePrio.get(0));
+            } else {
+                List<String> shuffled = new ArrayList<String>(samePrio);
+                Collections.shuffle(shuffled);
+                servers.addAll(shuffled);
             }
-            logger.debug("Found MX record " + mxRecord);
         }
         return servers;
     }
 
     @Override
     public Collection<String> findMXRecords(String hostname) throws TemporaryResolutionException {
-        List<String> servers = new ArrayList<String>();
-        try {
-            servers = findMXRecordsRaw(hostname);
-            return Collections.unmodifiableCollection(servers);
-        } finally {
-            // If we found no results, we'll add the original domain name if
-            // it's a valid DNS entry
-            if (servers.size() == 0) {
-                StringBuffer logBuffer = new StringBuffer(128).append("Couldn't resolve MX records for domain ").append(hostname).append(".");
-                logger.info(logBuffer.toString());
-                try {
-                    getByName(hostname);
-                    servers.add(hostname);
-                } catch (UnknownHostException uhe) {
+        return await(findMXRecords(hostname, mustBlock()), TemporaryResolutionException.class);
+    }
+
+    @Override
+    public CompletableFuture<Collection<String>> findMXRecordsAsync(String hostname) {
+        return findMXRecords(hostname, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Collection<String>> findMXRecords(final String hostname, final boolean blocking) {
+        Object cached = cached(hostname, Type.MX);
+        if (cached == NEGATIVE) {
+            return hostAsMX(hostname, blocking);
+        }
+        if (cached != null) {
+            return CompletableFuture.completedFuture(Collections.unmodifiableCollection(shuffle((List<List<String>>) cached)));
+        }
+        return resolveMXRecords(hostname, blocking, false);
+    }
+
+    private CompletableFuture<Collection<String>> resolveMXRecords(final String hostname, final boolean blocking, boolean refresh) {
+        return lookupOutcome(hostname, Type.MX, blocking, refresh).thenCompose(new Function<Outcome, CompletionStage<Collection<String>>>() {
+            @Override
+            public CompletionStage<Collection<String>> apply(Outcome outcome) {
+                List<List<String>> groups = groupByPriority(outcome.records);
+                if (!groups.isEmpty()) {
+                    cache(hostname, Type.MX, groups, outcome);
+                    return CompletableFuture.completedFuture(Collections.unmodifiableCollection(shuffle(groups)));
+                }
+                cacheNegative(hostname, Type.MX, outcome);
+                return hostAsMX(hostname, blocking);
+            }
+        });
+    }
+
+    // If we found no results, we'll add the original domain name if
+    // it's a valid DNS entry
+    private CompletableFuture<Collection<String>> hostAsMX(final String hostname, boolean blocking) {
+        logger.info("Couldn't resolve MX records for domain " + hostname + ".");
+        return getByName(hostname, blocking).handle(new BiFunction<InetAddress, Throwable, Collection<String>>() {
+            @Override
+            public Collection<String> apply(InetAddress address, Throwable error) {
+                if (error != null) {
                     // The original domain name is not a valid host,
                     // so we can't add it to the server list. In this
                     // case we return an empty list of servers
-                    logBuffer = new StringBuffer(128).append("Couldn't resolve IP address for host ").append(hostname).append(".");
-                    logger.error(logBuffer.toString());
+                    logger.error("Couldn't resolve IP address for host " + hostname + ".");
+                    return Collections.emptyList();
                 }
+                return Collections.singletonList(hostname);
             }
-        }
+        });
     }
 
     /**
@@ -317,6 +525,308 @@ public class DNSServiceImpl implements DNSService, Configurable {
      * @param typeDesc the description of the record type, for debugging purpose
      */
     protected Record[] lookup(String namestr, int type, String typeDesc) throws TemporaryResolutionException {
+        return await(lookup(namestr, type, typeDesc, mustBlock()), TemporaryResolutionException.class);
+    }
+
+    protected Record[] lookupNoException(String namestr, int type, String typeDesc) {
+        try {
+            return lookup(namestr, type, typeDesc);
+        } catch (TemporaryResolutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 异步查询，没有记录时结果为null，临时问题时以{@link TemporaryResolutionException}失败
+     *
+     * @param namestr  the name of the host to be looked up
+     * @param type     the type of record desired
+     * @param typeDesc the description of the record type, for debugging purpose
+     * @param blocking 为true时在当前线程中使用阻塞的{@link Lookup}
+     * @return records
+     */
+    protected CompletableFuture<Record[]> lookup(String namestr, int type, String typeDesc, boolean blocking) {
+        return lookupOutcome(namestr, type, blocking, false).thenApply(new Function<Outcome, Record[]>() {
+            @Override
+            public Record[] apply(Outcome outcome) {
+                return outcome.records;
+            }
+        });
+    }
+
+    // 没有记录时outcome带有否定缓存的TTL；back-off期间的查询直接以TemporaryResolutionException失败。
+    // refresh为true时不使用dnsjava的Cache中的记录，直接向上游查询
+    private CompletableFuture<Outcome> lookupOutcome(String namestr, int type, boolean blocking, boolean refresh) {
+        final LookupKey key = new LookupKey(namestr, type);
+        if (backoff.get(key) != null) {
+            return failed(new TemporaryResolutionException("DNSService is temporary not reachable"));
+        }
+        if (blocking) {
+            try {
+                Record[] records = blockingLookup(namestr, type);
+                // Lookup不返回SOA，这时的否定结果只缓存在dnsjava的Cache中
+                return CompletableFuture.completedFuture(records != null ? new Outcome(records, false, 0) : Outcome.NOT_FOUND);
+            } catch (TemporaryResolutionException e) {
+                backOff(key);
+                return failed(e);
+            }
+        }
+        // 相同的查询正在进行时等待它的结果，不再发出新的查询
+        CompletableFuture<Outcome> existing = inFlight.get(key);
+        if (existing == null) {
+            final CompletableFuture<Outcome> promise = new CompletableFuture<Outcome>();
+            existing = inFlight.putIfAbsent(key, promise);
+            if (existing == null) {
+                lookups.increment();
+                resolve(namestr, type, refresh).whenComplete(new BiConsumer<Outcome, Throwable>() {
+                    @Override
+                    public void accept(Outcome outcome, Throwable error) {
+                        // 先移除再完成，之后的调用会发起新的查询
+                        inFlight.remove(key, promise);
+                        if (error != null) {
+                            Throwable cause = unwrap(error);
+                            if (cause instanceof TemporaryResolutionException) {
+                                backOff(key);
+                            }
+                            promise.completeExceptionally(cause);
+                        } else {
+                            promise.complete(outcome);
+                        }
+                    }
+                });
+                return promise;
+            }
+        }
+        coalescedLookups.increment();
+        return existing;
+    }
+
+    // 与lookupNoException一样把临时错误当作没有记录，但这种结果不会进入否定缓存
+    private CompletableFuture<Outcome> lookupOutcomeNoException(String namestr, int type, boolean blocking, boolean refresh) {
+        return lookupOutcome(namestr, type, blocking, refresh).handle(new BiFunction<Outcome, Throwable, Outcome>() {
+            @Override
+            public Outcome apply(Outcome outcome, Throwable error) {
+                if (error == null) {
+                    return outcome;
+                }
+                Throwable cause = unwrap(error);
+                if (cause instanceof TemporaryResolutionException) {
+                    return Outcome.TRY_AGAIN;
+                }
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+            }
+        });
+    }
+
+    private void backOff(LookupKey key) {
+        backoff.put(key, Boolean.TRUE, tryAgainTtl);
+    }
+
+    private CompletableFuture<Outcome> resolve(String namestr, int type, boolean refresh) {
+        Name name;
+        try {
+            name = Name.fromString(namestr);
+        } catch (TextParseException tpe) {
+            // TODO: Figure out how to handle this correctly.
+            logger.error("Couldn't parse name " + namestr, tpe);
+            return CompletableFuture.completedFuture(Outcome.NOT_FOUND);
+        }
+        return resolveCandidates(candidates(name), 0, type, refresh, false, Long.MAX_VALUE);
+    }
+
+    /**
+     * 发起的异步查询数
+     *
+     * @return count
+     */
+    public long getLookupCount() {
+        return lookups.sum();
+    }
+
+    /**
+     * 合并到正在进行的相同查询、因此没有发出的查询数
+     *
+     * @return count
+     */
+    public long getCoalescedLookupCount() {
+        return coalescedLookups.sum();
+    }
+
+    /**
+     * 正在进行的查询数
+     *
+     * @return count
+     */
+    public int getInFlightLookupCount() {
+        return inFlight.size();
+    }
+
+    // 结果缓存中未过期的值，可能是NEGATIVE，其他值的类型由查询类型决定。
+    // 经常访问并且快要过期的值在返回的同时触发后台刷新，NEGATIVE不刷新
+    private Object cached(String name, int type) {
+        DnsResultCache.Entry entry = results.getEntry(new LookupKey(name, type));
+        if (entry == null) {
+            return null;
+        }
+        if (prefetchRatio > 0 && asyncResolver != null && entry.value != NEGATIVE && entry.claimRefresh(prefetchRatio, prefetchMinHits)) {
+            prefetch(name, type, entry);
+        }
+        return entry.value;
+    }
+
+    // 在后台重新查询，新的结果通过cache()替换原来的条目；刷新失败时原来的条目照常过期。
+    // 每条路径最后都释放条目的刷新权，没有被替换的条目之后还可以再次刷新
+    private void prefetch(final String name, int type, final DnsResultCache.Entry entry) {
+        if (!prefetchLimiter.tryAcquire()) {
+            entry.cancelRefresh();
+            return;
+        }
+        CompletableFuture<?> refresh;
+        switch (type) {
+            case Type.MX:
+                refresh = resolveMXRecords(name, false, true);
+                break;
+            case Type.A:
+                refresh = resolveAddresses(name, false, true, new UnknownHostException(name));
+                break;
+            case Type.TXT:
+                refresh = resolveTXTRecords(name, false, true);
+                break;
+            case Type.PTR:
+                refresh = resolveHostName(name, false, true);
+                break;
+            default:
+                entry.cancelRefresh();
+                return;
+        }
+        prefetches.increment();
+        refresh.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object result, Throwable error) {
+                entry.cancelRefresh();
+                if (error != null) {
+                    logger.debug("Unable to prefetch " + name, unwrap(error));
+                }
+            }
+        });
+    }
+
+    // 按outcome的TTL缓存结果，来自dnsjava的Cache的结果TTL为0，不缓存
+    private void cache(String name, int type, Object value, Outcome outcome) {
+        results.put(new LookupKey(name, type), value, outcome.ttl);
+    }
+
+    // 按SOA得到的TTL缓存没有记录的结果，TRY_AGAIN和不知道TTL的结果不缓存
+    private void cacheNegative(String name, int type, Outcome outcome) {
+        if (outcome.records == null && !outcome.tryAgain) {
+            results.put(new LookupKey(name, type), NEGATIVE, outcome.ttl);
+        }
+    }
+
+    /**
+     * 结果缓存的命中次数
+     *
+     * @return count
+     */
+    public long getResultCacheHitCount() {
+        return results.getHitCount();
+    }
+
+    /**
+     * 结果缓存未命中或已过期的次数
+     *
+     * @return count
+     */
+    public long getResultCacheMissCount() {
+        return results.getMissCount();
+    }
+
+    /**
+     * 结果缓存满时淘汰的结果数
+     *
+     * @return count
+     */
+    public long getResultCacheEvictionCount() {
+        return results.getEvictionCount();
+    }
+
+    /**
+     * 结果缓存中的结果数
+     *
+     * @return size
+     */
+    public int getResultCacheSize() {
+        return results.size();
+    }
+
+    /**
+     * back-off期间没有发出、直接失败的查询数
+     *
+     * @return count
+     */
+    public long getBackedOffLookupCount() {
+        return backoff.getHitCount();
+    }
+
+    /**
+     * 发起的提前刷新数
+     *
+     * @return count
+     */
+    public long getPrefetchCount() {
+        return prefetches.sum();
+    }
+
+    /**
+     * 查询和结果缓存的key，名字不区分大小写
+     */
+    private static final class LookupKey {
+
+        private final String name;
+        private final int type;
+
+        LookupKey(String name, int type) {
+            this.name = name.toLowerCase(Locale.US);
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LookupKey)) {
+                return false;
+            }
+            LookupKey other = (LookupKey) o;
+            return type == other.type && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + type;
+        }
+    }
+
+    protected CompletableFuture<Record[]> lookupNoException(String namestr, int type, String typeDesc, boolean blocking) {
+        return lookup(namestr, type, typeDesc, blocking).handle(new BiFunction<Record[], Throwable, Record[]>() {
+            @Override
+            public Record[] apply(Record[] records, Throwable error) {
+                if (error == null) {
+                    return records;
+                }
+                Throwable cause = unwrap(error);
+                if (cause instanceof TemporaryResolutionException) {
+                    return null;
+                }
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+            }
+        });
+    }
+
+    // 在resolver自己的event loop中不能等待异步结果
+    private boolean mustBlock() {
+        return asyncResolver == null || asyncResolver.inEventLoop();
+    }
+
+    private Record[] blockingLookup(String namestr, int type) throws TemporaryResolutionException {
         // Name name = null;
         try {
             // name = Name.fromString(namestr, Name.root);
@@ -349,14 +859,223 @@ public class DNSServiceImpl implements DNSService, Configurable {
         }
     }
 
-    protected Record[] lookupNoException(String namestr, int type, String typeDesc) {
+    // 与Lookup相同的搜索顺序：绝对名字直接查询，否则label多于一个时先查询名字本身，再依次加上search path
+    private List<Name> candidates(Name name) {
+        if (name.isAbsolute()) {
+            return Collections.singletonList(name);
+        }
+        List<Name> names = new ArrayList<Name>();
+        if (searchPaths == null || searchPaths.length == 0) {
+            addCandidate(names, name, Name.root);
+            return names;
+        }
+        if (name.labels() > 1) {
+            addCandidate(names, name, Name.root);
+        }
+        for (Name searchPath : searchPaths) {
+            addCandidate(names, name, searchPath);
+        }
+        return names;
+    }
+
+    private static void addCandidate(List<Name> names, Name name, Name origin) {
         try {
-            return lookup(namestr, type, typeDesc);
-        } catch (TemporaryResolutionException e) {
+            names.add(Name.concatenate(name, origin));
+        } catch (NameTooLongException e) {
+            // 与Lookup一样跳过
+        }
+    }
+
+    // 依次尝试候选名字，全部没有结果时如果中间出现过临时错误则返回TRY_AGAIN，否则否定TTL取所有候选中最小的
+    private CompletableFuture<Outcome> resolveCandidates(final List<Name> names, final int index, final int type, final boolean refresh,
+                                                         final boolean tryAgain, final long negativeTtl) {
+        if (names.isEmpty()) {
+            return CompletableFuture.completedFuture(Outcome.NOT_FOUND);
+        }
+        Name name = names.get(index);
+        return resolve(name, type, 0, refresh).thenCompose(new Function<Outcome, CompletionStage<Outcome>>() {
+            @Override
+            public CompletionStage<Outcome> apply(Outcome outcome) {
+                if (outcome.records != null) {
+                    return CompletableFuture.completedFuture(outcome);
+                }
+                boolean again = tryAgain || outcome.tryAgain;
+                long ttl = Math.min(negativeTtl, outcome.ttl);
+                if (index + 1 < names.size()) {
+                    return resolveCandidates(names, index + 1, type, refresh, again, ttl);
+                }
+                if (again) {
+                    return failed(new TemporaryResolutionException("DNSService is temporary not reachable"));
+                }
+                return CompletableFuture.completedFuture(new Outcome(null, false, ttl));
+            }
+        });
+    }
+
+    /**
+     * 查询结果，ttl是可以缓存这个结果的秒数。dnsjava的Cache不提供剩余的TTL，
+     * 结果中任何一步来自Cache时ttl为0，只有完全由上游响应得到的结果才会被缓存
+     */
+    private static final class Outcome {
+
+        static final Outcome NOT_FOUND = new Outcome(null, false, 0);
+        static final Outcome TRY_AGAIN = new Outcome(null, true, 0);
+
+        final Record[] records;
+        final boolean tryAgain;
+        final long ttl;
+
+        Outcome(Record[] records, boolean tryAgain, long ttl) {
+            this.records = records;
+            this.tryAgain = tryAgain;
+            this.ttl = ttl;
+        }
+
+        Outcome limitTtl(long maxTtl) {
+            return ttl <= maxTtl ? this : new Outcome(records, tryAgain, maxTtl);
+        }
+    }
+
+    // 先查cache，没有结果时发送查询，响应写入cache后按同样的规则处理，CNAME和DNAME继续跟随。
+    // refresh为true时整条CNAME/DNAME链都跳过cache，直接向上游查询
+    private CompletableFuture<Outcome> resolve(Name name, int type, int iteration, boolean refresh) {
+        if (iteration > MAX_ITERATIONS) {
+            return CompletableFuture.completedFuture(Outcome.NOT_FOUND);
+        }
+        if (refresh) {
+            return query(name, type, iteration, true);
+        }
+        SetResponse sr = cache.lookupRecords(name, type, dnsCredibility);
+        // dnsjava的Cache按SOA的MINIMUM保留否定结果，可能超过RFC 2308的min(TTL, MINIMUM)，否定结果只使用结果缓存
+        if (sr.isNXDOMAIN() || sr.isNXRRSET()) {
+            return query(name, type, iteration, false);
+        }
+        // cache中的结果不知道剩余的TTL
+        CompletableFuture<Outcome> outcome = process(name, type, iteration, sr, null, false);
+        return outcome != null ? outcome : query(name, type, iteration, false);
+    }
+
+    private CompletableFuture<Outcome> query(final Name name, final int type, final int iteration, final boolean refresh) {
+        final Message query = Message.newQuery(Record.newRecord(name, type, DClass.IN));
+        query.addRecord(new OPTRecord(EDNS_PAYLOAD_SIZE, 0, 0), Section.ADDITIONAL);
+        return asyncResolver.send(query).handle(new BiFunction<Message, Throwable, CompletableFuture<Outcome>>() {
+            @Override
+            public CompletableFuture<Outcome> apply(Message response, Throwable error) {
+                if (error != null) {
+                    logger.debug("DNS query for " + name + " failed", unwrap(error));
+                    return CompletableFuture.completedFuture(Outcome.TRY_AGAIN);
+                }
+                int rcode = response.getHeader().getRcode();
+                if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
+                    return CompletableFuture.completedFuture(Outcome.TRY_AGAIN);
+                }
+                if (!query.getQuestion().equals(response.getQuestion())) {
+                    return CompletableFuture.completedFuture(Outcome.TRY_AGAIN);
+                }
+                SetResponse sr = cache.addMessage(response);
+                if (sr == null) {
+                    sr = cache.lookupRecords(name, type, dnsCredibility);
+                }
+                CompletableFuture<Outcome> outcome = process(name, type, iteration, sr, response, refresh);
+                // 响应既不是答案也不是NXDOMAIN/NODATA(比如referral)
+                return outcome != null ? outcome : CompletableFuture.completedFuture(Outcome.TRY_AGAIN);
+            }
+        }).thenCompose(Function.<CompletableFuture<Outcome>>identity());
+    }
+
+    // RFC 2308：否定结果的TTL取authority中SOA的TTL和MINIMUM中较小的一个，没有SOA时不缓存
+    private long negativeTtl(Message response) {
+        for (Record record : response.getSectionArray(Section.AUTHORITY)) {
+            if (record instanceof SOARecord) {
+                SOARecord soa = (SOARecord) record;
+                return Math.min(Math.min(soa.getTTL(), soa.getMinimum()), maxNegativeTtl);
+            }
+        }
+        return 0;
+    }
+
+    // answer中最小的TTL，没有answer时为Long.MAX_VALUE
+    private static long answerTtl(Message response) {
+        long ttl = Long.MAX_VALUE;
+        for (Record record : response.getSectionArray(Section.ANSWER)) {
+            ttl = Math.min(ttl, record.getTTL());
+        }
+        return ttl;
+    }
+
+    // 返回null表示cache中没有可用的结果。response是刚收到的上游响应，结果来自cache时为null，
+    // 这时结果的TTL为0；CNAME和DNAME跟随得到的结果TTL不超过这一步的TTL
+    private CompletableFuture<Outcome> process(Name name, int type, int iteration, SetResponse sr, Message response, boolean refresh) {
+        final long ttl = response == null ? 0 : answerTtl(response);
+        if (sr.isSuccessful()) {
+            List<Record> records = new ArrayList<Record>();
+            for (RRset rrset : sr.answers()) {
+                Iterator<?> it = rrset.rrs();
+                while (it.hasNext()) {
+                    records.add((Record) it.next());
+                }
+            }
+            return CompletableFuture.completedFuture(new Outcome(records.toArray(new Record[records.size()]), false, ttl));
+        }
+        if (sr.isNXDOMAIN() || sr.isNXRRSET()) {
+            return CompletableFuture.completedFuture(new Outcome(null, false, response == null ? 0 : Math.min(ttl, negativeTtl(response))));
+        }
+        Name target;
+        if (sr.isCNAME()) {
+            target = sr.getCNAME().getTarget();
+        } else if (sr.isDNAME()) {
+            try {
+                target = name.fromDNAME(sr.getDNAME());
+            } catch (NameTooLongException e) {
+                return CompletableFuture.completedFuture(Outcome.NOT_FOUND);
+            }
+        } else {
             return null;
         }
+        return resolve(target, type, iteration + 1, refresh).thenApply(new Function<Outcome, Outcome>() {
+            @Override
+            public Outcome apply(Outcome outcome) {
+                return outcome.limitTtl(ttl);
+            }
+        });
     }
 
+    private static <T> CompletableFuture<T> failed(Throwable cause) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    // 同步等待异步结果，声明的异常原样抛出
+    private static <T, E extends Exception> T await(CompletableFuture<T> future, Class<E> type) throws E {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for DNS lookup", e);
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e.getCause());
+            if (type.isInstance(cause)) {
+                throw type.cast(cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+
     /*
      * RFC 2821 section 5 requires that we sort the MX records by their
      * preference. Reminder for maintainers: the return value on a Comparator
@@ -401,91 +1120,182 @@ public class DNSServiceImpl implements DNSService, Configurable {
 
     @Override
     public InetAddress getByName(String host) throws UnknownHostException {
-        String name = allowIPLiteral(host);
+        return await(getByName(host, mustBlock()), UnknownHostException.class);
+    }
 
+    @Override
+    public CompletableFuture<InetAddress> getByNameAsync(String host) {
+        return getByName(host, false);
+    }
+
+    private CompletableFuture<InetAddress> getByName(String host, boolean blocking) {
+        final String name = allowIPLiteral(host);
         try {
             // Check if its local
             if (name.equalsIgnoreCase(localHostName) || name.equalsIgnoreCase(localCanonicalHostName) || name.equals(localAddress)) {
-                return getLocalHost();
+                return CompletableFuture.completedFuture(getLocalHost());
             }
 
-            return Address.getByAddress(name);
-        } catch (UnknownHostException e) {
-            Record[] records = lookupNoException(name, Type.A, "A");
-
-            if (records != null && records.length >= 1) {
-                ARecord a = (ARecord) records[0];
-                return InetAddress.getByAddress(name, a.getAddress().getAddress());
-            } else
-                throw e;
-        } finally {
-
+            return CompletableFuture.completedFuture(Address.getByAddress(name));
+        } catch (final UnknownHostException e) {
+            return lookupAddresses(name, blocking, e).thenApply(new Function<Collection<InetAddress>, InetAddress>() {
+                @Override
+                public InetAddress apply(Collection<InetAddress> addrs) {
+                    return addrs.iterator().next();
+                }
+            });
         }
     }
 
     @Override
     public Collection<InetAddress> getAllByName(String host) throws UnknownHostException {
-        String name = allowIPLiteral(host);
+        return await(getAllByName(host, mustBlock()), UnknownHostException.class);
+    }
+
+    @Override
+    public CompletableFuture<Collection<InetAddress>> getAllByNameAsync(String host) {
+        return getAllByName(host, false);
+    }
+
+    private CompletableFuture<Collection<InetAddress>> getAllByName(String host, boolean blocking) {
+        final String name = allowIPLiteral(host);
         try {
             // Check if its local
             if (name.equalsIgnoreCase(localHostName) || name.equalsIgnoreCase(localCanonicalHostName) || name.equals(localAddress)) {
-                return ImmutableList.of(getLocalHost());
+                return CompletableFuture.<Collection<InetAddress>>completedFuture(ImmutableList.of(getLocalHost()));
             }
 
             InetAddress addr = Address.getByAddress(name);
-            return ImmutableList.of(addr);
-        } catch (UnknownHostException e) {
-            Record[] records = lookupNoException(name, Type.A, "A");
-
-            if (records != null && records.length >= 1) {
-                InetAddress[] addrs = new InetAddress[records.length];
-                for (int i = 0; i < records.length; i++) {
-                    ARecord a = (ARecord) records[i];
-                    addrs[i] = InetAddress.getByAddress(name, a.getAddress().getAddress());
-                }
-                return ImmutableList.copyOf(addrs);
-            } else
-                throw e;
-        } finally {
+            return CompletableFuture.<Collection<InetAddress>>completedFuture(ImmutableList.of(addr));
+        } catch (final UnknownHostException e) {
+            return lookupAddresses(name, blocking, e);
+        }
+    }
 
+    // 查询A记录，没有记录时以notFound失败
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Collection<InetAddress>> lookupAddresses(final String name, boolean blocking, final UnknownHostException notFound) {
+        Object cached = cached(name, Type.A);
+        if (cached == NEGATIVE) {
+            return failed(notFound);
+        }
+        if (cached != null) {
+            return CompletableFuture.completedFuture((Collection<InetAddress>) cached);
         }
+        return resolveAddresses(name, blocking, false, notFound);
+    }
+
+    private CompletableFuture<Collection<InetAddress>> resolveAddresses(final String name, boolean blocking, boolean refresh, final UnknownHostException notFound) {
+        return lookupOutcomeNoException(name, Type.A, blocking, refresh).thenCompose(new Function<Outcome, CompletionStage<Collection<InetAddress>>>() {
+            @Override
+            public CompletionStage<Collection<InetAddress>> apply(Outcome outcome) {
+                Record[] records = outcome.records;
+                if (records != null && records.length >= 1) {
+                    InetAddress[] addrs = new InetAddress[records.length];
+                    try {
+                        for (int i = 0; i < records.length; i++) {
+                            ARecord a = (ARecord) records[i];
+                            addrs[i] = InetAddress.getByAddress(name, a.getAddress().getAddress());
+                        }
+                    } catch (UnknownHostException uhe) {
+                        return failed(uhe);
+                    }
+                    Collection<InetAddress> result = ImmutableList.copyOf(addrs);
+                    cache(name, Type.A, result, outcome);
+                    return CompletableFuture.completedFuture(result);
+                }
+                cacheNegative(name, Type.A, outcome);
+                return failed(notFound);
+            }
+        });
     }
 
     @Override
     public Collection<String> findTXTRecords(String hostname) {
-        List<String> txtR = new ArrayList<String>();
-        Record[] records = lookupNoException(hostname, Type.TXT, "TXT");
+        return await(findTXTRecords(hostname, mustBlock()), RuntimeException.class);
+    }
 
-        try {
-            if (records != null) {
+    @Override
+    public CompletableFuture<Collection<String>> findTXTRecordsAsync(String hostname) {
+        return findTXTRecords(hostname, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Collection<String>> findTXTRecords(final String hostname, boolean blocking) {
+        Object cached = cached(hostname, Type.TXT);
+        if (cached == NEGATIVE) {
+            return CompletableFuture.<Collection<String>>completedFuture(ImmutableList.<String>of());
+        }
+        if (cached != null) {
+            return CompletableFuture.completedFuture((Collection<String>) cached);
+        }
+        return resolveTXTRecords(hostname, blocking, false);
+    }
+
+    private CompletableFuture<Collection<String>> resolveTXTRecords(final String hostname, boolean blocking, boolean refresh) {
+        return lookupOutcomeNoException(hostname, Type.TXT, blocking, refresh).thenApply(new Function<Outcome, Collection<String>>() {
+            @Override
+            public Collection<String> apply(Outcome outcome) {
+                Record[] records = outcome.records;
+                if (records == null) {
+                    cacheNegative(hostname, Type.TXT, outcome);
+                    return ImmutableList.of();
+                }
+                ImmutableList.Builder<String> txtR = ImmutableList.builder();
                 for (Record record : records) {
                     TXTRecord txt = (TXTRecord) record;
                     txtR.add(txt.rdataToString());
                 }
-
+                Collection<String> result = txtR.build();
+                cache(hostname, Type.TXT, result, outcome);
+                return result;
             }
-            return txtR;
-        } finally {
-
-        }
+        });
     }
 
     @Override
     public String getHostName(InetAddress addr) {
-        String result;
-        Name name = ReverseMap.fromAddress(addr);
-        Record[] records = lookupNoException(name.toString(), Type.PTR, "PTR");
+        return await(getHostName(addr, mustBlock()), RuntimeException.class);
+    }
 
-        try {
-            if (records == null) {
-                result = addr.getHostAddress();
-            } else {
+    @Override
+    public CompletableFuture<String> getHostNameAsync(InetAddress addr) {
+        return getHostName(addr, false);
+    }
+
+    private CompletableFuture<String> getHostName(final InetAddress addr, boolean blocking) {
+        final String name = ReverseMap.fromAddress(addr).toString();
+        Object cached = cached(name, Type.PTR);
+        if (cached == NEGATIVE) {
+            return CompletableFuture.completedFuture(addr.getHostAddress());
+        }
+        if (cached != null) {
+            return CompletableFuture.completedFuture((String) cached);
+        }
+        return resolveHostName(name, blocking, false).thenApply(new Function<String, String>() {
+            @Override
+            public String apply(String target) {
+                return target != null ? target : addr.getHostAddress();
+            }
+        });
+    }
+
+    // 没有PTR记录时结果为null
+    private CompletableFuture<String> resolveHostName(final String name, boolean blocking, boolean refresh) {
+        return lookupOutcomeNoException(name, Type.PTR, blocking, refresh).thenApply(new Function<Outcome, String>() {
+            @Override
+            public String apply(Outcome outcome) {
+                Record[] records = outcome.records;
+                if (records == null) {
+                    cacheNegative(name, Type.PTR, outcome);
+                    return null;
+                }
                 PTRRecord ptr = (PTRRecord) records[0];
-                result = ptr.getTarget().toString();
+                String target = ptr.getTarget().toString();
+                cache(name, Type.PTR, target, outcome);
+                return target;
             }
-            return result;
-        } finally {
-        }
+        });
     }
 
     @Override
@@ -0,0 +1,216 @@
+package com.zhangyx.vmail.dnsserver.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DNS查询最终结果的缓存，按放入时给出的TTL过期
+ * <p>
+ * 读不加锁。容量满时从随机抽取的几个条目中淘汰访问频率最低的一个(已过期的优先)，
+ * 频率计数定期减半，过去的热点会逐渐让位给新的热点
+ */
+class DnsResultCache {
+
+    // 每次淘汰时抽样的条目数
+    private static final int SAMPLE_SIZE = 8;
+    private static final int MAX_FREQUENCY = 255;
+
+    private final int maxSize;
+    private final ConcurrentHashMap<Object, Entry> entries = new ConcurrentHashMap<Object, Entry>();
+    // 所有条目紧凑地存放在数组中，方便随机抽样，只在锁内修改
+    private final Entry[] slots;
+    private int used;
+    private int insertsSinceAging;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    static final class Entry {
+
+        final Object key;
+        final Object value;
+        final long expiresAt;
+        final long ttlNanos;
+        volatile int frequency = 1;
+        // 在slots中的位置，只在锁内访问
+        int slot;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(Object key, Object value, long ttlNanos) {
+            this.key = key;
+            this.value = value;
+            this.ttlNanos = ttlNanos;
+            this.expiresAt = System.nanoTime() + ttlNanos;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+
+        /**
+         * 访问频率不低于minFrequency、并且TTL已经过去ratio比例的条目需要提前刷新，
+         * 只有第一个调用返回true，放弃刷新时调用{@link #cancelRefresh()}
+         *
+         * @param ratio
+         * @param minFrequency
+         * @return 是否由调用方刷新
+         */
+        boolean claimRefresh(double ratio, int minFrequency) {
+            if (frequency < minFrequency || refreshing.get()) {
+                return false;
+            }
+            long elapsed = System.nanoTime() - (expiresAt - ttlNanos);
+            return elapsed >= ttlNanos * ratio && refreshing.compareAndSet(false, true);
+        }
+
+        void cancelRefresh() {
+            refreshing.set(false);
+        }
+    }
+
+    DnsResultCache(int maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        this.slots = new Entry[this.maxSize];
+    }
+
+    /**
+     * @param key
+     * @return 没有或已过期时返回null
+     */
+    Object get(Object key) {
+        Entry entry = getEntry(key);
+        return entry == null ? null : entry.value;
+    }
+
+    Entry getEntry(Object key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.isExpired(System.nanoTime())) {
+            misses.increment();
+            remove(entry);
+            return null;
+        }
+        int frequency = entry.frequency;
+        if (frequency < MAX_FREQUENCY) {
+            // 并发时可能少计几次，不影响淘汰的效果
+            entry.frequency = frequency + 1;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @param ttlSeconds 小于等于0时不缓存
+     */
+    synchronized void put(Object key, Object value, long ttlSeconds) {
+        if (ttlSeconds <= 0 || maxSize == 0) {
+            return;
+        }
+        Entry entry = new Entry(key, value, TimeUnit.SECONDS.toNanos(ttlSeconds));
+        Entry old = entries.get(key);
+        if (old != null && slots[old.slot] == old) {
+            // 刷新时保留访问频率
+            entry.frequency = old.frequency;
+            entry.slot = old.slot;
+            slots[old.slot] = entry;
+            entries.put(key, entry);
+            return;
+        }
+        int slot;
+        if (used < maxSize) {
+            slot = used++;
+        } else {
+            slot = victim();
+            Entry victim = slots[slot];
+            entries.remove(victim.key, victim);
+            evictions.increment();
+        }
+        entry.slot = slot;
+        slots[slot] = entry;
+        entries.put(key, entry);
+        if (++insertsSinceAging >= maxSize) {
+            age();
+        }
+    }
+
+    // 抽样中已过期或访问频率最低的条目，条目数不超过抽样数时检查全部条目
+    private int victim() {
+        long now = System.nanoTime();
+        if (used <= SAMPLE_SIZE) {
+            int victim = 0;
+            for (int i = 0; i < used; i++) {
+                if (slots[i].isExpired(now)) {
+                    return i;
+                }
+                if (slots[i].frequency < slots[victim].frequency) {
+                    victim = i;
+                }
+            }
+            return victim;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int victim = random.nextInt(used);
+        for (int i = 1; i < SAMPLE_SIZE; i++) {
+            if (slots[victim].isExpired(now)) {
+                return victim;
+            }
+            int candidate = random.nextInt(used);
+            if (slots[candidate].frequency < slots[victim].frequency) {
+                victim = candidate;
+            }
+        }
+        return victim;
+    }
+
+    private void age() {
+        for (int i = 0; i < used; i++) {
+            slots[i].frequency >>= 1;
+        }
+        insertsSinceAging = 0;
+    }
+
+    // 把最后一个条目移到空出来的位置，保持数组紧凑
+    synchronized void remove(Entry entry) {
+        if (entry.slot >= used || slots[entry.slot] != entry) {
+            return;
+        }
+        entries.remove(entry.key, entry);
+        Entry last = slots[--used];
+        slots[entry.slot] = last;
+        last.slot = entry.slot;
+        slots[used] = null;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        for (int i = 0; i < used; i++) {
+            slots[i] = null;
+        }
+        used = 0;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    long getEvictionCount() {
+        return evictions.sum();
+    }
+}
@@ -3,6 +3,7 @@ package com.zhangyx.vmail.ssl;
 import lombok.Data;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 
 /**
  * 加密协议对象处理
@@ -23,4 +24,18 @@ public final class Encryption {
     public static Encryption createSsl(SSLContext context, boolean starttls, String[] enabledCipherSuites){
         return new Encryption(context, starttls, enabledCipherSuites);
     }
+
+    /**
+     * 从共享的context创建服务端的SSLEngine，所有连接共用context中的session缓存
+     *
+     * @return engine
+     */
+    public SSLEngine createSSLEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        if (enabledCipherSuites != null && enabledCipherSuites.length > 0) {
+            engine.setEnabledCipherSuites(enabledCipherSuites);
+        }
+        return engine;
+    }
 }
@@ -0,0 +1,217 @@
+package com.zhangyx.vmail.ssl;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.StandardConstants;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 根据客户端SNI选择证书的key manager，一个监听端口可以同时使用keystore中的多张证书
+ * <p>
+ * 加载keystore时从每张证书的subjectAltName(没有时用CN)建立 主机名 -> alias 的映射，
+ * 握手时只做一次map查找，通配符匹配的结果也会缓存下来；没有SNI或没有匹配的证书时交给原key manager
+ */
+public class SniKeyManager extends X509ExtendedKeyManager {
+
+    // 缓存的主机名数量上限，超过后清空，避免被随机SNI撑爆
+    private static final int MAX_RESOLVED = 4096;
+    // 没有匹配证书的主机名
+    private static final List<String> NONE = Collections.emptyList();
+
+    private final X509ExtendedKeyManager delegate;
+    // 小写主机名 -> alias
+    private final Map<String, List<String>> exact;
+    // "*.example.com" 以 "example.com" 为key
+    private final Map<String, List<String>> wildcard;
+    // alias -> 公钥算法
+    private final Map<String, String> keyAlgorithms;
+    private final ConcurrentHashMap<String, List<String>> resolved = new ConcurrentHashMap<String, List<String>>();
+
+    private SniKeyManager(X509ExtendedKeyManager delegate, Map<String, List<String>> exact, Map<String, List<String>> wildcard, Map<String, String> keyAlgorithms) {
+        this.delegate = delegate;
+        this.exact = exact;
+        this.wildcard = wildcard;
+        this.keyAlgorithms = keyAlgorithms;
+    }
+
+    /**
+     * 为keystore中所有带私钥的证书建立主机名映射
+     *
+     * @param keyStore
+     * @param delegate keyStore初始化的key manager
+     * @return key manager
+     * @throws KeyStoreException
+     */
+    public static SniKeyManager create(KeyStore keyStore, X509ExtendedKeyManager delegate) throws KeyStoreException {
+        Map<String, List<String>> exact = new HashMap<String, List<String>>();
+        Map<String, List<String>> wildcard = new HashMap<String, List<String>>();
+        Map<String, String> keyAlgorithms = new HashMap<String, String>();
+        Enumeration<String> aliases = keyStore.aliases();
+        while (aliases.hasMoreElements()) {
+            String alias = aliases.nextElement();
+            Certificate certificate = keyStore.getCertificate(alias);
+            // PKIX的key manager使用自己编号的alias，查不到私钥的alias不参与映射
+            if (!keyStore.isKeyEntry(alias) || !(certificate instanceof X509Certificate) || delegate.getPrivateKey(alias) == null) {
+                continue;
+            }
+            X509Certificate x509 = (X509Certificate) certificate;
+            keyAlgorithms.put(alias, x509.getPublicKey().getAlgorithm());
+            for (String name : hostNames(x509)) {
+                name = name.toLowerCase(Locale.US);
+                if (name.startsWith("*.")) {
+                    add(wildcard, name.substring(2), alias);
+                } else {
+                    add(exact, name, alias);
+                }
+            }
+        }
+        return new SniKeyManager(delegate, exact, wildcard, keyAlgorithms);
+    }
+
+    private static void add(Map<String, List<String>> map, String name, String alias) {
+        List<String> list = map.get(name);
+        if (list == null) {
+            list = new ArrayList<String>(2);
+            map.put(name, list);
+        }
+        list.add(alias);
+    }
+
+    // subjectAltName中的dNSName，没有时使用subject的CN
+    private static Collection<String> hostNames(X509Certificate certificate) {
+        List<String> names = new ArrayList<String>();
+        try {
+            Collection<List<?>> altNames = certificate.getSubjectAlternativeNames();
+            if (altNames != null) {
+                for (List<?> altName : altNames) {
+                    if (altName.size() >= 2 && Integer.valueOf(2).equals(altName.get(0))) {
+                        names.add(String.valueOf(altName.get(1)));
+                    }
+                }
+            }
+        } catch (CertificateParsingException e) {
+            // 忽略，使用CN
+        }
+        if (names.isEmpty()) {
+            try {
+                for (Rdn rdn : new LdapName(certificate.getSubjectX500Principal().getName()).getRdns()) {
+                    if ("CN".equalsIgnoreCase(rdn.getType())) {
+                        names.add(String.valueOf(rdn.getValue()));
+                    }
+                }
+            } catch (InvalidNameException e) {
+                // 没有可用的主机名
+            }
+        }
+        return names;
+    }
+
+    private List<String> resolve(String host) {
+        List<String> aliases = resolved.get(host);
+        if (aliases != null) {
+            return aliases;
+        }
+        aliases = exact.get(host);
+        if (aliases == null) {
+            int dot = host.indexOf('.');
+            aliases = dot > 0 ? wildcard.get(host.substring(dot + 1)) : null;
+        }
+        if (aliases == null) {
+            aliases = NONE;
+        }
+        if (resolved.size() >= MAX_RESOLVED) {
+            resolved.clear();
+        }
+        resolved.put(host, aliases);
+        return aliases;
+    }
+
+    private static String requestedHost(SSLSession session) {
+        if (!(session instanceof ExtendedSSLSession)) {
+            return null;
+        }
+        for (SNIServerName name : ((ExtendedSSLSession) session).getRequestedServerNames()) {
+            if (name.getType() == StandardConstants.SNI_HOST_NAME) {
+                return ((SNIHostName) name).getAsciiName().toLowerCase(Locale.US);
+            }
+        }
+        return null;
+    }
+
+    // TLS 1.3的keyType可能是RSASSA-PSS
+    private boolean matches(String alias, String keyType) {
+        String algorithm = keyAlgorithms.get(alias);
+        return algorithm != null && (algorithm.equals(keyType) || keyType.startsWith(algorithm));
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+        String host = engine == null ? null : requestedHost(engine.getHandshakeSession());
+        if (host != null) {
+            for (String alias : resolve(host)) {
+                if (matches(alias, keyType)) {
+                    return alias;
+                }
+            }
+        }
+        return delegate.chooseEngineServerAlias(keyType, issuers, engine);
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        return delegate.chooseServerAlias(keyType, issuers, socket);
+    }
+
+    @Override
+    public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+        return delegate.chooseEngineClientAlias(keyType, issuers, engine);
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+        return delegate.chooseClientAlias(keyType, issuers, socket);
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        return delegate.getClientAliases(keyType, issuers);
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        return delegate.getServerAliases(keyType, issuers);
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+        return delegate.getCertificateChain(alias);
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+        return delegate.getPrivateKey(alias);
+    }
+}
@@ -0,0 +1,309 @@
+package com.zhangyx.vmail.dnsserver.impl;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.After;
+import org.junit.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncResolverTest {
+
+    private static final Name HOST = Name.fromConstantString("mail.example.com.");
+
+    private final List<DnsStubServer> servers = new ArrayList<DnsStubServer>();
+    private AsyncResolver resolver;
+
+    @After
+    public void tearDown() throws Exception {
+        if (resolver != null) {
+            resolver.stop();
+        }
+        for (DnsStubServer server : servers) {
+            server.close();
+        }
+    }
+
+    private DnsStubServer server(DnsStubServer.Responder responder) throws IOException {
+        DnsStubServer server = new DnsStubServer(responder);
+        servers.add(server);
+        return server;
+    }
+
+    private AsyncResolver start(long timeoutMillis, int retries, DnsStubServer... stubs) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (DnsStubServer stub : stubs) {
+            addresses.add(stub.getAddress());
+        }
+        resolver = new AsyncResolver(addresses, null, timeoutMillis, retries);
+        resolver.start();
+        return resolver;
+    }
+
+    private static Message query() {
+        return Message.newQuery(Record.newRecord(HOST, Type.A, DClass.IN));
+    }
+
+    private static Record a(String address) throws IOException {
+        return new ARecord(HOST, DClass.IN, 300, InetAddress.getByName(address));
+    }
+
+    private static String answer(Message response) {
+        Record[] answers = response.getSectionArray(Section.ANSWER);
+        assertEquals(1, answers.length);
+        return ((ARecord) answers[0]).getAddress().getHostAddress();
+    }
+
+    private static Message get(CompletableFuture<Message> future) throws Exception {
+        return future.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void responseWithWrongIdIsIgnored() throws Exception {
+        DnsStubServer stub = server(new DnsStubServer.Responder() {
+            @Override
+            public void respond(DnsStubServer server, Message query, InetSocketAddress client) throws IOException {
+                Message forged = DnsStubServer.reply(query, a("10.0.0.1"));
+                forged.getHeader().setID((query.getHeader().getID() + 1) & 0xFFFF);
+                server.send(forged, client);
+                server.send(DnsStubServer.reply(query, a("192.0.2.1")), client);
+            }
+        });
+        Message response = get(start(1000, 1, stub).send(query()));
+        assertEquals("192.0.2.1", answer(response));
+        assertEquals(stub.getQueries().get(0).getHeader().getID(), response.getHeader().getID());
+    }
+
+    @Test
+    public void responseFromUnknownSourceIsIgnored() throws Exception {
+        final DatagramSocket spoofer = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        try {
+            DnsStubServer stub = server(new DnsStubServer.Responder() {
+                @Override
+                public void respond(DnsStubServer server, Message query, InetSocketAddress client) throws IOException {
+                    // ID正确但来源不是配置的服务器
+                    byte[] wire = DnsStubServer.reply(query, a("10.0.0.1")).toWire();
+                    spoofer.send(new DatagramPacket(wire, wire.length, client));
+                    server.send(DnsStubServer.reply(query, a("192.0.2.1")), client);
+                }
+            });
+            assertEquals("192.0.2.1", answer(get(start(1000, 1, stub).send(query()))));
+        } finally {
+            spoofer.close();
+        }
+    }
+
+    @Test
+    public void concurrentQueriesUseDifferentSourcePorts() throws Exception {
+        // 收到两个查询之后才回应，两个查询的端口同时处于绑定状态
+        DnsStubServer stub = server(new DnsStubServer.Responder() {
+            @Override
+            public void respond(DnsStubServer server, Message query, InetSocketAddress client) throws IOException {
+                if (server.getQueries().size() < 2) {
+                    return;
+                }
+                for (int i = 0; i < 2; i++) {
+                    server.send(DnsStubServer.reply(server.getQueries().get(i), a("192.0.2.1")), server.getClients().get(i));
+                }
+            }
+        });
+        start(1000, 1, stub);
+        CompletableFuture<Message> first = resolver.send(query());
+        CompletableFuture<Message> second = resolver.send(query());
+        get(first);
+        get(second);
+        assertNotEquals(stub.getClients().get(0).getPort(), stub.getClients().get(1).getPort());
+    }
+
+    @Test
+    public void timeoutFailsOverToNextServer() throws Exception {
+        DnsStubServer silent = server(DnsStubServer.SILENT);
+        DnsStubServer stub = server(new DnsStubServer.Responder() {
+            @Override
+            public void respond(DnsStubServer server, Message query, InetSocketAddress client) throws IOException {
+                server.send(DnsStubServer.reply(query, a("192.0.2.1")), client);
+            }
+        });
+        assertEquals("192.0.2.1", answer(get(start(200, 1, silent, stub).send(query()))));
+        assertEquals(1, silent.getQueries().size());
+        // 换服务器时ID和端口不变
+        assertEquals(silent.getQueries().get(0).getHeader().getID(), stub.getQueries().get(0).getHeader().getID());
+        assertEquals(silent.getClients().get(0).getPort(), stub.getClients().get(0).getPort());
+    }
+
+    @Test
+    public void allServersTimingOutFails() throws Exception {
+        DnsStubServer silent = server(DnsStubServer.SILENT);
+        CompletableFuture<Message> future = start(100, 2, silent).send(query());
+        try {
+            get(future);
+            fail("Expected timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+        assertEquals(2, silent.getQueries().size());
+    }
+
+    // 本地TCP DNS服务器，和stub使用相同的端口，回答每个连接上的查询，直到关闭
+    private static Thread tcpServer(final ServerSocket tcp, final List<Message> tcpQueries) {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!tcp.isClosed()) {
+                    try {
+                        Socket socket = tcp.accept();
+                        try {
+                            DataInputStream in = new DataInputStream(socket.getInputStream());
+                            byte[] wire = new byte[in.readUnsignedShort()];
+                            in.readFully(wire);
+                            Message query = new Message(wire);
+                            tcpQueries.add(query);
+                            byte[] response = DnsStubServer.reply(query, a("192.0.2.1"), a("192.0.2.2")).toWire();
+                            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                            out.writeShort(response.length);
+                            out.write(response);
+                            out.flush();
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        // 关闭时退出，测试失败时由断言报告
+                    }
+                }
+            }
+        }, "dns-stub-tcp");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return acceptor;
+    }
+
+    private static DnsStubServer.Responder truncated(final int count) {
+        return new DnsStubServer.Responder() {
+            @Override
+            public void respond(DnsStubServer server, Message query, InetSocketAddress client) throws IOException {
+                Message truncated = DnsStubServer.reply(query);
+                truncated.getHeader().setFlag(Flags.TC);
+                for (int i = 0; i < count; i++) {
+                    server.send(truncated, client);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void truncatedResponseIsRetriedOverTcp() throws Exception {
+        DnsStubServer stub = server(truncated(1));
+        ServerSocket tcp = new ServerSocket(stub.getAddress().getPort(), 1, stub.getAddress().getAddress());
+        List<Message> tcpQueries = new CopyOnWriteArrayList<Message>();
+        tcpServer(tcp, tcpQueries);
+        try {
+            Message response = get(start(1000, 1, stub).send(query()));
+            assertEquals(1, tcpQueries.size());
+            assertEquals(stub.getQueries().get(0).getHeader().getID(), tcpQueries.get(0).getHeader().getID());
+            List<String> addresses = new ArrayList<String>();
+            for (Record record : response.getSectionArray(Section.ANSWER)) {
+                addresses.add(((ARecord) record).getAddress().getHostAddress());
+            }
+            assertEquals(Arrays.asList("192.0.2.1", "192.0.2.2"), addresses);
+        } finally {
+            tcp.close();
+        }
+    }
+
+    @Test
+    public void repeatedTruncatedResponsesRetryOverTcpOnce() throws Exception {
+        DnsStubServer stub = server(truncated(3));
+        ServerSocket tcp = new ServerSocket(stub.getAddress().getPort(), 5, stub.getAddress().getAddress());
+        List<Message> tcpQueries = new CopyOnWriteArrayList<Message>();
+        tcpServer(tcp, tcpQueries);
+        try {
+            get(start(1000, 1, stub).send(query()));
+            // 给迟到的TC响应留出触发重试的时间
+            Thread.sleep(200);
+            assertEquals(1, tcpQueries.size());
+        } finally {
+            tcp.close();
+        }
+    }
+
+    @Test
+    public void responseFromServerNotYetQueriedIsIgnored() throws Exception {
+        final DnsStubServer other = server(DnsStubServer.SILENT);
+        DnsStubServer stub = server(new DnsStubServer.Responder() {
+            @Override
+            public void respond(DnsStubServer server, Message query, InetSocketAddress client) throws IOException {
+                // 来自配置的第二个服务器，但查询还没有发往它
+                other.send(DnsStubServer.reply(query, a("10.0.0.1")), client);
+                server.send(DnsStubServer.reply(query, a("192.0.2.1")), client);
+            }
+        });
+        assertEquals("192.0.2.1", answer(get(start(1000, 1, stub, other).send(query()))));
+        assertEquals(0, other.getQueries().size());
+    }
+
+    @Test
+    public void queriesMoveToTheSharedEventLoop() throws Exception {
+        DnsStubServer stub = server(new DnsStubServer.Responder() {
+            @Override
+            public void respond(DnsStubServer server, Message query, InetSocketAddress client) throws IOException {
+                // 在回调注册之后才回应，回调在收到响应的event loop中执行
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                server.send(DnsStubServer.reply(query, a("192.0.2.1")), client);
+            }
+        });
+        start(1000, 1, stub);
+        final EventLoopGroup shared = new NioEventLoopGroup(1);
+        try {
+            resolver.setEventLoopGroup(shared);
+            final CompletableFuture<Boolean> inEventLoop = new CompletableFuture<Boolean>();
+            resolver.send(query()).thenAccept(new Consumer<Message>() {
+                @Override
+                public void accept(Message response) {
+                    inEventLoop.complete(shared.next().inEventLoop() && resolver.inEventLoop());
+                }
+            });
+            assertTrue(inEventLoop.get(5, TimeUnit.SECONDS));
+
+            // 切换回自己的event loop后共享的可以关闭
+            resolver.setEventLoopGroup(null);
+            shared.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+            assertEquals("192.0.2.1", answer(get(resolver.send(query()))));
+        } finally {
+            shared.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.zhangyx.vmail.dnsserver.impl;
+
+import com.zhangyx.vmail.configure.ConfigurationProvider;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DNSServiceImplTest {
+
+    private static final Name ALIAS = Name.fromConstantString("alias.example.com.");
+    private static final Name TARGET = Name.fromConstantString("target.example.com.");
+    private static final Name OTHER = Name.fromConstantString("other.example.com.");
+    private static final Name MISSING = Name.fromConstantString("missing.example.com.");
+    private static final Name NODATA = Name.fromConstantString("nodata.example.com.");
+    private static final Name FAILING = Name.fromConstantString("servfail.example.com.");
+    private static final Name ZONE = Name.fromConstantString("example.com.");
+
+    private DnsStubServer stub;
+    private HierarchicalConfiguration config;
+    private DNSServiceImpl service;
+    // stub回应前等待的时间，单位毫秒
+    private volatile long delay;
+    // 否定响应中SOA的TTL和MINIMUM
+    private volatile long soaTtl = 60;
+    private volatile long soaMinimum = 60;
+
+    @Before
+    public void setUp() throws Exception {
+        // alias是target的CNAME，两个名字分别查询；missing不存在，nodata没有A记录，servfail返回SERVFAIL
+        stub = new DnsStubServer(new DnsStubServer.Responder() {
+            @Override
+            public void respond(DnsStubServer server, Message query, InetSocketAddress client) throws IOException {
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                Name name = query.getQuestion().getName();
+                if (name.equals(MISSING) || name.equals(NODATA)) {
+                    Message response = DnsStubServer.reply(query);
+                    if (name.equals(MISSING)) {
+                        response.getHeader().setRcode(Rcode.NXDOMAIN);
+                    }
+                    response.addRecord(new SOARecord(ZONE, DClass.IN, soaTtl, ZONE, ZONE, 1, 3600, 600, 86400, soaMinimum), Section.AUTHORITY);
+                    server.send(response, client);
+                    return;
+                }
+                if (name.equals(FAILING)) {
+                    Message response = DnsStubServer.reply(query);
+                    response.getHeader().setRcode(Rcode.SERVFAIL);
+                    server.send(response, client);
+                    return;
+                }
+                if (name.equals(ALIAS)) {
+                    server.send(DnsStubServer.reply(query, new CNAMERecord(ALIAS, DClass.IN, 300, TARGET)), client);
+                    return;
+                }
+                // 其他名字都有A记录。权威的答案留在dnsjava的Cache中，不会被之后只有CNAME的响应替换
+                Message response = DnsStubServer.reply(query, new ARecord(name, DClass.IN, 300, InetAddress.getByName("192.0.2.1")));
+                response.getHeader().setFlag(Flags.AA);
+                server.send(response, client);
+            }
+        });
+        config = new HierarchicalConfiguration();
+        config.addProperty("autodiscover", false);
+        config.addProperty("setAsDNSJavaDefault", false);
+        config.addProperty("servers.server", "127.0.0.1:" + stub.getAddress().getPort());
+        config.addProperty("timeout", 1000);
+        config.addProperty("retries", 1);
+    }
+
+    // 测试可以先修改config再启动
+    private void start() throws Exception {
+        service = new DNSServiceImpl();
+        Field provider = DNSServiceImpl.class.getDeclaredField("configurationProvider");
+        provider.setAccessible(true);
+        provider.set(service, new ConfigurationProvider() {
+            @Override
+            public void registerConfiguration(String beanName, HierarchicalConfiguration conf) {
+            }
+
+            @Override
+            public HierarchicalConfiguration getConfiguration(String beanName) {
+                return config;
+            }
+        });
+        service.init();
+    }
+
+    // 几乎立刻开始提前刷新，第二次命中就触发
+    private void enablePrefetch() {
+        config.addProperty("prefetchratio", 0.00001);
+        config.addProperty("prefetchminhits", 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (service != null) {
+            service.destroy();
+        }
+        stub.close();
+    }
+
+    private List<Name> queriedNames() {
+        List<Name> names = new ArrayList<Name>();
+        for (Message query : stub.getQueries()) {
+            names.add(query.getQuestion().getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void cnameIsFollowedWithASecondQuery() throws Exception {
+        start();
+        Collection<InetAddress> addresses = service.getAllByNameAsync(ALIAS.toString()).get(5, TimeUnit.SECONDS);
+        assertEquals(1, addresses.size());
+        assertEquals("192.0.2.1", addresses.iterator().next().getHostAddress());
+        assertEquals(Arrays.asList(ALIAS, TARGET), queriedNames());
+
+        // 第二次从结果缓存返回
+        service.getAllByNameAsync(ALIAS.toString()).get(5, TimeUnit.SECONDS);
+        assertEquals(2, stub.getQueries().size());
+    }
+
+    @Test
+    public void resultsFromTheDnsjavaCacheAreNotCached() throws Exception {
+        start();
+        service.getAllByNameAsync(ALIAS.toString()).get(5, TimeUnit.SECONDS);
+        assertEquals(1, service.getResultCacheSize());
+
+        // target的A记录已经在dnsjava的Cache中，剩余的TTL未知
+        Collection<InetAddress> addresses = service.getAllByNameAsync(TARGET.toString()).get(5, TimeUnit.SECONDS);
+        assertEquals("192.0.2.1", addresses.iterator().next().getHostAddress());
+        assertEquals(2, stub.getQueries().size());
+        assertEquals(1, service.getResultCacheSize());
+    }
+
+    @Test
+    public void prefetchQueriesTheWholeCnameChain() throws Exception {
+        enablePrefetch();
+        start();
+        service.getAllByNameAsync(ALIAS.toString()).get(5, TimeUnit.SECONDS);
+        Thread.sleep(50);
+        service.getAllByNameAsync(ALIAS.toString()).get(5, TimeUnit.SECONDS);
+        assertEquals(1, service.getPrefetchCount());
+        // target的A记录在dnsjava的Cache中，刷新时同样要向上游查询
+        awaitQueries(4);
+        assertEquals(Arrays.asList(ALIAS, TARGET, ALIAS, TARGET), queriedNames());
+    }
+
+    @Test
+    public void negativeResultsAreNotPrefetched() throws Exception {
+        enablePrefetch();
+        start();
+        for (int i = 0; i < 2; i++) {
+            try {
+                service.getAllByNameAsync(MISSING.toString()).get(5, TimeUnit.SECONDS);
+                fail("Expected UnknownHostException");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof UnknownHostException);
+            }
+            Thread.sleep(100);
+        }
+        assertEquals(0, service.getPrefetchCount());
+        assertEquals(1, stub.getQueries().size());
+    }
+
+    // 等待stub收到count个查询
+    private void awaitQueries(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stub.getQueries().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void prefetchesAreRateLimited() throws Exception {
+        enablePrefetch();
+        config.addProperty("prefetchrate", 1);
+        start();
+        service.getAllByNameAsync(TARGET.toString()).get(5, TimeUnit.SECONDS);
+        service.getAllByNameAsync(OTHER.toString()).get(5, TimeUnit.SECONDS);
+        Thread.sleep(50);
+
+        // 每秒最多一次，第二个名字的刷新被放弃
+        service.getAllByNameAsync(TARGET.toString()).get(5, TimeUnit.SECONDS);
+        service.getAllByNameAsync(OTHER.toString()).get(5, TimeUnit.SECONDS);
+        assertEquals(1, service.getPrefetchCount());
+        awaitQueries(3);
+        Thread.sleep(100);
+        assertEquals(Arrays.asList(TARGET, OTHER, TARGET), queriedNames());
+
+        // 被放弃的条目之后还可以刷新
+        Thread.sleep(1000);
+        service.getAllByNameAsync(OTHER.toString()).get(5, TimeUnit.SECONDS);
+        assertEquals(2, service.getPrefetchCount());
+        awaitQueries(4);
+        assertEquals(Arrays.asList(TARGET, OTHER, TARGET, OTHER), queriedNames());
+    }
+
+    // 查询应当失败，返回失败的原因
+    private Throwable lookupFailure(Name name) throws Exception {
+        try {
+            service.getAllByNameAsync(name.toString()).get(5, TimeUnit.SECONDS);
+            fail("Expected lookup of " + name + " to fail");
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    // 否定结果在ttl秒内从缓存返回，过期后重新查询。dnsjava的Cache按整秒过期，多等一秒
+    private void assertNegativeTtl(Name name, long ttl) throws Exception {
+        assertTrue(lookupFailure(name) instanceof UnknownHostException);
+        assertTrue(lookupFailure(name) instanceof UnknownHostException);
+        assertEquals(1, stub.getQueries().size());
+        Thread.sleep(TimeUnit.SECONDS.toMillis(ttl + 1) + 100);
+        assertTrue(lookupFailure(name) instanceof UnknownHostException);
+        assertEquals(2, stub.getQueries().size());
+    }
+
+    @Test
+    public void nxdomainIsCachedForTheSoaTtl() throws Exception {
+        soaTtl = 1;
+        start();
+        assertNegativeTtl(MISSING, 1);
+    }
+
+    @Test
+    public void nodataIsCachedForTheSoaMinimum() throws Exception {
+        soaMinimum = 1;
+        start();
+        assertNegativeTtl(NODATA, 1);
+    }
+
+    @Test
+    public void negativeTtlIsCappedByMaxNegativeTtl() throws Exception {
+        config.addProperty("maxnegativettl", 1);
+        start();
+        assertNegativeTtl(MISSING, 1);
+    }
+
+    @Test
+    public void tryAgainBacksOff() throws Exception {
+        config.addProperty("tryagainttl", 1);
+        start();
+        lookupFailure(FAILING);
+        assertEquals(1, stub.getQueries().size());
+        // back-off期间直接失败，不发往上游
+        lookupFailure(FAILING);
+        assertEquals(1, stub.getQueries().size());
+        assertEquals(1, service.getBackedOffLookupCount());
+        // TRY_AGAIN不进入否定缓存
+        assertEquals(0, service.getResultCacheSize());
+
+        Thread.sleep(1100);
+        lookupFailure(FAILING);
+        assertEquals(2, stub.getQueries().size());
+    }
+
+    @Test
+    public void concurrentLookupsAreCoalesced() throws Exception {
+        delay = 200;
+        start();
+        List<CompletableFuture<Collection<InetAddress>>> futures = new ArrayList<CompletableFuture<Collection<InetAddress>>>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(service.getAllByNameAsync(TARGET.toString()));
+        }
+        for (CompletableFuture<Collection<InetAddress>> future : futures) {
+            assertEquals("192.0.2.1", future.get(5, TimeUnit.SECONDS).iterator().next().getHostAddress());
+        }
+        assertEquals(1, stub.getQueries().size());
+        assertEquals(1, service.getLookupCount());
+        assertEquals(4, service.getCoalescedLookupCount());
+        assertEquals(0, service.getInFlightLookupCount());
+
+        // 完成后的查询不再合并，从结果缓存返回
+        service.getAllByNameAsync(TARGET.toString()).get(5, TimeUnit.SECONDS);
+        assertEquals(1, stub.getQueries().size());
+        assertEquals(4, service.getCoalescedLookupCount());
+    }
+}
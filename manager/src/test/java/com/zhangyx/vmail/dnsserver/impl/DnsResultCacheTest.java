@@ -0,0 +1,100 @@
+package com.zhangyx.vmail.dnsserver.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DnsResultCacheTest {
+
+    private static void hit(DnsResultCache cache, String key, int times) {
+        for (int i = 0; i < times; i++) {
+            assertNotNull(cache.get(key));
+        }
+    }
+
+    @Test
+    public void leastFrequentlyUsedEntryIsEvicted() {
+        DnsResultCache cache = new DnsResultCache(3);
+        cache.put("a", "A", 60);
+        cache.put("b", "B", 60);
+        cache.put("c", "C", 60);
+        hit(cache, "a", 2);
+        hit(cache, "c", 1);
+        cache.put("d", "D", 60);
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get("b"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("C", cache.get("c"));
+        assertEquals("D", cache.get("d"));
+    }
+
+    @Test
+    public void expiredEntryIsEvictedFirst() throws Exception {
+        DnsResultCache cache = new DnsResultCache(2);
+        cache.put("short", "S", 1);
+        cache.put("long", "L", 60);
+        hit(cache, "short", 10);
+        Thread.sleep(1100);
+        cache.put("new", "N", 60);
+        assertEquals("L", cache.get("long"));
+        assertEquals("N", cache.get("new"));
+    }
+
+    @Test
+    public void frequenciesAreHalvedAfterMaxSizeInserts() {
+        DnsResultCache cache = new DnsResultCache(4);
+        cache.put("a", "A", 60);
+        hit(cache, "a", 7);
+        cache.put("b", "B", 60);
+        cache.put("c", "C", 60);
+        cache.put("d", "D", 60);
+        // 第4次插入后减半，getEntry本身又计一次
+        assertEquals(8 / 2 + 1, cache.getEntry("a").frequency);
+        assertEquals(0 + 1, cache.getEntry("b").frequency);
+    }
+
+    @Test
+    public void oldHotEntryGivesWayToNewOne() {
+        DnsResultCache cache = new DnsResultCache(2);
+        cache.put("old", "O", 60);
+        hit(cache, "old", 3);
+        // 第2次插入后减半，old的频率4变为2
+        cache.put("new", "N", 60);
+        hit(cache, "new", 3);
+        cache.put("next", "X", 60);
+        assertNull(cache.get("old"));
+        assertEquals("N", cache.get("new"));
+    }
+
+    @Test
+    public void refreshKeepsTheFrequency() {
+        DnsResultCache cache = new DnsResultCache(4);
+        cache.put("a", "A", 60);
+        hit(cache, "a", 3);
+        cache.put("a", "A2", 60);
+        assertEquals(1, cache.size());
+        assertEquals(5, cache.getEntry("a").frequency);
+        assertEquals("A2", cache.get("a"));
+    }
+
+    @Test
+    public void hitsAndMissesAreCounted() throws Exception {
+        DnsResultCache cache = new DnsResultCache(4);
+        assertNull(cache.get("a"));
+        cache.put("a", "A", 1);
+        cache.put("zero", "Z", 0);
+        hit(cache, "a", 2);
+        assertNull(cache.get("zero"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        // 过期的条目算作未命中并被移除
+        Thread.sleep(1100);
+        assertNull(cache.get("a"));
+        assertEquals(3, cache.getMissCount());
+        assertEquals(0, cache.size());
+    }
+}
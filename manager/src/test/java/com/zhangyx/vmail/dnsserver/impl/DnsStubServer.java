@@ -0,0 +1,117 @@
+package com.zhangyx.vmail.dnsserver.impl;
+
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 测试用的本地UDP DNS服务器，收到的查询交给{@link Responder}处理
+ */
+class DnsStubServer {
+
+    interface Responder {
+
+        /**
+         * @param server
+         * @param query
+         * @param client 查询的来源地址
+         * @throws IOException
+         */
+        void respond(DnsStubServer server, Message query, InetSocketAddress client) throws IOException;
+    }
+
+    // 不回应任何查询
+    static final Responder SILENT = new Responder() {
+        @Override
+        public void respond(DnsStubServer server, Message query, InetSocketAddress client) {
+        }
+    };
+
+    private final DatagramSocket socket;
+    private final Responder responder;
+    private final List<Message> queries = new CopyOnWriteArrayList<Message>();
+    private final List<InetSocketAddress> clients = new CopyOnWriteArrayList<InetSocketAddress>();
+    private final Thread thread;
+
+    DnsStubServer(Responder responder) throws SocketException {
+        this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.responder = responder;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "dns-stub");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[65535];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                byte[] data = new byte[packet.getLength()];
+                System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+                Message query = new Message(data);
+                InetSocketAddress client = (InetSocketAddress) packet.getSocketAddress();
+                queries.add(query);
+                clients.add(client);
+                responder.respond(this, query, client);
+            } catch (IOException e) {
+                // 关闭时退出
+            }
+        }
+    }
+
+    void send(Message response, InetSocketAddress client) throws IOException {
+        byte[] wire = response.toWire();
+        socket.send(new DatagramPacket(wire, wire.length, client));
+    }
+
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    List<Message> getQueries() {
+        return queries;
+    }
+
+    List<InetSocketAddress> getClients() {
+        return clients;
+    }
+
+    void close() throws InterruptedException {
+        socket.close();
+        thread.join();
+    }
+
+    /**
+     * 针对query的响应，ID和问题与query相同
+     *
+     * @param query
+     * @param answers
+     * @return response
+     */
+    static Message reply(Message query, Record... answers) {
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.RA);
+        response.addRecord(query.getQuestion(), Section.QUESTION);
+        for (Record answer : answers) {
+            response.addRecord(answer, Section.ANSWER);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,155 @@
+package com.zhangyx.vmail.ssl;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SniKeyManagerTest {
+
+    private static final String PASSWORD = "secret";
+
+    private static KeyStore keyStore;
+    private static SSLContext server;
+    private static SSLContext client;
+
+    @BeforeClass
+    public static void setUpContexts() throws Exception {
+        keyStore = keyStore("mail", "mail.example.com", "mx", "mx.example.org", "wild", "*.example.net");
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+        kmf.init(keyStore, PASSWORD.toCharArray());
+        KeyManager[] keyManagers = kmf.getKeyManagers();
+        for (int i = 0; i < keyManagers.length; i++) {
+            keyManagers[i] = SniKeyManager.create(keyStore, (X509ExtendedKeyManager) keyManagers[i]);
+        }
+        server = SSLContext.getInstance("TLS");
+        server.init(keyManagers, null, null);
+
+        // 客户端信任keystore中所有的自签名证书
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        client = SSLContext.getInstance("TLS");
+        client.init(null, tmf.getTrustManagers(), null);
+    }
+
+    // 用keytool生成每个alias一张RSA自签名证书的keystore，参数为alias和主机名交替
+    private static KeyStore keyStore(String... aliasAndHosts) throws Exception {
+        File file = File.createTempFile("vmail-test", ".jks");
+        file.delete();
+        try {
+            File keytool = new File(System.getProperty("java.home"), "bin" + File.separator + "keytool");
+            for (int i = 0; i < aliasAndHosts.length; i += 2) {
+                List<String> command = Arrays.asList(keytool.getPath(), "-genkeypair", "-keystore", file.getPath(),
+                        "-storetype", "JKS", "-storepass", PASSWORD, "-keypass", PASSWORD, "-alias", aliasAndHosts[i],
+                        "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+                        "-dname", "CN=" + aliasAndHosts[i + 1], "-ext", "SAN=dns:" + aliasAndHosts[i + 1]);
+                Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+                if (!process.waitFor(60, TimeUnit.SECONDS) || process.exitValue() != 0) {
+                    throw new IOException("keytool failed for " + aliasAndHosts[i]);
+                }
+            }
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            InputStream in = new FileInputStream(file);
+            try {
+                keyStore.load(in, PASSWORD.toCharArray());
+            } finally {
+                in.close();
+            }
+            return keyStore;
+        } finally {
+            file.delete();
+        }
+    }
+
+    // 在内存中完成握手，返回客户端看到的服务器证书
+    private static X509Certificate handshake(String host) throws Exception {
+        SSLEngine clientEngine = host == null ? client.createSSLEngine() : client.createSSLEngine(host, 25);
+        clientEngine.setUseClientMode(true);
+        SSLEngine serverEngine = server.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        SSLSession session = clientEngine.getSession();
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer clientToServer = ByteBuffer.allocate(session.getPacketBufferSize());
+        ByteBuffer serverToClient = ByteBuffer.allocate(session.getPacketBufferSize());
+        ByteBuffer clientApp = ByteBuffer.allocate(session.getApplicationBufferSize());
+        ByteBuffer serverApp = ByteBuffer.allocate(session.getApplicationBufferSize());
+        clientEngine.beginHandshake();
+        serverEngine.beginHandshake();
+        for (int i = 0; i < 1000 && !(finished(clientEngine) && finished(serverEngine)); i++) {
+            clientEngine.wrap(empty, clientToServer);
+            runTasks(clientEngine);
+            serverEngine.wrap(empty, serverToClient);
+            runTasks(serverEngine);
+            clientToServer.flip();
+            serverToClient.flip();
+            serverEngine.unwrap(clientToServer, serverApp);
+            runTasks(serverEngine);
+            clientEngine.unwrap(serverToClient, clientApp);
+            runTasks(clientEngine);
+            clientToServer.compact();
+            serverToClient.compact();
+        }
+        assertTrue(finished(clientEngine) && finished(serverEngine));
+        return (X509Certificate) clientEngine.getSession().getPeerCertificates()[0];
+    }
+
+    private static boolean finished(SSLEngine engine) {
+        HandshakeStatus status = engine.getHandshakeStatus();
+        return status == HandshakeStatus.NOT_HANDSHAKING || status == HandshakeStatus.FINISHED;
+    }
+
+    private static void runTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static String alias(X509Certificate certificate) throws Exception {
+        return keyStore.getCertificateAlias(certificate);
+    }
+
+    @Test
+    public void exactNameSelectsItsCertificate() throws Exception {
+        assertEquals("mx", alias(handshake("mx.example.org")));
+        assertEquals("mail", alias(handshake("mail.example.com")));
+    }
+
+    @Test
+    public void namesAreCaseInsensitive() throws Exception {
+        assertEquals("mx", alias(handshake("MX.Example.ORG")));
+    }
+
+    @Test
+    public void wildcardCoversOneLabel() throws Exception {
+        assertEquals("wild", alias(handshake("smtp.example.net")));
+    }
+
+    @Test
+    public void unknownOrMissingNameFallsBackToTheDelegate() throws Exception {
+        assertNotNull(alias(handshake("unknown.example.com")));
+        assertNotNull(alias(handshake("a.b.example.net")));
+        assertNotNull(alias(handshake(null)));
+    }
+}
@@ -0,0 +1,122 @@
+package com.zhangyx.vmail.protocols.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 类型安全的session attachment key
+ * <p>
+ * 每个名字在第一次创建时分配一个小整数下标，session按下标把值存放在数组中，
+ * 读写时不需要计算字符串的hash。key应该作为常量在类初始化时创建，同名的key共享同一个下标，
+ * 所以{@link ProtocolSession#setAttachment(String, Object, ProtocolSession.State)}和类型化的API可以访问同一个值
+ * <p>
+ * 下标是全局的并且永远不会回收，每个新名字都会让所有session的attachment数组变长。
+ * 名字必须是有限的常量，不能包含收件人、消息ID等运行时数据，这类数据应该放在一个常量key对应的Map中
+ *
+ * @param <T> 值的类型
+ */
+public final class AttachmentKey<T> {
+
+    private static final ConcurrentHashMap<String, AttachmentKey<?>> KEYS = new ConcurrentHashMap<String, AttachmentKey<?>>();
+    // 字符串API使用的key
+    private static final ConcurrentHashMap<String, AttachmentKey<Object>> UNTYPED = new ConcurrentHashMap<String, AttachmentKey<Object>>();
+    private static final Object LOCK = new Object();
+    // 下标 -> 名字
+    private static volatile String[] names = new String[0];
+
+    private final String name;
+    private final Class<T> type;
+    private final int index;
+
+    private AttachmentKey(String name, Class<T> type, int index) {
+        this.name = name;
+        this.type = type;
+        this.index = index;
+    }
+
+    /**
+     * 创建key，同名的key使用同一个下标
+     *
+     * @param name
+     * @param type
+     * @param <T>
+     * @return key
+     */
+    public static <T> AttachmentKey<T> of(String name, Class<T> type) {
+        if (name == null || type == null) {
+            throw new NullPointerException("name and type must not be null");
+        }
+        return new AttachmentKey<T>(name, type, indexOf(name));
+    }
+
+    /**
+     * 字符串API使用的key，同一个名字返回同一个实例。第一次出现的名字会分配新的全局下标，name必须是常量
+     *
+     * @param name
+     * @return key
+     */
+    static AttachmentKey<Object> forName(String name) {
+        AttachmentKey<Object> key = UNTYPED.get(name);
+        if (key == null) {
+            key = of(name, Object.class);
+            AttachmentKey<Object> old = UNTYPED.putIfAbsent(name, key);
+            if (old != null) {
+                key = old;
+            }
+        }
+        return key;
+    }
+
+    private static int indexOf(String name) {
+        AttachmentKey<?> key = KEYS.get(name);
+        if (key != null) {
+            return key.index;
+        }
+        synchronized (LOCK) {
+            key = KEYS.get(name);
+            if (key != null) {
+                return key.index;
+            }
+            String[] current = names;
+            String[] grown = new String[current.length + 1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            grown[current.length] = name;
+            KEYS.put(name, new AttachmentKey<Object>(name, Object.class, current.length));
+            names = grown;
+            return current.length;
+        }
+    }
+
+    /**
+     * 已经分配的下标数量
+     *
+     * @return count
+     */
+    static int count() {
+        return names.length;
+    }
+
+    static String nameOf(int index) {
+        return names[index];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    T cast(Object value) {
+        return type.cast(value);
+    }
+
+    @Override
+    public String toString() {
+        return "AttachmentKey[" + name + "]";
+    }
+}
@@ -0,0 +1,90 @@
+package com.zhangyx.vmail.protocols.api;
+
+import io.netty.util.Recycler;
+
+/**
+ * {@link Request}的基本实现
+ * <p>
+ * 每条命令都会创建Request，热路径上使用{@link #newInstance(String, String)}从对象池获取，
+ * 命令处理完成后调用{@link #recycle()}放回
+ */
+public class BaseRequest implements Request {
+
+    private static final Recycler<BaseRequest> RECYCLER = new Recycler<BaseRequest>() {
+        @Override
+        protected BaseRequest newObject(Handle<BaseRequest> handle) {
+            return new BaseRequest(handle);
+        }
+    };
+
+    private final Recycler.Handle<BaseRequest> handle;
+    private String command;
+    private String argument;
+    private boolean recycled;
+
+    public BaseRequest(String command, String argument) {
+        this.handle = null;
+        this.command = command;
+        this.argument = argument;
+    }
+
+    private BaseRequest(Recycler.Handle<BaseRequest> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * 从对象池获取Request
+     *
+     * @param command
+     * @param argument
+     * @return request
+     */
+    public static BaseRequest newInstance(String command, String argument) {
+        BaseRequest request = RECYCLER.get();
+        request.command = command;
+        request.argument = argument;
+        request.recycled = false;
+        return request;
+    }
+
+    /**
+     * 放回对象池，之后不能再使用该Request
+     */
+    public void recycle() {
+        if (recycled) {
+            if (ProtocolSessionImpl.DEBUG) {
+                throw new IllegalStateException("Request recycled twice");
+            }
+            return;
+        }
+        recycled = true;
+        command = null;
+        argument = null;
+        if (handle != null) {
+            handle.recycle(this);
+        }
+    }
+
+    private void ensureNotRecycled() {
+        if (ProtocolSessionImpl.DEBUG && recycled) {
+            throw new IllegalStateException("Request used after recycle");
+        }
+    }
+
+    @Override
+    public String getArgument() {
+        ensureNotRecycled();
+        return argument;
+    }
+
+    @Override
+    public String getCommand() {
+        ensureNotRecycled();
+        return command;
+    }
+
+    @Override
+    public String toString() {
+        return argument == null ? command : command + " " + argument;
+    }
+}
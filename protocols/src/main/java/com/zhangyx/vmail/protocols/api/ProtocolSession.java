@@ -36,7 +36,9 @@ public interface ProtocolSession {
     }
 
     /**
-     * Store the given value with the given key in the specified {@link State}. If you want to remove a value you need to use <code>null</code> as value
+     * Store the given value with the given key in the specified {@link State}. If you want to remove a value you need to use <code>null</code> as value.
+     * The key is mapped to a global {@link AttachmentKey} which is never released, so it must be a constant and not
+     * built from runtime data
      *
      * @param key   the key under which the value should get stored
      * @param value the value which will get stored under the given key or <code>null</code> if you want to remove any value which is stored under the key
@@ -54,6 +56,25 @@ public interface ProtocolSession {
      */
     Object getAttachment(String key, State state);
 
+    /**
+     * Store the given value with the given {@link AttachmentKey} in the specified {@link State}. Use <code>null</code> as value to remove it
+     *
+     * @param key   the key under which the value should get stored
+     * @param value the value or <code>null</code>
+     * @param state the {@link State} to which the mapping belongs
+     * @return oldValue the value which was stored before for this key or <code>null</code> if non was stored before.
+     */
+    <T> T setAttachment(AttachmentKey<T> key, T value, State state);
+
+    /**
+     * Return the value which is stored for the given {@link AttachmentKey} in the specified {@link State} or <code>null</code>
+     *
+     * @param key   the key under which the value should be searched
+     * @param state the {@link State} in which the value was stored for the key
+     * @return value the stored value for the key
+     */
+    <T> T getAttachment(AttachmentKey<T> key, State state);
+
 
     /**
      * Return Map which can be used to store objects within a session
@@ -185,4 +206,10 @@ public interface ProtocolSession {
      */
     int getPushedLineHandlerCount();
 
+    /**
+     * Mark the {@link Response} of the current command as the end of a command group (RFC 2920), so it
+     * gets flushed to the peer without waiting for the rest of the pipelined commands
+     */
+    void endCommandGroup();
+
 }
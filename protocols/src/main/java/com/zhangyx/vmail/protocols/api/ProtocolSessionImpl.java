@@ -0,0 +1,416 @@
+package com.zhangyx.vmail.protocols.api;
+
+import com.zhangyx.vmail.protocols.api.handler.LineHandler;
+import io.netty.util.Recycler;
+import io.netty.util.internal.SystemPropertyUtil;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Basic implementation of {@link ProtocolSession}
+ * <p>
+ * attachment按{@link AttachmentKey}的下标存放在每个{@link State}各自的数组中，第一次写入时才分配，
+ * {@link #resetState()}只清空Transaction数组，不重新分配
+ * <p>
+ * 协议相关的response({@link #newLineTooLongResponse()}、{@link #newFatalErrorResponse()})由子类实现。
+ * 子类使用自己的{@link Recycler}池化时，session在连接关闭后由{@link #recycle()}放回对象池，
+ * attachment数组保留下来给下一个连接使用。-Dvmail.recycler.debug=true时回收后再访问session会抛出异常。
+ * session被其他连接重用后debug检查无法发现旧的引用，异步持有session的代码应该保存{@link #getGeneration()}，
+ * 使用前通过{@link #isCurrent(int)}或{@link #ensureCurrent(int)}检查
+ */
+public abstract class ProtocolSessionImpl implements ProtocolSession {
+
+    static final boolean DEBUG = SystemPropertyUtil.getBoolean("vmail.recycler.debug", false);
+
+    private static final Charset CHARSET = Charset.forName("US-ASCII");
+    private static final String DELIMITER = "\r\n";
+    private static final Object[] EMPTY = new Object[0];
+
+    private final Recycler.Handle<ProtocolSessionImpl> handle;
+    private ProtocolTransport transport;
+    private ProtocolConfiguration config;
+    private Object[] connectionAttachments = EMPTY;
+    private Object[] transactionAttachments = EMPTY;
+    private String user;
+    private boolean recycled;
+    // 每次回收时递增
+    private volatile int generation;
+
+    /**
+     * 不池化的session
+     *
+     * @param transport
+     * @param config
+     */
+    protected ProtocolSessionImpl(ProtocolTransport transport, ProtocolConfiguration config) {
+        this.handle = null;
+        init(transport, config);
+    }
+
+    /**
+     * 子类使用自己的{@link Recycler}池化时调用
+     *
+     * @param handle
+     */
+    @SuppressWarnings("unchecked")
+    protected ProtocolSessionImpl(Recycler.Handle<? extends ProtocolSessionImpl> handle) {
+        this.handle = (Recycler.Handle<ProtocolSessionImpl>) handle;
+        this.recycled = true;
+    }
+
+    /**
+     * 绑定到新的连接，池化的子类从对象池取出后调用
+     *
+     * @param transport
+     * @param config
+     */
+    protected void init(ProtocolTransport transport, ProtocolConfiguration config) {
+        this.transport = transport;
+        this.config = config;
+        this.recycled = false;
+    }
+
+    /**
+     * 连接关闭后清空session并放回对象池，之后不能再使用该session；不是从对象池创建的session只会被清空
+     */
+    public void recycle() {
+        if (recycled) {
+            if (DEBUG) {
+                throw new IllegalStateException("Session recycled twice");
+            }
+            return;
+        }
+        recycled = true;
+        generation++;
+        Arrays.fill(connectionAttachments, null);
+        Arrays.fill(transactionAttachments, null);
+        user = null;
+        transport = null;
+        config = null;
+        onRecycle();
+        if (handle != null) {
+            handle.recycle(this);
+        }
+    }
+
+    /**
+     * 子类在这里清空自己的字段
+     */
+    protected void onRecycle() {
+    }
+
+    /**
+     * 当前的代数，session每次回收后都会改变
+     *
+     * @return generation
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * 获取generation之后session是否还没有被回收
+     *
+     * @param generation 之前{@link #getGeneration()}的返回值
+     * @return current
+     */
+    public boolean isCurrent(int generation) {
+        return this.generation == generation;
+    }
+
+    /**
+     * 获取generation之后session已经被回收(包括已经被其他连接重用)时抛出异常，不受debug开关影响
+     *
+     * @param generation 之前{@link #getGeneration()}的返回值
+     */
+    public void ensureCurrent(int generation) {
+        if (this.generation != generation) {
+            throw new IllegalStateException("Session was recycled");
+        }
+    }
+
+    // debug模式下检查回收后的访问
+    protected final void ensureNotRecycled() {
+        if (DEBUG && recycled) {
+            throw new IllegalStateException("Session used after recycle");
+        }
+    }
+
+    @Override
+    public Object setAttachment(String key, Object value, State state) {
+        return setAttachment(AttachmentKey.forName(key), value, state);
+    }
+
+    @Override
+    public Object getAttachment(String key, State state) {
+        return getAttachment(AttachmentKey.forName(key), state);
+    }
+
+    @Override
+    public <T> T setAttachment(AttachmentKey<T> key, T value, State state) {
+        ensureNotRecycled();
+        int index = key.getIndex();
+        Object[] attachments = attachments(state);
+        if (index >= attachments.length) {
+            if (value == null) {
+                return null;
+            }
+            attachments = grow(state, index);
+        }
+        Object old = attachments[index];
+        attachments[index] = value;
+        return key.cast(old);
+    }
+
+    @Override
+    public <T> T getAttachment(AttachmentKey<T> key, State state) {
+        ensureNotRecycled();
+        int index = key.getIndex();
+        Object[] attachments = attachments(state);
+        return index < attachments.length ? key.cast(attachments[index]) : null;
+    }
+
+    private Object[] attachments(State state) {
+        return state == State.Connection ? connectionAttachments : transactionAttachments;
+    }
+
+    // 按当前已分配的key数量扩容，之后创建的key才会触发再次扩容
+    private Object[] grow(State state, int index) {
+        Object[] grown = Arrays.copyOf(attachments(state), Math.max(index + 1, AttachmentKey.count()));
+        if (state == State.Connection) {
+            connectionAttachments = grown;
+        } else {
+            transactionAttachments = grown;
+        }
+        return grown;
+    }
+
+    @Deprecated
+    @Override
+    public Map<String, Object> getState() {
+        return new AttachmentMap(State.Transaction);
+    }
+
+    @Deprecated
+    @Override
+    public Map<String, Object> getConnectionState() {
+        return new AttachmentMap(State.Connection);
+    }
+
+    @Override
+    public void resetState() {
+        ensureNotRecycled();
+        Arrays.fill(transactionAttachments, null);
+    }
+
+    /**
+     * 是否有{@link State#Transaction}的attachment，比如MAIL FROM之后、DATA完成之前保存的发件人和收件人
+     *
+     * @return inTransaction
+     */
+    public boolean hasTransactionState() {
+        ensureNotRecycled();
+        for (Object value : transactionAttachments) {
+            if (value != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        ensureNotRecycled();
+        return transport.getRemoteAddress();
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        ensureNotRecycled();
+        return transport.getLocalAddress();
+    }
+
+    @Override
+    public String getSessionID() {
+        ensureNotRecycled();
+        return transport.getId();
+    }
+
+    @Override
+    public String getUser() {
+        return user;
+    }
+
+    @Override
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    @Override
+    public boolean isStartTLSSupported() {
+        ensureNotRecycled();
+        return transport.isStartTLSSupported();
+    }
+
+    @Override
+    public boolean isTLSStarted() {
+        ensureNotRecycled();
+        return transport.isTLSStarted();
+    }
+
+    @Override
+    public ProtocolConfiguration getConfiguration() {
+        return config;
+    }
+
+    @Override
+    public Charset getCharset() {
+        return CHARSET;
+    }
+
+    @Override
+    public String getLineDelimiter() {
+        return DELIMITER;
+    }
+
+    @Override
+    public <T extends ProtocolSession> void pushLineHandler(LineHandler<T> overrideCommandHandler) {
+        ensureNotRecycled();
+        transport.pushLineHandler(overrideCommandHandler, this);
+    }
+
+    @Override
+    public void popLineHandler() {
+        transport.popLineHandler();
+    }
+
+    @Override
+    public int getPushedLineHandlerCount() {
+        return transport.getPushedLineHandlerCount();
+    }
+
+    @Override
+    public void endCommandGroup() {
+        ensureNotRecycled();
+        transport.endCommandGroup();
+    }
+
+    /**
+     * Return the {@link ProtocolTransport} of this session
+     *
+     * @return transport
+     */
+    public ProtocolTransport getProtocolTransport() {
+        return transport;
+    }
+
+    /**
+     * 兼容旧的Map API，直接读写session中的attachment数组
+     */
+    private final class AttachmentMap extends AbstractMap<String, Object> {
+
+        private final State state;
+
+        AttachmentMap(State state) {
+            this.state = state;
+        }
+
+        @Override
+        public Object get(Object key) {
+            return key instanceof String ? getAttachment((String) key, state) : null;
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            return setAttachment(key, value, state);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            return key instanceof String ? setAttachment((String) key, null, state) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public void clear() {
+            Arrays.fill(attachments(state), null);
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new AttachmentIterator(state);
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (Object value : attachments(state)) {
+                        if (value != null) {
+                            size++;
+                        }
+                    }
+                    return size;
+                }
+            };
+        }
+    }
+
+    private final class AttachmentIterator implements Iterator<Map.Entry<String, Object>> {
+
+        private final State state;
+        private int next = -1;
+        private int last = -1;
+
+        AttachmentIterator(State state) {
+            this.state = state;
+            advance();
+        }
+
+        private void advance() {
+            Object[] attachments = attachments(state);
+            do {
+                next++;
+            } while (next < attachments.length && attachments[next] == null);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < attachments(state).length;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            Map.Entry<String, Object> entry = new AbstractMap.SimpleImmutableEntry<String, Object>(AttachmentKey.nameOf(last), attachments(state)[last]);
+            advance();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            attachments(state)[last] = null;
+            last = -1;
+        }
+    }
+}
@@ -77,6 +77,12 @@ public interface ProtocolTransport {
      */
     void writeResponse(Response response, ProtocolSession session);
 
+    /**
+     * Mark the {@link Response} of the current command as the end of a command group (RFC 2920).
+     * It will get flushed as soon as it is written instead of waiting for the rest of the pipelined commands
+     */
+    void endCommandGroup();
+
     /**
      * Pop a {@link LineHandler} of the stack
      */
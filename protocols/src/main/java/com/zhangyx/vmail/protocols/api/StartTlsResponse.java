@@ -0,0 +1,14 @@
+package com.zhangyx.vmail.protocols.api;
+
+/**
+ * STARTTLS命令的response，transport写出该response后立即开始TLS握手
+ */
+public interface StartTlsResponse extends Response {
+
+    /**
+     * 暂时无法开始握手(比如握手线程池过载)时代替本response写出，为null时直接关闭连接
+     *
+     * @return response
+     */
+    Response getTemporaryFailureResponse();
+}
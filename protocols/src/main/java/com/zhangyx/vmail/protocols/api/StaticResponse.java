@@ -0,0 +1,58 @@
+package com.zhangyx.vmail.protocols.api;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 不可变的{@link Response}，适合作为常量复用，可以在{@link com.zhangyx.vmail.protocols.handler.ResponseEncoder}中预先编码
+ */
+public class StaticResponse implements Response {
+
+    private final String retCode;
+    private final List<CharSequence> lines;
+    private final boolean endSession;
+
+    /**
+     * 单行response，内容为 retCode + " " + description
+     *
+     * @param retCode
+     * @param description
+     */
+    public StaticResponse(String retCode, CharSequence description) {
+        this(retCode, false, retCode + " " + description);
+    }
+
+    /**
+     * 多行response，lines是已经格式化好的完整行(不包含行分隔符)
+     *
+     * @param retCode
+     * @param endSession
+     * @param lines
+     */
+    public StaticResponse(String retCode, boolean endSession, CharSequence... lines) {
+        this.retCode = retCode;
+        this.endSession = endSession;
+        this.lines = Collections.unmodifiableList(Arrays.asList(lines));
+    }
+
+    @Override
+    public String getRetCode() {
+        return retCode;
+    }
+
+    @Override
+    public List<CharSequence> getLines() {
+        return lines;
+    }
+
+    @Override
+    public boolean isEndSession() {
+        return endSession;
+    }
+
+    @Override
+    public String toString() {
+        return lines.toString();
+    }
+}
@@ -0,0 +1,9 @@
+package com.zhangyx.vmail.protocols.api.handler;
+
+/**
+ * 标记接口，实现该接口的{@link LineHandler}或{@link CommandHandler}可能阻塞(DNS查询、写spool、认证等)，
+ * 配置了handler executor时不会在I/O event loop中调用，同一个session的命令仍然保持顺序。
+ * CommandHandler由{@link CommandDispatcher#isBlocking(java.nio.ByteBuffer)}按命令判断
+ */
+public interface BlockingHandler {
+}
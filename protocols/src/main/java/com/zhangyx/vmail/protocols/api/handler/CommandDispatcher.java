@@ -0,0 +1,163 @@
+package com.zhangyx.vmail.protocols.api.handler;
+
+import com.zhangyx.vmail.protocols.api.BaseRequest;
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.Response;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 把命令行分发给{@link CommandHandler}的{@link LineHandler}
+ * <p>
+ * 创建时从chain中所有的{@link CommandHandler}构建不区分大小写的字节字典树，直接在收到的行上查找命令，
+ * 不需要先把命令名转成大写字符串。同一个命令有多个handler时按注册顺序调用，直到有一个返回response。
+ * 未知命令返回预先编码的response
+ * <p>
+ * handler在创建时复制，之后chain中的变化不会反映到已经创建的实例中。
+ * 调用{@link ProtocolHandlerChainImpl#setHandlers(List)}时需要用新的handler列表重新创建dispatcher并放入新列表
+ * <p>
+ * 结束命令组(RFC 2920)的命令返回response时调用{@link ProtocolSession#endCommandGroup()}，让transport立即flush
+ * <p>
+ * dispatcher本身不阻塞，命令的handler中有{@link BlockingHandler}时由{@link #isBlocking(ByteBuffer)}告诉调用方
+ * 把这一行交给handler executor执行
+ */
+public class CommandDispatcher<Session extends ProtocolSession> implements LineHandler<Session> {
+
+    /**
+     * 同一个命令的所有handler
+     */
+    private static final class Command {
+
+        // 注册时的大写命令名，所有Request共用
+        private final String name;
+        private final List<CommandHandler<?>> handlers = new ArrayList<CommandHandler<?>>(1);
+        private CommandHandler<?>[] array;
+        private boolean endsGroup;
+        // 任何一个handler是BlockingHandler
+        private boolean blocking;
+
+        Command(String name) {
+            this.name = name;
+        }
+    }
+
+    private final CommandTrie<Command> commands = new CommandTrie<Command>();
+    private final Response unknownCommandResponse;
+
+    /**
+     * @param chain
+     * @param unknownCommandResponse 未知命令的response，应该是可以被ResponseEncoder预先编码的常量
+     */
+    public CommandDispatcher(ProtocolHandlerLookup chain, Response unknownCommandResponse) {
+        this(chain, unknownCommandResponse, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param chain
+     * @param unknownCommandResponse 未知命令的response，应该是可以被ResponseEncoder预先编码的常量
+     * @param groupEndingCommands    结束命令组的命令名，不区分大小写
+     */
+    @SuppressWarnings("rawtypes")
+    public CommandDispatcher(ProtocolHandlerLookup chain, Response unknownCommandResponse, Collection<String> groupEndingCommands) {
+        this.unknownCommandResponse = unknownCommandResponse;
+        Map<String, Command> byName = new LinkedHashMap<String, Command>();
+        for (CommandHandler handler : chain.getHandlers(CommandHandler.class)) {
+            for (Object implCommand : handler.getImplCommands()) {
+                String name = implCommand.toString().toUpperCase(Locale.US);
+                Command command = byName.get(name);
+                if (command == null) {
+                    command = new Command(name);
+                    byName.put(name, command);
+                }
+                command.handlers.add(handler);
+                command.blocking |= handler instanceof BlockingHandler;
+            }
+        }
+        for (String groupEndingCommand : groupEndingCommands) {
+            Command command = byName.get(groupEndingCommand.toUpperCase(Locale.US));
+            if (command != null) {
+                command.endsGroup = true;
+            }
+        }
+        for (Command command : byName.values()) {
+            command.array = command.handlers.toArray(new CommandHandler<?>[command.handlers.size()]);
+            commands.put(command.name, command);
+        }
+    }
+
+    /**
+     * 行中的命令是否由{@link BlockingHandler}处理，未知命令返回false
+     *
+     * @param buffer 不修改position
+     * @return blocking
+     */
+    public boolean isBlocking(ByteBuffer buffer) {
+        Command command = commands.find(buffer);
+        return command != null && command.blocking;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Response onLine(Session session, ByteBuffer buffer) {
+        Command command = commands.find(buffer);
+        if (command == null) {
+            return unknownCommandResponse;
+        }
+        BaseRequest request = BaseRequest.newInstance(command.name, parseArgument(buffer, buffer.position() + command.name.length(), session.getCharset()));
+        try {
+            for (CommandHandler<?> handler : command.array) {
+                Response response = ((CommandHandler<Session>) handler).onCommand(session, request);
+                if (response != null) {
+                    if (command.endsGroup) {
+                        session.endCommandGroup();
+                    }
+                    return response;
+                }
+            }
+            return null;
+        } finally {
+            request.recycle();
+        }
+    }
+
+    // 命令名之后的参数，去掉首尾空白和行尾的CRLF，没有参数时返回null
+    private static String parseArgument(ByteBuffer buffer, int start, Charset charset) {
+        int end = buffer.limit();
+        while (end > start && isWhitespace(buffer.get(end - 1))) {
+            end--;
+        }
+        while (start < end && isWhitespace(buffer.get(start))) {
+            start++;
+        }
+        if (start >= end) {
+            return null;
+        }
+        byte[] bytes = new byte[end - start];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(start);
+        duplicate.get(bytes);
+        return new String(bytes, charset);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    @Override
+    public void init(Configuration config) throws ConfigurationException {
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,29 @@
+package com.zhangyx.vmail.protocols.api.handler;
+
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.Request;
+import com.zhangyx.vmail.protocols.api.Response;
+
+import java.util.Collection;
+
+/**
+ * 处理客户端命令的handler，由{@link CommandDispatcher}按命令名分发
+ */
+public interface CommandHandler<Session extends ProtocolSession> extends ProtocolHandler {
+
+    /**
+     * 处理命令
+     *
+     * @param session not null
+     * @param request not null，方法返回后会被回收，不要保存引用
+     * @return response or null
+     */
+    Response onCommand(Session session, Request request);
+
+    /**
+     * 返回该handler处理的命令名，不区分大小写
+     *
+     * @return commands
+     */
+    Collection<String> getImplCommands();
+}
@@ -0,0 +1,89 @@
+package com.zhangyx.vmail.protocols.api.handler;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * 不区分大小写的命令名字典树，直接在收到的字节上查找，不创建字符串
+ * <p>
+ * 构建完成后只读，可以被多个线程共享
+ *
+ * @param <T> 命令对应的值
+ */
+final class CommandTrie<T> {
+
+    // 命令名只包含ASCII字符
+    private static final int WIDTH = 128;
+
+    private static final class Node {
+        Node[] children;
+        // 非null时表示这里是一个命令的结尾
+        Object value;
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * 加入命令
+     *
+     * @param command 命令名，不区分大小写
+     * @param value
+     * @return 已经存在的值
+     */
+    @SuppressWarnings("unchecked")
+    T put(String command, T value) {
+        String upper = command.toUpperCase(Locale.US);
+        Node node = root;
+        for (int i = 0; i < upper.length(); i++) {
+            char c = upper.charAt(i);
+            if (c >= WIDTH) {
+                throw new IllegalArgumentException("Command must be ASCII: " + command);
+            }
+            if (node.children == null) {
+                node.children = new Node[WIDTH];
+            }
+            Node child = node.children[c];
+            if (child == null) {
+                child = new Node();
+                node.children[c] = child;
+            }
+            node = child;
+        }
+        Object old = node.value;
+        node.value = value;
+        return (T) old;
+    }
+
+    /**
+     * 查找buffer中从position开始、到空格或行尾为止的命令，不修改buffer的position
+     *
+     * @param buffer
+     * @return 命令对应的值，没有匹配的命令时为null
+     */
+    @SuppressWarnings("unchecked")
+    T find(ByteBuffer buffer) {
+        Node node = root;
+        int limit = buffer.limit();
+        for (int i = buffer.position(); i < limit; i++) {
+            byte b = buffer.get(i);
+            if (b == ' ' || b == '\r' || b == '\n') {
+                break;
+            }
+            node = child(node, b);
+            if (node == null) {
+                return null;
+            }
+        }
+        return (T) node.value;
+    }
+
+    private static Node child(Node node, int c) {
+        if (c >= 'a' && c <= 'z') {
+            c -= 'a' - 'A';
+        }
+        if (node.children == null || c < 0 || c >= WIDTH) {
+            return null;
+        }
+        return node.children[c];
+    }
+}
@@ -20,21 +20,10 @@
 
 package com.zhangyx.vmail.protocols.api.handler;
 
-import java.util.LinkedList;
-
 /**
  * Chain which can be used to get all Handlers for a given Class.
  */
-public interface ProtocolHandlerChain {
-
-    /**
-     * Returns a list of handler of the requested type.
-     *
-     * @param <T>
-     * @param type the type of handler we're interested in
-     * @return a List of handlers
-     */
-    <T> LinkedList<T> getHandlers(Class<T> type);
+public interface ProtocolHandlerChain extends ProtocolHandlerLookup {
 
     /**
      * Destroy the {@link ProtocolHandlerChain}. After this call it will not be usable anymore
@@ -0,0 +1,200 @@
+package com.zhangyx.vmail.protocols.api.handler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 按注册顺序保存handler的{@link ProtocolHandlerChain}
+ * <p>
+ * handler保存在不可变的{@link Snapshot}中，每种类型的handler列表只计算一次，之后的调用不再分配内存。
+ * {@link #setHandlers(List)}在运行时原子地替换snapshot，连接通过{@link #acquire()}持有建立时的snapshot直到结束。
+ * 每个handler记录包含它的存活snapshot数(当前snapshot，以及被替换后仍有连接使用的snapshot)，
+ * 降为0时才destroy，多次替换时同一个handler出现在多个snapshot中也不会被提前destroy
+ */
+public class ProtocolHandlerChainImpl implements ProtocolHandlerChain {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProtocolHandlerChainImpl.class);
+
+    private final AtomicReference<Snapshot> current;
+    // handler -> 包含它的存活snapshot数，只在锁内访问
+    private final Map<Object, Integer> liveCounts = new IdentityHashMap<Object, Integer>();
+
+    public ProtocolHandlerChainImpl(List<?> handlers) {
+        this.current = new AtomicReference<Snapshot>(newSnapshot(handlers));
+    }
+
+    private synchronized Snapshot newSnapshot(List<?> handlers) {
+        Snapshot snapshot = new Snapshot(this, handlers);
+        for (Object handler : snapshot.distinctHandlers()) {
+            Integer count = liveCounts.get(handler);
+            liveCounts.put(handler, count == null ? 1 : count + 1);
+        }
+        return snapshot;
+    }
+
+    // snapshot被替换并且没有连接使用后调用，destroy不再被任何存活snapshot包含的handler
+    private void snapshotDied(Snapshot snapshot) {
+        List<Object> removed = new ArrayList<Object>();
+        synchronized (this) {
+            for (Object handler : snapshot.distinctHandlers()) {
+                Integer count = liveCounts.get(handler);
+                if (count == null) {
+                    // chain已经destroy
+                    continue;
+                }
+                if (count == 1) {
+                    liveCounts.remove(handler);
+                    removed.add(handler);
+                } else {
+                    liveCounts.put(handler, count - 1);
+                }
+            }
+        }
+        for (Object handler : removed) {
+            destroy(handler);
+        }
+    }
+
+    @Override
+    public <T> List<T> getHandlers(Class<T> type) {
+        return current.get().getHandlers(type);
+    }
+
+    /**
+     * 获取当前snapshot并增加引用计数，连接结束时必须调用{@link Snapshot#release()}
+     *
+     * @return snapshot
+     */
+    public Snapshot acquire() {
+        for (;;) {
+            Snapshot snapshot = current.get();
+            if (snapshot.retain()) {
+                return snapshot;
+            }
+        }
+    }
+
+    /**
+     * 替换handler，之后建立的连接使用新的handler，已有的连接继续使用原来的snapshot。
+     * {@link CommandDispatcher}等在创建时从chain复制handler的组件不会自动更新，需要用新的handler重新创建并放入列表
+     *
+     * @param handlers 新的handler列表，可以包含原来的handler实例
+     */
+    public void setHandlers(List<?> handlers) {
+        Snapshot replacement = newSnapshot(handlers);
+        Snapshot old = current.getAndSet(replacement);
+        old.retire();
+    }
+
+    /**
+     * destroy所有存活snapshot中的handler，之后仍在使用的旧snapshot结束时不会再destroy
+     */
+    @Override
+    public void destroy() {
+        List<Object> handlers;
+        synchronized (this) {
+            handlers = new ArrayList<Object>(liveCounts.keySet());
+            liveCounts.clear();
+        }
+        for (Object handler : handlers) {
+            destroy(handler);
+        }
+    }
+
+    private static void destroy(Object handler) {
+        if (handler instanceof ProtocolHandler) {
+            try {
+                ((ProtocolHandler) handler).destroy();
+            } catch (RuntimeException e) {
+                logger.warn("Unable to destroy handler " + handler, e);
+            }
+        }
+    }
+
+    /**
+     * 某一时刻的handler集合，不可修改。只能查找handler，生命周期由{@link ProtocolHandlerChainImpl}管理
+     */
+    public static final class Snapshot implements ProtocolHandlerLookup {
+
+        // 引用计数为负时表示已经被替换并且没有连接在使用
+        private static final int RETIRED = Integer.MIN_VALUE / 2;
+
+        private final ProtocolHandlerChainImpl owner;
+        private final List<Object> handlers;
+        private final ConcurrentHashMap<Class<?>, List<?>> byType = new ConcurrentHashMap<Class<?>, List<?>>();
+        // 持有该snapshot的连接数，被替换后额外减去一个基数
+        private final AtomicInteger refCount = new AtomicInteger();
+
+        Snapshot(ProtocolHandlerChainImpl owner, List<?> handlers) {
+            this.owner = owner;
+            this.handlers = Collections.unmodifiableList(new ArrayList<Object>(handlers));
+        }
+
+        // 同一个handler在列表中出现多次时只计一次
+        Collection<Object> distinctHandlers() {
+            Map<Object, Boolean> distinct = new IdentityHashMap<Object, Boolean>();
+            for (Object handler : handlers) {
+                distinct.put(handler, Boolean.TRUE);
+            }
+            return distinct.keySet();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> List<T> getHandlers(Class<T> type) {
+            List<?> list = byType.get(type);
+            if (list == null) {
+                List<T> matched = new ArrayList<T>();
+                for (Object handler : handlers) {
+                    if (type.isInstance(handler)) {
+                        matched.add(type.cast(handler));
+                    }
+                }
+                list = Collections.unmodifiableList(Arrays.asList(matched.toArray()));
+                List<?> old = byType.putIfAbsent(type, list);
+                if (old != null) {
+                    list = old;
+                }
+            }
+            return (List<T>) list;
+        }
+
+        boolean retain() {
+            for (;;) {
+                int count = refCount.get();
+                if (count < 0) {
+                    return false;
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 连接结束时调用
+         */
+        public void release() {
+            if (refCount.decrementAndGet() == RETIRED) {
+                owner.snapshotDied(this);
+            }
+        }
+
+        void retire() {
+            if (refCount.addAndGet(RETIRED) == RETIRED) {
+                owner.snapshotDied(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.zhangyx.vmail.protocols.api.handler;
+
+import java.util.List;
+
+/**
+ * 按类型查找handler的只读视图，连接持有的handler snapshot只提供查找，不能destroy
+ */
+public interface ProtocolHandlerLookup {
+
+    /**
+     * Returns a list of handler of the requested type. The list is immutable and may be shared between calls,
+     * so callers must not modify it.
+     *
+     * @param <T>
+     * @param type the type of handler we're interested in
+     * @return a List of handlers
+     */
+    <T> List<T> getHandlers(Class<T> type);
+}
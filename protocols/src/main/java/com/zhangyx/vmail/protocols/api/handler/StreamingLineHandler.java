@@ -0,0 +1,10 @@
+package com.zhangyx.vmail.protocols.api.handler;
+
+/**
+ * 标记接口，实现该接口的{@link LineHandler}接受被切成多段的长行，比如DATA阶段的正文
+ * <p>
+ * 它在push的handler栈顶时framer不限制行长，超过最大行长的行按片段交付，除最后一段外都不以行分隔符结束，
+ * handler需要自己判断片段是否是一行的开头
+ */
+public interface StreamingLineHandler {
+}
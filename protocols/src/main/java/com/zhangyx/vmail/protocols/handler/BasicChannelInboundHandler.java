@@ -0,0 +1,311 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.api.Protocol;
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.ProtocolSessionImpl;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.api.StartTlsResponse;
+import com.zhangyx.vmail.protocols.api.handler.BlockingHandler;
+import com.zhangyx.vmail.protocols.api.handler.CommandDispatcher;
+import com.zhangyx.vmail.protocols.api.handler.LineHandler;
+import com.zhangyx.vmail.protocols.api.handler.ProtocolHandlerChainImpl;
+import com.zhangyx.vmail.protocols.api.handler.ProtocolHandlerLookup;
+import com.zhangyx.vmail.ssl.Encryption;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 协议处理的核心handler，连接建立时创建session，把framer切出的每一行交给当前的{@link LineHandler}
+ * <p>
+ * 所有channel共享一个实例，状态都放在channel的attribute里。
+ * 配置了{@link HandlerExecutorGroup}时，{@link BlockingHandler}(包括{@link CommandDispatcher}为这一行找到的命令handler)在executor中执行，
+ * 一个session有未完成的executor任务时，后续的行(包括选择handler)也提交到同一个executor，保持命令顺序，
+ * response回到channel的event loop中写出。排队的行过多时由transport暂停读取
+ */
+@ChannelHandler.Sharable
+public class BasicChannelInboundHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(BasicChannelInboundHandler.class);
+
+    public static final AttributeKey<ProtocolSession> SESSION_KEY = AttributeKey.valueOf("vmail.session");
+    public static final AttributeKey<NettyProtocolTransport> TRANSPORT_KEY = AttributeKey.valueOf("vmail.transport");
+    private static final AttributeKey<Executor> EXECUTOR_KEY = AttributeKey.valueOf("vmail.executor");
+    // 连接建立时的handler chain，连接结束前不受热替换影响
+    private static final AttributeKey<ProtocolHandlerLookup> CHAIN_KEY = AttributeKey.valueOf("vmail.chain");
+
+    protected final Protocol protocol;
+    protected final SslHandlerFactory ssl;
+    protected final InFlightByteBudget budget;
+    protected final HandlerExecutorGroup executors;
+
+    public BasicChannelInboundHandler(Protocol protocol, Encryption secure) {
+        this(protocol, SslHandlerFactory.of(secure), null, null);
+    }
+
+    /**
+     * @param protocol
+     * @param ssl       为null时不支持TLS
+     * @param budget    所有连接共享的in-flight DATA预算，为null时不限制
+     * @param executors 执行{@link BlockingHandler}的executor组，为null时所有handler都在event loop中执行
+     */
+    public BasicChannelInboundHandler(Protocol protocol, SslHandlerFactory ssl, InFlightByteBudget budget, HandlerExecutorGroup executors) {
+        this.protocol = protocol;
+        this.ssl = ssl;
+        this.budget = budget;
+        this.executors = executors;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        NettyProtocolTransport transport = createTransport(ctx);
+        ProtocolSession session = protocol.newSession(transport);
+        ProtocolHandlerLookup chain = protocol.getProtocolChain();
+        if (chain instanceof ProtocolHandlerChainImpl) {
+            chain = ((ProtocolHandlerChainImpl) chain).acquire();
+        }
+        ctx.channel().attr(CHAIN_KEY).set(chain);
+        ctx.channel().attr(TRANSPORT_KEY).set(transport);
+        ctx.channel().attr(SESSION_KEY).set(session);
+        super.channelActive(ctx);
+    }
+
+    protected NettyProtocolTransport createTransport(ChannelHandlerContext ctx) {
+        return new NettyProtocolTransport(ctx.channel(), ssl, budget);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        ProtocolSession session = ctx.channel().attr(SESSION_KEY).get();
+        NettyProtocolTransport transport = ctx.channel().attr(TRANSPORT_KEY).get();
+        ProtocolHandlerLookup chain = ctx.channel().attr(CHAIN_KEY).get();
+        ByteBuf buf = (ByteBuf) msg;
+        int generation = transport.getInputGeneration();
+        if (transport.isInputDiscarded(generation)) {
+            // STARTTLS之后、TLS开始之前pipeline的明文
+            ReferenceCountUtil.release(buf);
+            return;
+        }
+        transport.beginBatch();
+        if (executors != null && (executors.isOffloadAll() || transport.getOffloadedCount() > 0
+                || isBlocking(selectLineHandler(chain, transport), buf))) {
+            offload(ctx, chain, session, transport, buf, generation);
+            return;
+        }
+        try {
+            Response response = handleLine(chain, session, transport, buf, false);
+            if (response != null) {
+                transport.writeResponse(response, session);
+            }
+        } finally {
+            ReferenceCountUtil.release(buf);
+        }
+    }
+
+    // 优先使用push的handler，否则使用chain中最后一个LineHandler
+    private static LineHandler<?> selectLineHandler(ProtocolHandlerLookup chain, NettyProtocolTransport transport) {
+        LineHandler<?> lineHandler = transport.getPushedLineHandler();
+        if (lineHandler == null) {
+            List<?> lineHandlers = chain.getHandlers(LineHandler.class);
+            if (!lineHandlers.isEmpty()) {
+                lineHandler = (LineHandler<?>) lineHandlers.get(lineHandlers.size() - 1);
+            }
+        }
+        return lineHandler;
+    }
+
+    // handler本身，或者dispatcher为这一行找到的CommandHandler可能阻塞
+    private static boolean isBlocking(LineHandler<?> lineHandler, ByteBuf buf) {
+        if (lineHandler instanceof BlockingHandler) {
+            return true;
+        }
+        return lineHandler instanceof CommandDispatcher && ((CommandDispatcher<?>) lineHandler).isBlocking(buf.nioBuffer());
+    }
+
+    // charged: 这一行排队到executor时已经占用了in-flight预算
+    @SuppressWarnings("unchecked")
+    private static Response handleLine(ProtocolHandlerLookup chain, ProtocolSession session, NettyProtocolTransport transport, ByteBuf buf, boolean charged) {
+        LineHandler<ProtocolSession> lineHandler = (LineHandler<ProtocolSession>) selectLineHandler(chain, transport);
+        if (lineHandler == null) {
+            return null;
+        }
+        if (transport.getPushedLineHandlerCount() > 0) {
+            transport.onPushedLine(buf.readableBytes(), charged);
+        }
+        // 只读视图，和ByteBuf共享内存，handler需要保留数据时必须自己拷贝
+        Response response = lineHandler.onLine(session, buf.nioBuffer().asReadOnlyBuffer());
+        if (response instanceof StartTlsResponse) {
+            // 在处理下一行之前丢弃pipeline的明文
+            transport.discardInputUntilTls();
+        }
+        return response;
+    }
+
+    // 提交到连接的串行executor中执行，结果回到event loop中写出。executor饱和时关闭连接
+    private void offload(final ChannelHandlerContext ctx, final ProtocolHandlerLookup chain, final ProtocolSession session, final NettyProtocolTransport transport, final ByteBuf buf, final int generation) {
+        final Channel channel = ctx.channel();
+        final int bytes = buf.readableBytes();
+        // 写出前检查session没有在连接关闭后被回收并分配给其他连接
+        final int sessionGeneration = session instanceof ProtocolSessionImpl ? ((ProtocolSessionImpl) session).getGeneration() : 0;
+        transport.incrementOffloaded(bytes);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                Response response = null;
+                Throwable error = null;
+                // 交给push的handler时排队占用的预算转给handler，直到handler弹出才释放
+                boolean pushed = false;
+                try {
+                    if (!transport.isInputDiscarded(generation)) {
+                        pushed = transport.getPushedLineHandlerCount() > 0;
+                        response = handleLine(chain, session, transport, buf, true);
+                    }
+                } catch (Throwable t) {
+                    error = t;
+                } finally {
+                    ReferenceCountUtil.release(buf);
+                }
+                final Response result = response;
+                final Throwable cause = error;
+                final boolean transferred = pushed;
+                channel.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        transport.decrementOffloaded(bytes, transferred);
+                        if (cause != null) {
+                            // fireExceptionCaught会跳过本handler，直接交给下一个handler
+                            handleException(ctx, cause);
+                        } else if (result != null && channel.isActive() && isCurrent(session, sessionGeneration)) {
+                            transport.writeResponse(result, session);
+                        }
+                    }
+                });
+            }
+        };
+        try {
+            getExecutor(channel).execute(task);
+        } catch (RejectedExecutionException e) {
+            // executor饱和，放弃这个连接，避免积压
+            transport.decrementOffloaded(bytes, false);
+            ReferenceCountUtil.release(buf);
+            logger.warn("Handler executor is saturated, closing session {}", session.getSessionID());
+            Response response = session.newFatalErrorResponse();
+            if (response != null) {
+                transport.writeResponse(response, session);
+            }
+            ctx.close();
+        }
+    }
+
+    private static boolean isCurrent(ProtocolSession session, int generation) {
+        return !(session instanceof ProtocolSessionImpl) || ((ProtocolSessionImpl) session).isCurrent(generation);
+    }
+
+    private void handleException(ChannelHandlerContext ctx, Throwable cause) {
+        try {
+            exceptionCaught(ctx, cause);
+        } catch (Exception e) {
+            logger.error("Unable to handle exception of channel " + ctx.channel(), e);
+            ctx.close();
+        }
+    }
+
+    private Executor getExecutor(Channel channel) {
+        Executor executor = channel.attr(EXECUTOR_KEY).get();
+        if (executor == null) {
+            executor = executors.next();
+            channel.attr(EXECUTOR_KEY).set(executor);
+        }
+        return executor;
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        NettyProtocolTransport transport = ctx.channel().attr(TRANSPORT_KEY).get();
+        if (transport != null) {
+            transport.endBatch();
+        }
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        NettyProtocolTransport transport = ctx.channel().attr(TRANSPORT_KEY).get();
+        if (transport != null) {
+            transport.writabilityChanged();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        final NettyProtocolTransport transport = ctx.channel().attr(TRANSPORT_KEY).getAndSet(null);
+        final ProtocolSession session = ctx.channel().attr(SESSION_KEY).getAndSet(null);
+        final ProtocolHandlerLookup chain = ctx.channel().attr(CHAIN_KEY).getAndSet(null);
+        Executor executor = ctx.channel().attr(EXECUTOR_KEY).getAndSet(null);
+        if (transport != null) {
+            if (executor != null) {
+                // 排在该连接未完成的任务之后。被拒绝说明该连接没有未完成的任务，直接释放
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            release(transport, session, chain);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    release(transport, session, chain);
+                }
+            } else {
+                release(transport, session, chain);
+            }
+        }
+        super.channelInactive(ctx);
+    }
+
+    // 释放line handler后把session放回对象池，并释放连接持有的handler snapshot
+    private static void release(NettyProtocolTransport transport, ProtocolSession session, ProtocolHandlerLookup chain) {
+        transport.dispose();
+        if (session instanceof ProtocolSessionImpl) {
+            ((ProtocolSessionImpl) session).recycle();
+        }
+        if (chain instanceof ProtocolHandlerChainImpl.Snapshot) {
+            ((ProtocolHandlerChainImpl.Snapshot) chain).release();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        ProtocolSession session = ctx.channel().attr(SESSION_KEY).get();
+        NettyProtocolTransport transport = ctx.channel().attr(TRANSPORT_KEY).get();
+        if (session == null) {
+            ctx.close();
+            return;
+        }
+        if (cause instanceof TooLongFrameException) {
+            Response response = session.newLineTooLongResponse();
+            if (response != null) {
+                transport.writeResponse(response, session);
+            } else {
+                ctx.close();
+            }
+            return;
+        }
+        logger.error("Unable to process request of session " + session.getSessionID(), cause);
+        Response response = session.newFatalErrorResponse();
+        if (response != null) {
+            transport.writeResponse(response, session);
+        }
+        ctx.close();
+    }
+}
@@ -0,0 +1,96 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.api.handler.LineHandler;
+import com.zhangyx.vmail.protocols.api.handler.StreamingLineHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.ByteProcessor;
+
+import java.util.List;
+
+/**
+ * 按行切分的解码器，直接在池化的{@link ByteBuf}里查找行尾
+ * <p>
+ * 输出的每一帧都是包含行分隔符的retained slice，与累积缓冲区共享内存，不做拷贝也不做字符集解码。
+ * 和原来的DelimiterBasedFrameDecoder一样，单独的LF也当作行尾处理。
+ * 行超过maxLineLength时丢弃到下一个行尾为止，并触发{@link TooLongFrameException}；
+ * 但push的{@link StreamingLineHandler}(DATA阶段)在栈顶时不限制行长，长行按maxLineLength切成片段交付
+ */
+public class CRLFFrameDecoder extends ByteToMessageDecoder {
+
+    private final int maxLineLength;
+
+    // 正在丢弃超长行的剩余部分
+    private boolean discarding;
+
+    public CRLFFrameDecoder(int maxLineLength) {
+        if (maxLineLength <= 0) {
+            throw new IllegalArgumentException("maxLineLength must be a positive integer: " + maxLineLength);
+        }
+        this.maxLineLength = maxLineLength;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf buffer, List<Object> out) throws Exception {
+        int eol = buffer.forEachByte(ByteProcessor.FIND_LF);
+        if (discarding) {
+            if (eol >= 0) {
+                buffer.readerIndex(eol + 1);
+                discarding = false;
+            } else {
+                buffer.skipBytes(buffer.readableBytes());
+            }
+            return;
+        }
+
+        if (eol >= 0) {
+            int length = eol + 1 - buffer.readerIndex();
+            if (length > maxLineLength && isStreaming(ctx)) {
+                out.add(readChunk(buffer));
+            } else if (length > maxLineLength) {
+                buffer.readerIndex(eol + 1);
+                fail(ctx, length);
+            } else {
+                out.add(buffer.readRetainedSlice(length));
+            }
+        } else if (buffer.readableBytes() > maxLineLength && isStreaming(ctx)) {
+            out.add(readChunk(buffer));
+        } else if (buffer.readableBytes() > maxLineLength) {
+            int length = buffer.readableBytes();
+            buffer.skipBytes(length);
+            discarding = true;
+            fail(ctx, length);
+        }
+    }
+
+    // 只在行超长时检查，正常的行不需要访问transport
+    private static boolean isStreaming(ChannelHandlerContext ctx) {
+        NettyProtocolTransport transport = ctx.channel().attr(BasicChannelInboundHandler.TRANSPORT_KEY).get();
+        LineHandler<?> lineHandler = transport == null ? null : transport.getPushedLineHandler();
+        return lineHandler instanceof StreamingLineHandler;
+    }
+
+    // 长行的一个片段，不在CR和LF之间切开，否则下一段开头的LF会让handler认不出CRLF
+    private ByteBuf readChunk(ByteBuf buffer) {
+        int length = maxLineLength;
+        if (length > 1 && buffer.getByte(buffer.readerIndex() + length - 1) == '\r') {
+            length--;
+        }
+        return buffer.readRetainedSlice(length);
+    }
+
+    /**
+     * 丢弃已经收到但还没有切分的数据。STARTTLS之后客户端不能继续pipeline明文命令，
+     * 缓存中剩余的数据必须丢弃，防止明文命令被注入到TLS会话中(CVE-2011-0411)
+     */
+    public void discardBufferedInput() {
+        ByteBuf buffer = internalBuffer();
+        buffer.skipBytes(buffer.readableBytes());
+    }
+
+    private void fail(ChannelHandlerContext ctx, int length) {
+        ctx.fireExceptionCaught(new TooLongFrameException("line length (" + length + ") exceeds the allowed maximum (" + maxLineLength + ")"));
+    }
+}
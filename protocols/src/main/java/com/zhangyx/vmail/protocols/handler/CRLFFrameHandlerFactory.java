@@ -0,0 +1,21 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelPipeline;
+
+/**
+ * 创建{@link CRLFFrameDecoder}，解码器有状态，每个channel一个实例
+ */
+public class CRLFFrameHandlerFactory implements ChannelHandlerFactory {
+
+    private final int maxLineLength;
+
+    public CRLFFrameHandlerFactory(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    @Override
+    public ChannelHandler create(ChannelPipeline pipeline) {
+        return new CRLFFrameDecoder(maxLineLength);
+    }
+}
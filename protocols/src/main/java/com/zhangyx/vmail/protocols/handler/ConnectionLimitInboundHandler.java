@@ -0,0 +1,153 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.api.Response;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在channelActive时限制总连接数和每个ip的连接数，0表示不限制
+ * <p>
+ * 计数全部基于CAS，不加锁。每个ip的计数器归零后从map中移除(先置为-1作为删除标记，其它线程看到后重试)，
+ * map的大小只和当前在线的ip数有关。
+ * 超过限制的连接写出预先编码的response后关闭，不会继续传播channelActive，也就不会创建session
+ */
+@ChannelHandler.Sharable
+public class ConnectionLimitInboundHandler extends ChannelInboundHandlerAdapter {
+
+    private static final AttributeKey<InetAddress> ADMITTED_KEY = AttributeKey.valueOf("vmail.connectionLimit.admitted");
+
+    private final int maxConnections;
+    private final int maxConnectionsPerIP;
+    private final Response overLimitResponse;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ConcurrentMap<InetAddress, AtomicInteger> connectionsPerIP = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+
+    /**
+     * @param maxConnections      总连接数限制，0表示不限制
+     * @param maxConnectionsPerIP 每个ip的连接数限制，0表示不限制
+     * @param overLimitResponse   超过限制时写出的response，为null时直接关闭
+     */
+    public ConnectionLimitInboundHandler(int maxConnections, int maxConnectionsPerIP, Response overLimitResponse) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerIP = maxConnectionsPerIP;
+        this.overLimitResponse = overLimitResponse;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        Channel channel = ctx.channel();
+        InetAddress address = ((InetSocketAddress) channel.remoteAddress()).getAddress();
+        if (!acquire(address)) {
+            // 不再读取任何数据，写完response后关闭
+            channel.config().setAutoRead(false);
+            if (overLimitResponse != null) {
+                channel.writeAndFlush(overLimitResponse).addListener(ChannelFutureListener.CLOSE);
+            } else {
+                channel.close();
+            }
+            return;
+        }
+        channel.attr(ADMITTED_KEY).set(address);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        InetAddress address = ctx.channel().attr(ADMITTED_KEY).getAndSet(null);
+        if (address != null) {
+            release(address);
+        }
+        super.channelInactive(ctx);
+    }
+
+    private boolean acquire(InetAddress address) {
+        if (maxConnections > 0 && !increment(connections, maxConnections)) {
+            return false;
+        }
+        if (maxConnectionsPerIP > 0 && !acquirePerIP(address)) {
+            if (maxConnections > 0) {
+                connections.decrementAndGet();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private boolean acquirePerIP(InetAddress address) {
+        for (;;) {
+            AtomicInteger counter = connectionsPerIP.get(address);
+            if (counter == null) {
+                AtomicInteger created = new AtomicInteger();
+                counter = connectionsPerIP.putIfAbsent(address, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            int current = counter.get();
+            if (current < 0) {
+                // 计数器正在被移除，帮忙移除后重试
+                connectionsPerIP.remove(address, counter);
+                continue;
+            }
+            if (current >= maxConnectionsPerIP) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release(InetAddress address) {
+        if (maxConnections > 0) {
+            connections.decrementAndGet();
+        }
+        if (maxConnectionsPerIP > 0) {
+            AtomicInteger counter = connectionsPerIP.get(address);
+            if (counter != null && counter.decrementAndGet() == 0 && counter.compareAndSet(0, -1)) {
+                connectionsPerIP.remove(address, counter);
+            }
+        }
+    }
+
+    private static boolean increment(AtomicInteger counter, int max) {
+        for (;;) {
+            int current = counter.get();
+            if (current >= max) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 当前admitted的连接数，未设置总连接数限制时为0
+     *
+     * @return connections
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * 当前有连接的ip数
+     *
+     * @return ips
+     */
+    public int getTrackedIPCount() {
+        return connectionsPerIP.size();
+    }
+}
@@ -0,0 +1,29 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 执行阻塞handler的executor组
+ */
+public interface HandlerExecutorGroup {
+
+    /**
+     * 返回一个按提交顺序串行执行任务的{@link Executor}，一个连接在整个生命周期内使用同一个。
+     * 饱和时execute抛出{@link java.util.concurrent.RejectedExecutionException}
+     *
+     * @return executor
+     */
+    Executor next();
+
+    /**
+     * 是否所有的LineHandler都在executor中执行，返回false时只有{@link com.zhangyx.vmail.protocols.api.handler.BlockingHandler}会被提交
+     *
+     * @return offloadAll
+     */
+    boolean isOffloadAll();
+
+    /**
+     * 关闭所有executor
+     */
+    void shutdown();
+}
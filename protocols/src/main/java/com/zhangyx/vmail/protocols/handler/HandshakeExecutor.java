@@ -0,0 +1,142 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 执行SSLEngine delegated task(证书签名、密钥交换等CPU密集的握手计算)的有界线程池，
+ * 握手不再占用I/O event loop
+ * <p>
+ * 统计队列深度、队首任务的等待时间以及握手耗时，队列已满或排队时间超过deadline时认为过载，
+ * STARTTLS可以据此直接拒绝
+ */
+public class HandshakeExecutor implements Executor {
+
+    private final ThreadPoolExecutor delegate;
+    private final ArrayBlockingQueue<Runnable> queue;
+    private final long queueDeadlineNanos;
+
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder failedHandshakes = new LongAdder();
+    private final LongAdder totalHandshakeNanos = new LongAdder();
+    private final AtomicLong maxHandshakeNanos = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+
+    /**
+     * @param nThreads           线程数
+     * @param queueSize          最多排队的任务数
+     * @param queueDeadlineMillis 队首任务等待超过该时间时认为过载
+     */
+    public HandshakeExecutor(int nThreads, int queueSize, long queueDeadlineMillis) {
+        this.queue = new ArrayBlockingQueue<Runnable>(queueSize);
+        this.delegate = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, queue, new DefaultThreadFactory("tls-handshake"));
+        this.queueDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(queueDeadlineMillis);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        try {
+            delegate.execute(new TimedTask(command));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * 队列已满或队首任务的等待时间超过deadline
+     *
+     * @return overloaded
+     */
+    public boolean isOverloaded() {
+        if (queue.remainingCapacity() == 0) {
+            return true;
+        }
+        Runnable head = queue.peek();
+        return head instanceof TimedTask && System.nanoTime() - ((TimedTask) head).submitted > queueDeadlineNanos;
+    }
+
+    void recordHandshake(long nanos, boolean success) {
+        if (!success) {
+            failedHandshakes.increment();
+            return;
+        }
+        handshakes.increment();
+        totalHandshakeNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxHandshakeNanos.get())) {
+            if (maxHandshakeNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    void recordShed() {
+        shed.increment();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getHandshakeCount() {
+        return handshakes.sum();
+    }
+
+    public long getFailedHandshakeCount() {
+        return failedHandshakes.sum();
+    }
+
+    /**
+     * 成功握手的平均耗时，单位纳秒
+     */
+    public long getAverageHandshakeNanos() {
+        long count = handshakes.sum();
+        return count == 0 ? 0 : totalHandshakeNanos.sum() / count;
+    }
+
+    public long getMaxHandshakeNanos() {
+        return maxHandshakeNanos.get();
+    }
+
+    /**
+     * 队列已满被拒绝的任务数
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * 因为过载而拒绝的STARTTLS数
+     */
+    public long getShedCount() {
+        return shed.sum();
+    }
+
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    private static final class TimedTask implements Runnable {
+
+        private final Runnable task;
+        private final long submitted = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.api.handler.StreamingLineHandler;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分阶段的空闲超时，参考RFC 5321 4.5.3.2
+ * <p>
+ * greeting：连接建立后还没有收到客户端的任何数据(包括隐式TLS的握手)；command：等待下一条命令，
+ * AUTH等push的非流式handler也按命令超时；data：push的handler栈顶是{@link StreamingLineHandler}(DATA正文)时，两次读取之间的间隔。
+ * 所有连接共享一个{@link Timer}(HashedWheelTimer)，每个连接只挂一个timeout，读取时只更新时间戳，
+ * 到期时再检查是否真的空闲，不空闲就按剩余时间重新挂上，大量空闲连接几乎没有开销。
+ * 超时后写出session的fatal error response并关闭连接
+ */
+public class IdleTimeoutHandler extends ChannelInboundHandlerAdapter implements TimerTask {
+
+    private final Timer timer;
+    private final long greetingTimeoutNanos;
+    private final long commandTimeoutNanos;
+    private final long dataTimeoutNanos;
+    private final long longestTimeoutNanos;
+
+    private ChannelHandlerContext ctx;
+    private volatile long lastReadTime;
+    private volatile boolean greeted;
+    private Timeout timeout;
+
+    private final Runnable checkTask = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+
+    /**
+     * 超时时间单位为秒，0表示该阶段不超时
+     */
+    public IdleTimeoutHandler(Timer timer, int greetingTimeout, int commandTimeout, int dataTimeout) {
+        this.timer = timer;
+        this.greetingTimeoutNanos = TimeUnit.SECONDS.toNanos(greetingTimeout);
+        this.commandTimeoutNanos = TimeUnit.SECONDS.toNanos(commandTimeout);
+        this.dataTimeoutNanos = TimeUnit.SECONDS.toNanos(dataTimeout);
+        this.longestTimeoutNanos = Math.max(greetingTimeoutNanos, Math.max(commandTimeoutNanos, dataTimeoutNanos));
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        lastReadTime = System.nanoTime();
+        scheduleNext(currentTimeout(), 0);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        lastReadTime = System.nanoTime();
+        greeted = true;
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        super.channelInactive(ctx);
+    }
+
+    // 在timer线程中执行，切回event loop检查
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        if (!timeout.isCancelled()) {
+            ctx.executor().execute(checkTask);
+        }
+    }
+
+    private void check() {
+        timeout = null;
+        Channel channel = ctx.channel();
+        if (!channel.isActive()) {
+            return;
+        }
+        long limit = currentTimeout();
+        long idle = System.nanoTime() - lastReadTime;
+        if (limit <= 0 || idle < limit) {
+            scheduleNext(limit, idle);
+            return;
+        }
+        ProtocolSession session = channel.attr(BasicChannelInboundHandler.SESSION_KEY).get();
+        Response response = session != null ? session.newFatalErrorResponse() : null;
+        if (response != null) {
+            channel.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            channel.close();
+        }
+    }
+
+    private long currentTimeout() {
+        if (!greeted) {
+            return greetingTimeoutNanos;
+        }
+        NettyProtocolTransport transport = ctx.channel().attr(BasicChannelInboundHandler.TRANSPORT_KEY).get();
+        if (transport != null && transport.getPushedLineHandler() instanceof StreamingLineHandler) {
+            return dataTimeoutNanos;
+        }
+        return commandTimeoutNanos;
+    }
+
+    // 当前阶段不超时时，按最长的超时时间继续检查阶段的变化
+    private void scheduleNext(long limit, long idle) {
+        schedule(limit > 0 ? limit - idle : longestTimeoutNanos);
+    }
+
+    private void schedule(long delayNanos) {
+        if (delayNanos > 0) {
+            timeout = timer.newTimeout(this, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+}
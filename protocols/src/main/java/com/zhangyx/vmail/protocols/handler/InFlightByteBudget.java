@@ -0,0 +1,84 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 所有连接共享的in-flight DATA字节预算
+ * <p>
+ * 交给push的{@link com.zhangyx.vmail.protocols.api.handler.LineHandler}(DATA、BDAT等)但还没处理完的字节都计入预算。
+ * 超过highWaterMark后，继续读取的连接暂停读取并排队等待，预算回落到lowWaterMark以下时恢复
+ */
+public class InFlightByteBudget {
+
+    private final long highWaterMark;
+    private final long lowWaterMark;
+
+    private final AtomicLong inFlight = new AtomicLong();
+    private final Queue<NettyProtocolTransport> waiters = new ConcurrentLinkedQueue<NettyProtocolTransport>();
+
+    public InFlightByteBudget(long highWaterMark, long lowWaterMark) {
+        if (lowWaterMark > highWaterMark) {
+            throw new IllegalArgumentException("lowWaterMark cannot be greater than highWaterMark");
+        }
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = lowWaterMark;
+    }
+
+    /**
+     * 占用预算
+     *
+     * @param bytes
+     * @return 超过highWaterMark时返回false，调用者应暂停读取
+     */
+    boolean acquire(long bytes) {
+        return inFlight.addAndGet(bytes) <= highWaterMark;
+    }
+
+    // 是否还没有超过highWaterMark，暂停的连接定期检查
+    boolean hasCapacity() {
+        return inFlight.get() <= highWaterMark;
+    }
+
+    void release(long bytes) {
+        if (inFlight.addAndGet(-bytes) <= lowWaterMark) {
+            resumeWaiters();
+        }
+    }
+
+    // 等待预算回落，如果在入队前已经回落则立即恢复。每个transport最多排队一次
+    void await(NettyProtocolTransport transport) {
+        if (transport.awaitingBudget.compareAndSet(false, true)) {
+            waiters.add(transport);
+        }
+        if (inFlight.get() <= lowWaterMark) {
+            resumeWaiters();
+        }
+    }
+
+    // 连接关闭时从队列中移除
+    void cancel(NettyProtocolTransport transport) {
+        if (transport.awaitingBudget.compareAndSet(true, false)) {
+            waiters.remove(transport);
+        }
+    }
+
+    // 跳过已经关闭或已经取消的连接
+    private void resumeWaiters() {
+        NettyProtocolTransport transport;
+        while ((transport = waiters.poll()) != null) {
+            if (transport.awaitingBudget.compareAndSet(true, false) && transport.getChannel().isActive()) {
+                transport.resumeFromBudget();
+            }
+        }
+    }
+
+    public long getInFlightBytes() {
+        return inFlight.get();
+    }
+
+    public int getWaitingCount() {
+        return waiters.size();
+    }
+}
@@ -0,0 +1,449 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.google.common.io.Closeables;
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.ProtocolTransport;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.api.StartTlsResponse;
+import com.zhangyx.vmail.protocols.api.handler.LineHandler;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.ssl.SslHandler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于netty {@link Channel}的{@link ProtocolTransport}实现，每个连接一个实例
+ * <p>
+ * 支持RFC 2920 PIPELINING：一次read中处理的所有命令的response先写入channel，
+ * 在channelReadComplete时一次flush，减少write系统调用；结束命令组的命令(见{@link #endCommandGroup()})的response立即flush。
+ * response总是在event loop中写出，其他线程调用{@link #writeResponse(Response, ProtocolSession)}时按顺序切回event loop
+ * <p>
+ * autoRead由多个暂停原因共同决定：handler调用{@link #setReadable(boolean)}、outbound buffer超过高水位、
+ * 全局in-flight DATA预算用完、提交到executor的行积压过多，任何一个原因存在时都暂停读取，全部解除后恢复。
+ * 排队等待executor的行在入队时就计入in-flight预算，交给push的handler时这部分预算转给handler，不重复计算
+ */
+public class NettyProtocolTransport implements ProtocolTransport {
+
+    private static final int PAUSED_BY_HANDLER = 1;
+    private static final int PAUSED_BY_WRITABILITY = 1 << 1;
+    private static final int PAUSED_BY_BUDGET = 1 << 2;
+    private static final int PAUSED_BY_QUEUE = 1 << 3;
+
+    // 因预算暂停期间定期检查预算：占用预算的连接都在等待时预算可能停在两个水位之间，不会触发resumeWaiters。
+    // 预算仍然超过highWaterMark时继续等待，占用预算的连接最终由DATA超时关闭并释放预算
+    private static final long BUDGET_RECHECK_MILLIS = 200;
+    // 提交到executor但还没有处理的行数或字节数超过上限时暂停读取，回落到一半以下时恢复
+    private static final int MAX_QUEUED_LINES = 256;
+    private static final long MAX_QUEUED_BYTES = 256 * 1024;
+    // DATA、AUTH、BDAT最多嵌套两三层
+    private static final int MAX_LINE_HANDLERS = 8;
+
+    private final Channel channel;
+    private final SslHandlerFactory ssl;
+    private final InFlightByteBudget budget;
+    // push的LineHandler栈，固定大小的数组，push/pop不分配内存也不修改pipeline。
+    // 由处理命令的线程(event loop或executor)修改，先写数组再写volatile的count，event loop等其他线程读取时能看到完整的handler
+    private final LineHandler<?>[] lineHandlers = new LineHandler<?>[MAX_LINE_HANDLERS];
+    private volatile int lineHandlerCount;
+    // 交给push的handler的字节数，处理命令的线程和关闭连接时都会修改
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    // 由处理命令的线程设置，写出下一个response时在event loop中清除
+    private volatile boolean groupEnded;
+    // STARTTLS被接受后递增，之前排队到executor的行全部丢弃，只由处理命令的线程修改
+    private volatile int inputGeneration;
+    // STARTTLS被接受到SslHandler插入之间收到的明文全部丢弃
+    private volatile boolean tlsPending;
+    // 是否在InFlightByteBudget的等待队列中，由InFlightByteBudget修改
+    final AtomicBoolean awaitingBudget = new AtomicBoolean();
+
+    // 以下字段只在event loop线程中访问
+    private boolean batching;
+    private boolean flushPending;
+    private int pausedReasons;
+    // 已提交到handler executor但还没有写回结果的行数和字节数
+    private int offloaded;
+    private long offloadedBytes;
+    private ScheduledFuture<?> budgetRecheck;
+
+    private final Runnable budgetRecheckTask = new Runnable() {
+        @Override
+        public void run() {
+            budgetRecheck = null;
+            if ((pausedReasons & PAUSED_BY_BUDGET) == 0 || !channel.isActive()) {
+                return;
+            }
+            if (budget.hasCapacity()) {
+                budget.cancel(NettyProtocolTransport.this);
+                updatePaused(PAUSED_BY_BUDGET, false);
+            } else {
+                budgetRecheck = channel.eventLoop().schedule(this, BUDGET_RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    };
+
+    public NettyProtocolTransport(Channel channel, SslHandlerFactory ssl) {
+        this(channel, ssl, null);
+    }
+
+    public NettyProtocolTransport(Channel channel, SslHandlerFactory ssl, InFlightByteBudget budget) {
+        this.channel = channel;
+        this.ssl = ssl;
+        this.budget = budget;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return (InetSocketAddress) channel.remoteAddress();
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) channel.localAddress();
+    }
+
+    @Override
+    public String getId() {
+        return channel.id().asShortText();
+    }
+
+    // 握手成功完成后才认为TLS已经开始
+    @Override
+    public boolean isTLSStarted() {
+        SslHandler sslHandler = channel.pipeline().get(SslHandler.class);
+        return sslHandler != null && sslHandler.handshakeFuture().isSuccess();
+    }
+
+    @Override
+    public boolean isStartTLSSupported() {
+        return ssl != null && ssl.isStartTls();
+    }
+
+    @Override
+    public void writeResponse(final Response response, final ProtocolSession session) {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeResponse(response, session);
+                }
+            });
+            return;
+        }
+        boolean endOfGroup = groupEnded;
+        groupEnded = false;
+        if (response == Response.DISCONNECT) {
+            if (flushPending) {
+                flushPending = false;
+                channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            } else {
+                channel.close();
+            }
+            return;
+        }
+        if (response instanceof StartTlsResponse) {
+            // 在同一个event loop任务中插入SslHandler，之后读到的数据都经过TLS
+            tlsPending = false;
+        }
+        if (response instanceof StartTlsResponse && isStartTLSSupported() && channel.pipeline().get(SslHandler.class) == null) {
+            // 握手线程池过载时不再接受新的握手，让客户端稍后重试
+            if (ssl.isOverloaded()) {
+                Response failure = ((StartTlsResponse) response).getTemporaryFailureResponse();
+                writeResponse(failure == null ? Response.DISCONNECT : failure, session);
+                return;
+            }
+            startTLS(response);
+            return;
+        }
+        // 由pipeline中的ResponseEncoder编码
+        // 批处理中只写不flush，命令组的最后一条和结束会话的response立即flush
+        if (batching && !endOfGroup && !response.isEndSession()) {
+            channel.write(response, channel.voidPromise());
+            flushPending = true;
+            return;
+        }
+        flushPending = false;
+        ChannelFuture future = channel.writeAndFlush(response);
+        if (response.isEndSession()) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    @Override
+    public void endCommandGroup() {
+        groupEnded = true;
+    }
+
+    /**
+     * 处理命令的线程得到STARTTLS的response后立即调用：丢弃已经排队到executor的行，
+     * 以及SslHandler插入之前收到的明文，防止STARTTLS之后pipeline的明文命令在TLS会话中执行(CVE-2011-0411)
+     */
+    void discardInputUntilTls() {
+        inputGeneration++;
+        tlsPending = true;
+    }
+
+    int getInputGeneration() {
+        return inputGeneration;
+    }
+
+    /**
+     * 在generation时收到的行是否应该丢弃
+     *
+     * @param generation 收到该行时的{@link #getInputGeneration()}
+     * @return discarded
+     */
+    boolean isInputDiscarded(int generation) {
+        return tlsPending || generation != inputGeneration;
+    }
+
+    /**
+     * 先flush之前的response，丢弃STARTTLS之后pipeline的明文数据，再插入startTls模式的{@link SslHandler}，
+     * 它会让紧接着的这条response以明文写出，之后的数据全部加密
+     */
+    private void startTLS(Response response) {
+        flush();
+        CRLFFrameDecoder framer = channel.pipeline().get(CRLFFrameDecoder.class);
+        if (framer != null) {
+            framer.discardBufferedInput();
+        }
+        channel.pipeline().addFirst("sslHandler", ssl.create(channel, true));
+        channel.writeAndFlush(response);
+    }
+
+    /**
+     * 开始处理一次read中的命令，之后的response会被缓存到{@link #endBatch()}，只在event loop中调用
+     */
+    public void beginBatch() {
+        batching = true;
+    }
+
+    /**
+     * 本次read中的命令处理完毕，一次flush所有缓存的response，只在event loop中调用
+     */
+    public void endBatch() {
+        batching = false;
+        flush();
+    }
+
+    /**
+     * 立即flush缓存的response，比如STARTTLS等需要客户端在继续之前收到回复的命令
+     */
+    public void flush() {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+            return;
+        }
+        if (flushPending) {
+            flushPending = false;
+            channel.flush();
+        }
+    }
+
+    @Override
+    public void popLineHandler() {
+        int count = lineHandlerCount;
+        if (count == 0) {
+            throw new IllegalStateException("No pushed line handler");
+        }
+        lineHandlerCount = count - 1;
+        lineHandlers[count - 1] = null;
+        if (count == 1) {
+            releaseInFlight();
+        }
+    }
+
+    @Override
+    public void pushLineHandler(LineHandler<? extends ProtocolSession> overrideCommandHandler, ProtocolSession session) {
+        int count = lineHandlerCount;
+        if (count == MAX_LINE_HANDLERS) {
+            throw new IllegalStateException("Too many pushed line handlers");
+        }
+        lineHandlers[count] = overrideCommandHandler;
+        lineHandlerCount = count + 1;
+    }
+
+    @Override
+    public int getPushedLineHandlerCount() {
+        return lineHandlerCount;
+    }
+
+    /**
+     * 返回最后push的{@link LineHandler}，没有时返回null
+     *
+     * @return lineHandler
+     */
+    public LineHandler<? extends ProtocolSession> getPushedLineHandler() {
+        int count = lineHandlerCount;
+        return count == 0 ? null : lineHandlers[count - 1];
+    }
+
+    /**
+     * 以下三个方法只在event loop中调用
+     */
+    public int getOffloadedCount() {
+        return offloaded;
+    }
+
+    void incrementOffloaded(int bytes) {
+        offloaded++;
+        offloadedBytes += bytes;
+        if (budget != null && !budget.acquire(bytes)) {
+            pauseForBudget();
+        }
+        if (offloaded >= MAX_QUEUED_LINES || offloadedBytes >= MAX_QUEUED_BYTES) {
+            updatePaused(PAUSED_BY_QUEUE, true);
+        }
+    }
+
+    /**
+     * @param bytes
+     * @param transferred 这一行已经交给push的handler，预算转为{@link #onPushedLine(int, boolean)}占用，这里不释放
+     */
+    void decrementOffloaded(int bytes, boolean transferred) {
+        offloaded--;
+        offloadedBytes -= bytes;
+        if (budget != null && !transferred) {
+            budget.release(bytes);
+        }
+        if (offloaded <= MAX_QUEUED_LINES / 2 && offloadedBytes <= MAX_QUEUED_BYTES / 2) {
+            updatePaused(PAUSED_BY_QUEUE, false);
+        }
+    }
+
+    /**
+     * 连接关闭时弹出所有push的{@link LineHandler}，关闭其中持有资源的handler(比如DATA阶段的暂存区)
+     */
+    public void dispose() {
+        if (budget != null) {
+            budget.cancel(this);
+        }
+        releaseInFlight();
+        for (int count = lineHandlerCount; count > 0; count--) {
+            LineHandler<?> lineHandler = lineHandlers[count - 1];
+            lineHandlerCount = count - 1;
+            lineHandlers[count - 1] = null;
+            if (lineHandler instanceof Closeable) {
+                try {
+                    Closeables.close((Closeable) lineHandler, true);
+                } catch (IOException e) {
+                    // 不会发生，异常已被吞掉
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setReadable(boolean readable) {
+        updatePaused(PAUSED_BY_HANDLER, !readable);
+    }
+
+    /**
+     * outbound buffer越过水位时由core handler调用
+     */
+    public void writabilityChanged() {
+        updatePaused(PAUSED_BY_WRITABILITY, !channel.isWritable());
+    }
+
+    /**
+     * 一行数据交给了push的{@link LineHandler}，计入in-flight预算，直到handler全部弹出。可以在executor中调用
+     *
+     * @param bytes
+     * @param charged 这一行排队到executor时已经占用了预算，只转移不再重复占用
+     */
+    public void onPushedLine(int bytes, boolean charged) {
+        if (budget == null) {
+            return;
+        }
+        inFlightBytes.addAndGet(bytes);
+        if (!charged && !budget.acquire(bytes)) {
+            pauseForBudget();
+        }
+    }
+
+    // pausedReasons只在event loop中访问
+    private void pauseForBudget() {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    pauseForBudget();
+                }
+            });
+            return;
+        }
+        if ((pausedReasons & PAUSED_BY_BUDGET) == 0) {
+            updatePaused(PAUSED_BY_BUDGET, true);
+            // 预算已经回落时会立即恢复
+            budget.await(this);
+            if ((pausedReasons & PAUSED_BY_BUDGET) != 0) {
+                budgetRecheck = channel.eventLoop().schedule(budgetRecheckTask, BUDGET_RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // 由InFlightByteBudget在释放预算的线程中调用
+    void resumeFromBudget() {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    resumeFromBudget();
+                }
+            });
+            return;
+        }
+        if (budgetRecheck != null) {
+            budgetRecheck.cancel(false);
+            budgetRecheck = null;
+        }
+        updatePaused(PAUSED_BY_BUDGET, false);
+    }
+
+    private void releaseInFlight() {
+        long bytes = inFlightBytes.getAndSet(0);
+        if (budget != null && bytes > 0) {
+            budget.release(bytes);
+        }
+    }
+
+    // 所有暂停原因都解除时才恢复autoRead，只在event loop中修改
+    private void updatePaused(final int reason, final boolean paused) {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    updatePaused(reason, paused);
+                }
+            });
+            return;
+        }
+        int old = pausedReasons;
+        pausedReasons = paused ? old | reason : old & ~reason;
+        if ((old == 0) != (pausedReasons == 0)) {
+            channel.config().setAutoRead(pausedReasons == 0);
+        }
+    }
+
+    @Override
+    public boolean isReadable() {
+        return channel.config().isAutoRead();
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+}
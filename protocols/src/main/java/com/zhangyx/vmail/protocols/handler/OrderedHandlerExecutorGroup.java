@@ -0,0 +1,130 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 所有连接共享一个固定大小的线程池，每个连接使用自己的{@link SerialExecutor}，同一个连接的任务按顺序执行
+ * <p>
+ * 空闲的线程可以执行任何连接的任务，一个连接阻塞不会拖慢其他连接。
+ * 线程池的队列中每个有任务的连接最多占一项，队列满时拒绝提交并抛出{@link RejectedExecutionException}，
+ * 由调用者放弃该连接。统计队列深度、拒绝次数和连接等待线程的时间
+ */
+public class OrderedHandlerExecutorGroup implements HandlerExecutorGroup {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final ThreadPoolExecutor pool;
+    private final Executor timedPool;
+
+    private final LongAdder taskCount = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public OrderedHandlerExecutorGroup(int nThreads, String name) {
+        this(nThreads, DEFAULT_QUEUE_CAPACITY, name);
+    }
+
+    /**
+     * @param nThreads      线程数
+     * @param queueCapacity 等待线程的连接数上限
+     * @param name          线程名前缀
+     */
+    public OrderedHandlerExecutorGroup(int nThreads, int queueCapacity, String name) {
+        if (nThreads <= 0) {
+            throw new IllegalArgumentException("nThreads must be a positive integer: " + nThreads);
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be a positive integer: " + queueCapacity);
+        }
+        this.pool = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new DefaultThreadFactory(name), new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                rejectedCount.increment();
+                throw new RejectedExecutionException("Handler executor is saturated");
+            }
+        });
+        this.timedPool = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                final long submitted = System.nanoTime();
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        recordWait(System.nanoTime() - submitted);
+                        command.run();
+                    }
+                });
+            }
+        };
+    }
+
+    @Override
+    public Executor next() {
+        return new SerialExecutor(timedPool);
+    }
+
+    @Override
+    public boolean isOffloadAll() {
+        return false;
+    }
+
+    @Override
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private void recordWait(long waitNanos) {
+        taskCount.increment();
+        totalWaitNanos.add(waitNanos);
+        long max;
+        while (waitNanos > (max = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(max, waitNanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 当前等待线程的连接数
+     */
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * 线程池执行的次数，一次可能执行一个连接的多个任务
+     */
+    public long getTaskCount() {
+        return taskCount.sum();
+    }
+
+    /**
+     * 平均排队等待时间，单位纳秒
+     */
+    public long getAverageWaitNanos() {
+        long count = taskCount.sum();
+        return count == 0 ? 0 : totalWaitNanos.sum() / count;
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * 队列满或已关闭时拒绝的次数
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+}
@@ -0,0 +1,142 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.api.StaticResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.util.CharsetUtil;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 将{@link Response}编码为字节，使用session的{@link ProtocolSession#getCharset()}和{@link ProtocolSession#getLineDelimiter()}
+ * <p>
+ * 启动时把固定的response实例按默认的字符集和行分隔符预先编码到池化的direct buffer中，不再释放，
+ * 写出时只返回共享引用计数的retainedDuplicate，由写出的一方释放，不再重复编码，也不用每次分配包装对象；
+ * 运行中第一次写出的{@link StaticResponse}(比如EHLO的扩展列表)也会被缓存，数量有上限。
+ * 其它动态response，以及字符集或行分隔符和默认值不同的session，每次按session的设置编码。
+ * 编码表可以被所有channel共享
+ */
+@ChannelHandler.Sharable
+public class ResponseEncoder extends MessageToMessageEncoder<Response> {
+
+    // 运行中缓存的StaticResponse数量上限，防止动态创建的StaticResponse无限占用内存
+    private static final int MAX_LAZY_ENCODED = 256;
+
+    private final Charset charset;
+    private final String delimiter;
+    // 按实例查找，构造后只读
+    private final Map<Response, ByteBuf> encoded = new IdentityHashMap<Response, ByteBuf>();
+    // StaticResponse没有重写equals，同样按实例查找
+    private final ConcurrentHashMap<Response, ByteBuf> lazyEncoded = new ConcurrentHashMap<Response, ByteBuf>();
+
+    public ResponseEncoder(Collection<? extends Response> staticResponses) {
+        this(staticResponses, CharsetUtil.US_ASCII, "\r\n");
+    }
+
+    /**
+     * @param staticResponses 预先编码的response
+     * @param charset         预先编码使用的字符集，和session相同时才使用预先编码的结果
+     * @param delimiter       预先编码使用的行分隔符
+     */
+    public ResponseEncoder(Collection<? extends Response> staticResponses, Charset charset, String delimiter) {
+        this.charset = charset;
+        this.delimiter = delimiter;
+        encoded.put(Response.DISCONNECT, Unpooled.EMPTY_BUFFER);
+        for (Response response : staticResponses) {
+            if (!encoded.containsKey(response)) {
+                encoded.put(response, preEncode(response));
+            }
+        }
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Response response, List<Object> out) throws Exception {
+        if (response == Response.DISCONNECT) {
+            out.add(Unpooled.EMPTY_BUFFER);
+            return;
+        }
+        ProtocolSession session = ctx.channel().attr(BasicChannelInboundHandler.SESSION_KEY).get();
+        Charset sessionCharset = session != null ? session.getCharset() : charset;
+        String sessionDelimiter = session != null ? session.getLineDelimiter() : delimiter;
+        if (charset.equals(sessionCharset) && delimiter.equals(sessionDelimiter)) {
+            ByteBuf buf = getEncoded(response);
+            if (buf != null) {
+                out.add(buf.retainedDuplicate());
+                return;
+            }
+        }
+        out.add(encode(ctx.alloc().buffer(estimateLength(response, sessionDelimiter)), response, sessionCharset, sessionDelimiter));
+    }
+
+    private ByteBuf getEncoded(Response response) {
+        ByteBuf buf = encoded.get(response);
+        if (buf != null || !(response instanceof StaticResponse)) {
+            return buf;
+        }
+        buf = lazyEncoded.get(response);
+        if (buf == null && lazyEncoded.size() < MAX_LAZY_ENCODED) {
+            buf = preEncode(response);
+            ByteBuf old = lazyEncoded.putIfAbsent(response, buf);
+            if (old != null) {
+                buf.release();
+                buf = old;
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * 是否为预先编码或已经缓存的response
+     *
+     * @param response
+     * @return cached
+     */
+    public boolean isCached(Response response) {
+        return encoded.containsKey(response) || lazyEncoded.containsKey(response);
+    }
+
+    private ByteBuf preEncode(Response response) {
+        return encode(PooledByteBufAllocator.DEFAULT.directBuffer(estimateLength(response, delimiter)), response, charset, delimiter);
+    }
+
+    private static ByteBuf encode(ByteBuf buf, Response response, Charset charset, String delimiter) {
+        for (CharSequence line : response.getLines()) {
+            write(buf, line, charset);
+            write(buf, delimiter, charset);
+        }
+        return buf;
+    }
+
+    // ASCII和UTF-8不需要经过CharsetEncoder
+    private static void write(ByteBuf buf, CharSequence chars, Charset charset) {
+        if (CharsetUtil.US_ASCII.equals(charset)) {
+            ByteBufUtil.writeAscii(buf, chars);
+        } else if (CharsetUtil.UTF_8.equals(charset)) {
+            ByteBufUtil.writeUtf8(buf, chars);
+        } else {
+            buf.writeCharSequence(chars, charset);
+        }
+    }
+
+    // 按单字节字符估算，多字节字符集写入时buffer会自动扩容
+    private static int estimateLength(Response response, String delimiter) {
+        int length = 0;
+        for (CharSequence line : response.getLines()) {
+            length += line.length() + delimiter.length();
+        }
+        return length;
+    }
+}
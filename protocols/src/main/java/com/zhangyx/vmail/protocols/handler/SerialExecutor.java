@@ -0,0 +1,61 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 在共享的executor上按提交顺序串行执行一个session的任务，队列为空时不占用线程
+ * <p>
+ * 只有队列从空变为非空时才向delegate提交。delegate拒绝时本次提交的任务被移除，
+ * {@link RejectedExecutionException}抛给调用者
+ */
+class SerialExecutor implements Executor, Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(SerialExecutor.class);
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final Executor delegate;
+
+    SerialExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        tasks.add(command);
+        if (running.compareAndSet(false, true)) {
+            try {
+                delegate.execute(this);
+            } catch (RejectedExecutionException e) {
+                tasks.remove(command);
+                running.set(false);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.error("Unexpected exception in handler task", t);
+                }
+            }
+            running.set(false);
+            // 释放标记后可能有新任务进来，继续在当前线程执行，不再向delegate提交
+            if (tasks.isEmpty() || !running.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.ssl.Encryption;
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+
+/**
+ * 根据{@link Encryption}创建{@link SslHandler}
+ * <p>
+ * 配置了{@link HandshakeExecutor}时，SSLEngine的delegated task在其中执行，并记录每次握手的耗时
+ * <p>
+ * {@link Encryption}可以在运行时替换(证书轮换)，之后的握手使用新的context，已建立的连接保留原来的SSLEngine
+ */
+public class SslHandlerFactory {
+
+    private volatile Encryption encryption;
+    private final HandshakeExecutor handshakeExecutor;
+    private final long handshakeTimeoutMillis;
+
+    public SslHandlerFactory(Encryption encryption) {
+        this(encryption, null, 0);
+    }
+
+    /**
+     * @param encryption
+     * @param handshakeExecutor      执行delegated task的线程池，为null时在event loop中执行
+     * @param handshakeTimeoutMillis 握手超时时间，超时后关闭连接，0表示使用netty的默认值
+     */
+    public SslHandlerFactory(Encryption encryption, HandshakeExecutor handshakeExecutor, long handshakeTimeoutMillis) {
+        this.encryption = encryption;
+        this.handshakeExecutor = handshakeExecutor;
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+    }
+
+    public static SslHandlerFactory of(Encryption encryption) {
+        return encryption == null ? null : new SslHandlerFactory(encryption);
+    }
+
+    /**
+     * 替换证书，starttls模式必须与原来一致
+     *
+     * @param encryption
+     */
+    public void setEncryption(Encryption encryption) {
+        if (encryption.isStarttls() != this.encryption.isStarttls()) {
+            throw new IllegalArgumentException("Can not change the starttls mode of a running server");
+        }
+        this.encryption = encryption;
+    }
+
+    public Encryption getEncryption() {
+        return encryption;
+    }
+
+    public boolean isStartTls() {
+        return encryption.isStarttls();
+    }
+
+    /**
+     * 握手线程池是否过载，过载时STARTTLS应返回临时失败
+     *
+     * @return overloaded
+     */
+    public boolean isOverloaded() {
+        if (handshakeExecutor != null && handshakeExecutor.isOverloaded()) {
+            handshakeExecutor.recordShed();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 为连接创建{@link SslHandler}
+     *
+     * @param channel
+     * @param startTls 为true时下一条写出的数据不加密(STARTTLS的response)
+     * @return handler
+     */
+    public SslHandler create(Channel channel, boolean startTls) {
+        SslHandler sslHandler = handshakeExecutor == null
+                ? new SslHandler(encryption.createSSLEngine(), startTls)
+                : new SslHandler(encryption.createSSLEngine(), startTls, handshakeExecutor);
+        if (handshakeTimeoutMillis > 0) {
+            sslHandler.setHandshakeTimeoutMillis(handshakeTimeoutMillis);
+        }
+        if (handshakeExecutor != null) {
+            final long start = System.nanoTime();
+            sslHandler.handshakeFuture().addListener(new FutureListener<Channel>() {
+                @Override
+                public void operationComplete(Future<Channel> future) throws Exception {
+                    handshakeExecutor.recordHandshake(System.nanoTime() - start, future.isSuccess());
+                }
+            });
+        }
+        return sslHandler;
+    }
+
+    public HandshakeExecutor getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+}
@@ -0,0 +1,93 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 每个session的LineHandler都在virtual thread中执行，handler可以直接以阻塞的方式调用DNSService、存储等，
+ * 不会占用平台线程
+ * <p>
+ * 每次{@link #next()}返回一个新的串行executor，任务按提交顺序执行，需要时才在virtual thread上运行。
+ * 项目按java 8编译，通过反射使用Executors.newVirtualThreadPerTaskExecutor()。
+ * JDK 19/20没有--enable-preview时方法存在但调用会失败，所以{@link #isSupported()}实际创建一次executor来判断
+ */
+public class VirtualThreadHandlerExecutorGroup implements HandlerExecutorGroup {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadHandlerExecutorGroup.class);
+
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findFactoryMethod();
+    private static final boolean SUPPORTED = probe();
+
+    private final ExecutorService executor;
+
+    public VirtualThreadHandlerExecutorGroup() {
+        if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+        }
+        try {
+            executor = (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Unable to create virtual thread executor", e);
+        }
+    }
+
+    private static Method findFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    // 创建executor并执行一个任务，预览版JVM在这里抛出异常
+    private static boolean probe() {
+        if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+            return false;
+        }
+        try {
+            ExecutorService executor = (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+            try {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }).get();
+            } finally {
+                executor.shutdown();
+            }
+            return true;
+        } catch (Throwable t) {
+            logger.debug("Virtual threads are not usable", t);
+            return false;
+        }
+    }
+
+    /**
+     * 当前JVM是否支持virtual thread
+     *
+     * @return supported
+     */
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    @Override
+    public Executor next() {
+        return new SerialExecutor(executor);
+    }
+
+    // virtual thread很廉价，所有handler都在其中执行
+    @Override
+    public boolean isOffloadAll() {
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
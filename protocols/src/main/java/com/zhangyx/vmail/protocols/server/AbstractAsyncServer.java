@@ -5,10 +5,18 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.ChannelGroupFuture;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.AttributeKey;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,25 +26,49 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public abstract class AbstractAsyncServer implements ProtocolServer {
     private static final Logger logger = LoggerFactory.getLogger(AbstractAsyncServer.class);
 
+    private static final AttributeKey<Boolean> DRAINING_KEY = AttributeKey.valueOf("vmail.draining");
+    // 排空时检查忙碌连接状态的间隔
+    private static final long DRAIN_POLL_MILLIS = 100;
+
     private volatile boolean started;
+    // stop正在排空连接
+    private volatile boolean stopping;
     public static final int DEFAULT_IO_WORKER_COUNT = Runtime.getRuntime().availableProcessors() * 2;
     private volatile int backlog = 250;
 
     private volatile int timeout = 120;
 
+    // stop时等待进行中的事务完成的最长时间，单位秒
+    private volatile int drainTimeout = 30;
+
+    // 每个连接outbound buffer的高低水位，超过高水位时暂停读取
+    private volatile int writeBufferHighWaterMark = 64 * 1024;
+    private volatile int writeBufferLowWaterMark = 32 * 1024;
+
     private ServerBootstrap bootstrap;
 
     private volatile int ioWorker = DEFAULT_IO_WORKER_COUNT;
 
+    private volatile TransportType transportType = TransportType.AUTO;
+
+    // 每个监听地址绑定的SO_REUSEPORT socket数量，仅epoll下生效
+    private volatile int acceptorShards = 1;
+
+    // start时根据transportType和平台实际情况决定
+    private volatile boolean epoll;
+
     private List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
 
     private EventLoopGroup bossGroup;
-    private EventLoopGroup workerGroup;
+    private volatile EventLoopGroup workerGroup;
     private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    // 已建立的客户端连接，关闭后自动移除
+    private final ChannelGroup connections = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
 
     //设置监听地址
     public synchronized void setListenAddresses(InetSocketAddress... addresses) {
@@ -50,11 +82,52 @@ public abstract class AbstractAsyncServer implements ProtocolServer {
         this.ioWorker = ioWorker;
     }
 
+    // 设置传输方式，默认AUTO
+    public void setTransportType(TransportType transportType) {
+        if (started) throw new IllegalStateException("Can only be set when the server is not running");
+        this.transportType = transportType;
+    }
+
+    public TransportType getTransportType() {
+        return transportType;
+    }
+
+    // 设置每个监听地址的acceptor分片数，每个分片有独立的accept线程
+    public void setAcceptorShards(int acceptorShards) {
+        if (started) throw new IllegalStateException("Can only be set when the server is not running");
+        if (acceptorShards < 1) throw new IllegalArgumentException("acceptorShards must be at least 1");
+        this.acceptorShards = acceptorShards;
+    }
+
+    public int getAcceptorShards() {
+        return acceptorShards;
+    }
+
+    // 服务器当前是否运行在native epoll上
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    // 处理连接的event loop，可以共享给DNS查询等其他网络IO，未启动时为null，stop时关闭
+    public EventLoopGroup getWorkerGroup() {
+        return workerGroup;
+    }
+
+    // 监听socket实际绑定的地址，端口为0时是系统分配的端口，分片时同一个地址出现多次
+    public List<InetSocketAddress> getBoundAddresses() {
+        List<InetSocketAddress> bound = new ArrayList<InetSocketAddress>();
+        for (Channel channel : channels) {
+            bound.add((InetSocketAddress) channel.localAddress());
+        }
+        return bound;
+    }
+
     // 在bound之前设置bootstrap的参数
     protected void configureBootstrap(ServerBootstrap bootstrap) {
         bootstrap.option(ChannelOption.SO_BACKLOG, backlog);
         bootstrap.option(ChannelOption.SO_REUSEADDR, true);
         bootstrap.option(ChannelOption.TCP_NODELAY, true);
+        bootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark));
     }
 
     public synchronized void start() throws Exception {
@@ -66,42 +139,165 @@ public abstract class AbstractAsyncServer implements ProtocolServer {
             throw new RuntimeException("Please specify at least on socketaddress to which the server should get bound!");
         }
 
+        epoll = resolveEpoll();
+        int shards = acceptorShards;
+        if (shards > 1 && !epoll) {
+            logger.warn("SO_REUSEPORT acceptor shards need the epoll transport, bind every address once");
+            shards = 1;
+        }
         bootstrap = new ServerBootstrap();
-        bossGroup = new NioEventLoopGroup();
-        workerGroup = new NioEventLoopGroup(ioWorker);
+        // 分片时每个分片一个boss线程，bind时按next()轮询分配到不同的线程
+        bossGroup = createEventLoopGroup(shards > 1 ? shards : 0);
+        workerGroup = createEventLoopGroup(ioWorker);
 
         bootstrap.group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class);
-        ChannelInitializer channelInitializer = createChannelInitializer();
+                .channel(getServerChannelClass());
+        final ChannelInitializer<Channel> channelInitializer = createChannelInitializer();
         configureBootstrap(bootstrap);
-        bootstrap.childHandler(channelInitializer);
+        if (shards > 1) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        bootstrap.childHandler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel channel) throws Exception {
+                connections.add(channel);
+                channel.pipeline().addLast(channelInitializer);
+            }
+        });
 
         for (InetSocketAddress address : addresses) {
-            Channel channel = bootstrap.bind(address).sync().channel();
-            channels.add(channel);
+            for (int i = 0; i < shards; i++) {
+                Channel channel = bootstrap.bind(address).sync().channel();
+                channels.add(channel);
+            }
         }
-        logger.info("服务器已经启动！！！");
+        logger.info("服务器已经启动！！！transport: {}, acceptor shards: {}", epoll ? "epoll" : "nio", shards);
         started = true;
     }
 
-    public synchronized void stop() {
-        if (!started) return;
-        bossGroup.shutdownGracefully();
-        workerGroup.shutdownGracefully();
-        channels.close().awaitUninterruptibly();
-        bossGroup = null;
-        workerGroup = null;
-        started = false;
+    /**
+     * 排空后停止服务：先关闭监听端口停止accept，空闲的连接通过{@link #closeIdle(Channel)}关闭，
+     * 进行中的事务在drainTimeout内完成后关闭，超时后强制关闭剩余的连接，最后再关闭event loop
+     * <p>
+     * 等待排空时不持有锁，其他线程同时调用stop时直接返回
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!started || stopping) return;
+            stopping = true;
+            channels.close().awaitUninterruptibly();
+        }
+
+        // 在accept停止后取所有连接的关闭future，之后建立的连接在超时后一起关闭
+        int total = connections.size();
+        ChannelGroupFuture closed = connections.newCloseFuture();
+        for (Channel channel : connections) {
+            drain(channel);
+        }
+        try {
+            closed.await(drainTimeout, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int killed = connections.size();
+        connections.close().awaitUninterruptibly();
+        logger.info("Server stopped, {} sessions drained, {} sessions killed", total - killed, killed);
+
+        synchronized (this) {
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+            bossGroup = null;
+            workerGroup = null;
+            started = false;
+            stopping = false;
+        }
+    }
+
+    // 在连接的event loop中检查，空闲时关闭，每个连接只关闭一次；忙碌时稍后再检查，直到连接关闭
+    private void drain(final Channel channel) {
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!channel.isActive() || channel.attr(DRAINING_KEY).get() != null) {
+                    return;
+                }
+                if (isIdle(channel)) {
+                    channel.attr(DRAINING_KEY).set(Boolean.TRUE);
+                    closeIdle(channel);
+                } else {
+                    channel.eventLoop().schedule(this, DRAIN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    /**
+     * 连接是否处于两个事务之间，可以直接关闭。在连接的event loop中调用，子类重写
+     *
+     * @param channel
+     * @return idle
+     */
+    protected boolean isIdle(Channel channel) {
+        return true;
+    }
+
+    /**
+     * 排空时关闭空闲的连接，子类可以在关闭前写出提示，比如421
+     *
+     * @param channel
+     */
+    protected void closeIdle(Channel channel) {
+        channel.close();
+    }
+
+    // 根据配置的传输方式判断是否使用epoll，epoll不可用时退回nio
+    private boolean resolveEpoll() {
+        if (transportType == TransportType.NIO) {
+            return false;
+        }
+        if (Epoll.isAvailable()) {
+            return true;
+        }
+        if (transportType == TransportType.EPOLL) {
+            logger.warn("Native epoll transport is not available, fall back to nio", Epoll.unavailabilityCause());
+        }
+        return false;
+    }
+
+    // 创建event loop，nThreads为0时使用netty默认线程数
+    protected EventLoopGroup createEventLoopGroup(int nThreads) {
+        return epoll ? new EpollEventLoopGroup(nThreads) : new NioEventLoopGroup(nThreads);
+    }
+
+    protected Class<? extends ServerChannel> getServerChannelClass() {
+        return epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
     }
 
     // 创建初始化的channel
-    protected abstract ChannelInitializer createChannelInitializer();
+    protected abstract ChannelInitializer<Channel> createChannelInitializer();
 
     public void setTimeout(int timeout) {
         if (started) throw new IllegalStateException("Can only be set when the server is not running");
         this.timeout = timeout;
     }
 
+    public void setWriteBufferWaterMark(int low, int high) {
+        if (started) throw new IllegalStateException("Can only be set when the server is not running");
+        if (low > high) throw new IllegalArgumentException("low water mark cannot be greater than high water mark");
+        this.writeBufferLowWaterMark = low;
+        this.writeBufferHighWaterMark = high;
+    }
+
+    public void setDrainTimeout(int drainTimeout) {
+        if (drainTimeout < 0) throw new IllegalArgumentException("drainTimeout cannot be less than zero");
+        this.drainTimeout = drainTimeout;
+    }
+
+    public int getDrainTimeout() {
+        return drainTimeout;
+    }
+
     public void setBacklog(int backlog) {
         if (started) throw new IllegalStateException("Can only be set when the server is not running");
         this.backlog = backlog;
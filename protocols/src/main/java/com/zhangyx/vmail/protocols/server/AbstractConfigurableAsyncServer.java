@@ -4,8 +4,32 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.zhangyx.vmail.filesystem.FileSystem;
 import com.zhangyx.vmail.leftcycle.Configurable;
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.ProtocolSessionImpl;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.handler.BasicChannelInboundHandler;
+import com.zhangyx.vmail.protocols.handler.CRLFFrameHandlerFactory;
 import com.zhangyx.vmail.protocols.handler.ChannelHandlerFactory;
+import com.zhangyx.vmail.protocols.handler.ConnectionLimitInboundHandler;
+import com.zhangyx.vmail.protocols.handler.HandlerExecutorGroup;
+import com.zhangyx.vmail.protocols.handler.HandshakeExecutor;
+import com.zhangyx.vmail.protocols.handler.IdleTimeoutHandler;
+import com.zhangyx.vmail.protocols.handler.InFlightByteBudget;
+import com.zhangyx.vmail.protocols.handler.NettyProtocolTransport;
+import com.zhangyx.vmail.protocols.handler.OrderedHandlerExecutorGroup;
+import com.zhangyx.vmail.protocols.handler.VirtualThreadHandlerExecutorGroup;
+import com.zhangyx.vmail.protocols.handler.ResponseEncoder;
+import com.zhangyx.vmail.protocols.handler.SslHandlerFactory;
+import com.zhangyx.vmail.protocols.smtp.SMTPResponses;
 import com.zhangyx.vmail.ssl.Encryption;
+import com.zhangyx.vmail.ssl.SniKeyManager;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
@@ -13,14 +37,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import java.io.FileInputStream;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
 import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * configurable server抽象类，通用
@@ -35,11 +72,26 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     private static final String BACKLOG_NAME = "connectionBacklog";
     private static final String HELLO_NAME = "helloName";
     private static final String CONNECTION_LIMIT_NAME = "connectionLimit";
+    private static final String TRANSPORT_NAME = "transport";
+    private static final String ACCEPTOR_SHARDS_NAME = "acceptorShards";
+    private static final String WRITE_BUFFER_HIGH_WATER_MARK_NAME = "writeBufferHighWaterMark";
+    private static final String WRITE_BUFFER_LOW_WATER_MARK_NAME = "writeBufferLowWaterMark";
+    private static final String DATA_BUDGET_NAME = "inFlightDataBudget";
+    private static final String GREETING_TIMEOUT_NAME = "greetingTimeout";
+    private static final String DATA_TIMEOUT_NAME = "dataTimeout";
+    private static final String DRAIN_TIMEOUT_NAME = "drainTimeout";
+    private static final String MAX_EXECUTOR_COUNT_NAME = "maxExecutorCount";
+    private static final String MAX_EXECUTOR_QUEUE_NAME = "maxExecutorQueue";
+    private static final String HANDLER_EXECUTOR_NAME = "handlerExecutor";
 
     //默认值
     private static final int DEFAULT_BACKLOG = 200;
     private static final int DEFAULT_TIMEOUT = 5 * 60;
+    // RFC 5321 4.5.3.2: Initial 220 Message 5分钟，Data Block 3分钟
+    private static final int DEFAULT_GREETING_TIMEOUT = 5 * 60;
+    private static final int DEFAULT_DATA_TIMEOUT = 3 * 60;
     public static final int DEFAULT_MAX_EXECUTOR_COUNT = 16;
+    public static final int DEFAULT_MAX_LINE_LENGTH = 8192;
     private static final String defaultX509algorithm = "SunX509";
 
     // The X.509 certificate algorithm
@@ -59,11 +111,46 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     private String secret = "";
     //加密套件
     private String[] enabledCipherSuites;
+    // 服务端TLS session缓存，重复连接的客户端可以恢复session，不必完整握手
+    private int sslSessionCacheSize = 20480;
+    private int sslSessionTimeout = 3600;
+    // 握手delegated task线程数，0表示在event loop中执行
+    private int handshakeThreads = Runtime.getRuntime().availableProcessors();
+    private int handshakeQueueSize = 1024;
+    // 排队超过该时间(毫秒)后STARTTLS返回临时失败
+    private long handshakeQueueDeadline = 2000;
+    // 握手超时时间，单位毫秒
+    private long handshakeTimeout = 10000;
     //加密对象存放
-    private Encryption encryption;
+    private volatile Encryption encryption;
+    // 检查keystore变化的间隔，单位秒，0表示不检查
+    private int keystoreReloadInterval = 60;
+    private volatile byte[] keystoreChecksum;
+    // 读取和解析keystore较慢，不能放在触发空闲超时的timer线程中执行
+    private ScheduledExecutorService keystoreReloader;
+    private HandshakeExecutor handshakeExecutor;
+    private SslHandlerFactory sslHandlerFactory;
 
     private ChannelHandlerFactory frameHandlerFactory;
 
+    // 全局in-flight DATA预算，单位字节，0表示不限制
+    private long inFlightDataBudget;
+    private InFlightByteBudget inFlightByteBudget;
+
+    // 分阶段超时，单位秒，command阶段使用connectiontimeout
+    private int greetingTimeout = DEFAULT_GREETING_TIMEOUT;
+    private int dataTimeout = DEFAULT_DATA_TIMEOUT;
+    // 所有连接共享的超时timer
+    private volatile HashedWheelTimer timer;
+
+    // 执行阻塞handler的线程数，0表示全部在event loop中执行
+    private int maxExecutorCount = DEFAULT_MAX_EXECUTOR_COUNT;
+    // 等待handler线程的连接数上限，超过后关闭新提交任务的连接
+    private int maxExecutorQueue = OrderedHandlerExecutorGroup.DEFAULT_QUEUE_CAPACITY;
+    // handler执行方式：pooled使用固定线程池，virtual每个session使用virtual thread
+    private boolean virtualThreadExecutor;
+    private HandlerExecutorGroup handlerExecutorGroup;
+
     public final void configure(HierarchicalConfiguration config) throws ConfigurationException {
         enabled = config.getBoolean("[@enabled]", enabled);
         if (!enabled) {
@@ -96,8 +183,57 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
         // 从配置文件中获取ioWorker count
         int ioWorkerCount = config.getInt("ioWorkerCount", DEFAULT_IO_WORKER_COUNT);
         setIoWorker(ioWorkerCount);
+        // 传输方式：epoll|nio|auto
+        String transport = config.getString(TRANSPORT_NAME, TransportType.AUTO.name());
+        try {
+            setTransportType(TransportType.valueOf(transport.trim().toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Invalid transport " + transport + " in configuration of service " + getServiceType(), e);
+        }
+        // 每个地址的SO_REUSEPORT acceptor数量
+        int acceptorShards = config.getInt(ACCEPTOR_SHARDS_NAME, 1);
+        if (acceptorShards < 1) {
+            throw new ConfigurationException("acceptorShards cannot be less than one");
+        }
+        setAcceptorShards(acceptorShards);
+        // outbound buffer水位和全局in-flight DATA预算
+        int highWaterMark = config.getInt(WRITE_BUFFER_HIGH_WATER_MARK_NAME, 64 * 1024);
+        int lowWaterMark = config.getInt(WRITE_BUFFER_LOW_WATER_MARK_NAME, highWaterMark / 2);
+        if (lowWaterMark < 0 || lowWaterMark > highWaterMark) {
+            throw new ConfigurationException("writeBufferLowWaterMark must be between 0 and writeBufferHighWaterMark");
+        }
+        setWriteBufferWaterMark(lowWaterMark, highWaterMark);
+        inFlightDataBudget = config.getLong(DATA_BUDGET_NAME, 0);
+        if (inFlightDataBudget < 0) {
+            throw new ConfigurationException("inFlightDataBudget cannot be less than zero");
+        }
         // 设置超时时间
         setTimeout(config.getInt(TIMEOUT_NAME, DEFAULT_TIMEOUT));
+        greetingTimeout = config.getInt(GREETING_TIMEOUT_NAME, DEFAULT_GREETING_TIMEOUT);
+        dataTimeout = config.getInt(DATA_TIMEOUT_NAME, DEFAULT_DATA_TIMEOUT);
+        if (getTimeout() < 0 || greetingTimeout < 0 || dataTimeout < 0) {
+            throw new ConfigurationException("timeout cannot be less than zero");
+        }
+        int drainTimeout = config.getInt(DRAIN_TIMEOUT_NAME, getDrainTimeout());
+        if (drainTimeout < 0) {
+            throw new ConfigurationException("drainTimeout cannot be less than zero");
+        }
+        setDrainTimeout(drainTimeout);
+
+        maxExecutorCount = config.getInt(MAX_EXECUTOR_COUNT_NAME, DEFAULT_MAX_EXECUTOR_COUNT);
+        if (maxExecutorCount < 0) {
+            throw new ConfigurationException("maxExecutorCount cannot be less than zero");
+        }
+        maxExecutorQueue = config.getInt(MAX_EXECUTOR_QUEUE_NAME, OrderedHandlerExecutorGroup.DEFAULT_QUEUE_CAPACITY);
+        if (maxExecutorQueue <= 0) {
+            throw new ConfigurationException("maxExecutorQueue must be greater than zero");
+        }
+        String handlerExecutor = config.getString(HANDLER_EXECUTOR_NAME, "pooled").trim();
+        if ("virtual".equalsIgnoreCase(handlerExecutor)) {
+            virtualThreadExecutor = true;
+        } else if (!"pooled".equalsIgnoreCase(handlerExecutor)) {
+            throw new ConfigurationException("Invalid handlerExecutor " + handlerExecutor + " in configuration of service " + getServiceType());
+        }
         configureHelloName(config);
 
         // 设置连接限制
@@ -144,9 +280,23 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
             }
             secret = config.getString("tls.secret", secret);
             x509Algorithm = config.getString("tls.algorithm", defaultX509algorithm);
-            // TODO: ssl这里还要好好想想
             // 加密套件
             enabledCipherSuites = config.getStringArray("tls.supportedCipherSuites.cipherSuite");
+            sslSessionCacheSize = config.getInt("tls.sessionCacheSize", sslSessionCacheSize);
+            sslSessionTimeout = config.getInt("tls.sessionTimeout", sslSessionTimeout);
+            if (sslSessionCacheSize < 0 || sslSessionTimeout < 0) {
+                throw new ConfigurationException("tls session cache size and timeout cannot be less than zero");
+            }
+            // 无状态的session ticket(JDK 13+)影响整个JVM中的SSLEngine，并且要在JSSE初始化之前设置，
+            // 不在这里修改，需要时通过启动参数-Djdk.tls.server.enableSessionTicketExtension=true开启
+            handshakeThreads = config.getInt("tls.handshakeThreads", handshakeThreads);
+            handshakeQueueSize = config.getInt("tls.handshakeQueueSize", handshakeQueueSize);
+            handshakeQueueDeadline = config.getLong("tls.handshakeQueueDeadline", handshakeQueueDeadline);
+            handshakeTimeout = config.getLong("tls.handshakeTimeout", handshakeTimeout);
+            keystoreReloadInterval = config.getInt("tls.reloadInterval", keystoreReloadInterval);
+            if (handshakeThreads < 0 || handshakeQueueSize < 1 || handshakeQueueDeadline < 1 || handshakeTimeout < 0 || keystoreReloadInterval < 0) {
+                throw new ConfigurationException("Invalid tls handshake executor configuration");
+            }
         }
         doConfigure(config);
     }
@@ -175,6 +325,20 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     public final void init() throws Exception {
         if (isEnabled()) {
             buildSSLContext();
+            if (inFlightDataBudget > 0) {
+                inFlightByteBudget = new InFlightByteBudget(inFlightDataBudget, inFlightDataBudget / 2);
+            }
+            timer = new HashedWheelTimer();
+            if (sslHandlerFactory != null && keystoreReloadInterval > 0) {
+                keystoreReloader = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory(getServiceType() + "-keystore-reload", true));
+                keystoreReloader.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        reloadKeystore();
+                    }
+                }, keystoreReloadInterval, keystoreReloadInterval, TimeUnit.SECONDS);
+            }
+            handlerExecutorGroup = createHandlerExecutorGroup();
             preInit(); // 子类处理实现
             frameHandlerFactory = createFrameHandlerFactory();
             start();
@@ -186,8 +350,23 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     public final void destroy() {
         logger.info("start dispose {}", getServiceType());
         if (isEnabled()) {
-            // TODO: 实现销毁逻辑
             stop();   // 父类通用方法
+            if (timer != null) {
+                timer.stop();
+                timer = null;
+            }
+            if (keystoreReloader != null) {
+                keystoreReloader.shutdownNow();
+                keystoreReloader = null;
+            }
+            if (handlerExecutorGroup != null) {
+                handlerExecutorGroup.shutdown();
+                handlerExecutorGroup = null;
+            }
+            if (handshakeExecutor != null) {
+                handshakeExecutor.shutdown();
+                handshakeExecutor = null;
+            }
             postDestroy(); //子类实现
         }
         logger.info("end dispose {} done", getServiceType());
@@ -196,25 +375,73 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     // 构建ssl context
     public void buildSSLContext() throws Exception {
         if (useSSL || useStartTLS) {
-            FileInputStream fis = null;
-            try {
-                KeyStore ks = KeyStore.getInstance("JKS");
-                fis = new FileInputStream(fileSystem.getFile(keystore));
-                ks.load(fis, secret.toCharArray());
-
-                // Set up key manager factory to use our key store
-                KeyManagerFactory kmf = KeyManagerFactory.getInstance(x509Algorithm);
-                kmf.init(ks, secret.toCharArray());
-
-                // Initialize the SSLContext to work with our key managers.
-                SSLContext context = SSLContext.getInstance("TLS");
-                context.init(kmf.getKeyManagers(), null, null);
-                encryption = Encryption.createSsl(context, useStartTLS, enabledCipherSuites);
-            } finally {
-                if (fis != null) {
-                    fis.close();
-                }
+            byte[] content = readKeystore();
+            encryption = loadEncryption(content);
+            keystoreChecksum = checksum(content);
+            if (handshakeThreads > 0) {
+                handshakeExecutor = new HandshakeExecutor(handshakeThreads, handshakeQueueSize, handshakeQueueDeadline);
+            }
+            sslHandlerFactory = new SslHandlerFactory(encryption, handshakeExecutor, handshakeTimeout);
+        }
+    }
+
+    private byte[] readKeystore() throws IOException {
+        return Files.readAllBytes(fileSystem.getFile(keystore).toPath());
+    }
+
+    private static byte[] checksum(byte[] content) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-256").digest(content);
+    }
+
+    private Encryption loadEncryption(byte[] content) throws Exception {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        ks.load(new ByteArrayInputStream(content), secret.toCharArray());
+
+        // Set up key manager factory to use our key store
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(x509Algorithm);
+        kmf.init(ks, secret.toCharArray());
+        // 按SNI选择keystore中的证书
+        KeyManager[] keyManagers = kmf.getKeyManagers();
+        for (int i = 0; i < keyManagers.length; i++) {
+            if (keyManagers[i] instanceof X509ExtendedKeyManager) {
+                keyManagers[i] = SniKeyManager.create(ks, (X509ExtendedKeyManager) keyManagers[i]);
+            }
+        }
+
+        // Initialize the SSLContext to work with our key managers.
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers, null, null);
+        SSLSessionContext sessionContext = context.getServerSessionContext();
+        sessionContext.setSessionCacheSize(sslSessionCacheSize);
+        sessionContext.setSessionTimeout(sslSessionTimeout);
+        return Encryption.createSsl(context, useStartTLS, enabledCipherSuites);
+    }
+
+    /**
+     * keystore内容变化时重新加载，新的握手使用新证书，已建立的连接不受影响；加载失败时继续使用原来的证书。
+     * 定期检查和手动调用可能同时发生，同一时刻只有一个线程加载
+     *
+     * @return 是否替换了证书
+     */
+    public synchronized boolean reloadKeystore() {
+        if (sslHandlerFactory == null) {
+            return false;
+        }
+        try {
+            byte[] content = readKeystore();
+            byte[] sum = checksum(content);
+            if (Arrays.equals(sum, keystoreChecksum)) {
+                return false;
             }
+            Encryption reloaded = loadEncryption(content);
+            sslHandlerFactory.setEncryption(reloaded);
+            encryption = reloaded;
+            keystoreChecksum = sum;
+            logger.info("Reloaded keystore {} for {}", keystore, getServiceType());
+            return true;
+        } catch (Exception e) {
+            logger.warn("Unable to reload keystore " + keystore + " for " + getServiceType() + ", keep using the current one", e);
+            return false;
         }
     }
 
@@ -222,6 +449,104 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
         return enabled;
     }
 
+    protected Encryption getEncryption() {
+        return encryption;
+    }
+
+    /**
+     * 创建SslHandler的工厂，未启用TLS时为null，子类创建core handler时传入
+     *
+     * @return factory
+     */
+    protected SslHandlerFactory getSslHandlerFactory() {
+        return sslHandlerFactory;
+    }
+
+    /**
+     * 握手线程池，可以读取队列深度和握手耗时，未启用时为null
+     *
+     * @return executor
+     */
+    public HandshakeExecutor getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+
+    /**
+     * 全局in-flight DATA预算，未配置时为null，子类创建core handler时传入
+     *
+     * @return budget
+     */
+    protected InFlightByteBudget getInFlightByteBudget() {
+        return inFlightByteBudget;
+    }
+
+    // virtual thread不可用时退回到固定线程池
+    private HandlerExecutorGroup createHandlerExecutorGroup() {
+        if (virtualThreadExecutor) {
+            if (VirtualThreadHandlerExecutorGroup.isSupported()) {
+                try {
+                    HandlerExecutorGroup group = new VirtualThreadHandlerExecutorGroup();
+                    logger.info("{} handlers run on virtual threads", getServiceType());
+                    return group;
+                } catch (UnsupportedOperationException e) {
+                    logger.warn("Unable to create virtual thread executor", e);
+                }
+            }
+            logger.warn("Virtual threads are not supported by this JVM, {} falls back to the pooled handler executor", getServiceType());
+        }
+        if (maxExecutorCount > 0) {
+            return new OrderedHandlerExecutorGroup(maxExecutorCount, maxExecutorQueue, getServiceType() + "-handler");
+        }
+        return null;
+    }
+
+    /**
+     * 执行阻塞handler的executor组，未启用时为null，子类创建core handler时传入
+     *
+     * @return executors
+     */
+    protected HandlerExecutorGroup getHandlerExecutorGroup() {
+        return handlerExecutorGroup;
+    }
+
+    // pipeline: [connectionLimit] -> [sslHandler] -> timeoutHandler -> framer -> responseEncoder -> coreHandler
+    @Override
+    protected ChannelInitializer<Channel> createChannelInitializer() {
+        final ChannelHandler coreHandler = createCoreHandler();
+        Response connectionLimitResponse = getConnectionLimitResponse();
+        Response shutdownResponse = getShutdownResponse();
+        List<Response> staticResponses = new ArrayList<Response>(getStaticResponses());
+        if (connectionLimitResponse != null) {
+            staticResponses.add(connectionLimitResponse);
+        }
+        if (shutdownResponse != null) {
+            staticResponses.add(shutdownResponse);
+        }
+        final ResponseEncoder responseEncoder = new ResponseEncoder(staticResponses);
+        // 所有channel共享同一个计数器。socketTLS的连接在握手之前无法写出明文的response，超过限制时直接关闭
+        final ChannelHandler connectionLimitHandler = connectionLimit > 0 || connPerIP > 0
+                ? new ConnectionLimitInboundHandler(connectionLimit, connPerIP, useSSL ? null : connectionLimitResponse) : null;
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel channel) throws Exception {
+                ChannelPipeline pipeline = channel.pipeline();
+                // 放在最前面，超过限制的连接不会开始TLS握手
+                if (connectionLimitHandler != null) {
+                    pipeline.addLast("connectionLimit", connectionLimitHandler);
+                }
+                // socketTLS从第一个字节开始加密，STARTTLS由transport在命令之后插入
+                if (sslHandlerFactory != null && !sslHandlerFactory.isStartTls()) {
+                    pipeline.addLast("sslHandler", sslHandlerFactory.create(channel, false));
+                }
+                // 放在framer之前，DATA中不完整的行也算作活动
+                pipeline.addLast("timeoutHandler", new IdleTimeoutHandler(timer, greetingTimeout, getTimeout(), dataTimeout));
+                pipeline.addLast("framer", frameHandlerFactory.create(pipeline));
+                pipeline.addLast("responseEncoder", responseEncoder);
+                pipeline.addLast("coreHandler", coreHandler);
+            }
+        };
+    }
+
     // 生成服务类型
     public abstract String getServiceType();
 
@@ -248,6 +573,64 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
         // 子类重写
     }
 
-    // 解码器，子类实现
-    protected abstract ChannelHandlerFactory createFrameHandlerFactory();
+    // 解码器，默认按行切分，不生成String
+    protected ChannelHandlerFactory createFrameHandlerFactory() {
+        return new CRLFFrameHandlerFactory(DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    // 没有push的LineHandler(DATA、BDAT等)、没有未完成的命令，并且MAIL/RCPT之后没有进行中的事务时，认为处于两个事务之间
+    @Override
+    protected boolean isIdle(Channel channel) {
+        NettyProtocolTransport transport = channel.attr(BasicChannelInboundHandler.TRANSPORT_KEY).get();
+        if (transport == null) {
+            return true;
+        }
+        if (transport.getPushedLineHandlerCount() > 0 || transport.getOffloadedCount() > 0) {
+            return false;
+        }
+        ProtocolSession session = channel.attr(BasicChannelInboundHandler.SESSION_KEY).get();
+        return !(session instanceof ProtocolSessionImpl) || !((ProtocolSessionImpl) session).hasTransactionState();
+    }
+
+    @Override
+    protected void closeIdle(Channel channel) {
+        Response response = getShutdownResponse();
+        if (response != null) {
+            channel.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            channel.close();
+        }
+    }
+
+    /**
+     * 返回启动时需要预先编码的固定response，默认为{@link SMTPResponses#ALL}，子类重写。
+     * EHLO的扩展列表等运行中生成的{@link com.zhangyx.vmail.protocols.api.StaticResponse}由ResponseEncoder在第一次写出时缓存
+     *
+     * @return responses
+     */
+    protected Collection<? extends Response> getStaticResponses() {
+        return SMTPResponses.ALL;
+    }
+
+    /**
+     * 超过connectionLimit或connectionLimitPerIP时写出的response，默认为{@link SMTPResponses#TOO_MANY_CONNECTIONS}，
+     * 子类重写，返回null时直接关闭连接
+     *
+     * @return response
+     */
+    protected Response getConnectionLimitResponse() {
+        return SMTPResponses.TOO_MANY_CONNECTIONS;
+    }
+
+    /**
+     * 停止服务时写给空闲连接的response，默认为{@link SMTPResponses#SHUTTING_DOWN}，子类重写，返回null时直接关闭连接
+     *
+     * @return response
+     */
+    protected Response getShutdownResponse() {
+        return SMTPResponses.SHUTTING_DOWN;
+    }
+
+    // 协议处理的核心handler，所有channel共享，子类实现
+    protected abstract ChannelHandler createCoreHandler();
 }
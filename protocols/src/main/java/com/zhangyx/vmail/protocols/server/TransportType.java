@@ -0,0 +1,12 @@
+package com.zhangyx.vmail.protocols.server;
+
+/**
+ * 服务器使用的netty传输方式
+ * <p>
+ * AUTO：linux下native epoll可用时使用epoll，否则退回到nio
+ */
+public enum TransportType {
+    NIO,
+    EPOLL,
+    AUTO
+}
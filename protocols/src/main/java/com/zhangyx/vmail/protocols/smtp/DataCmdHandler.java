@@ -0,0 +1,67 @@
+package com.zhangyx.vmail.protocols.smtp;
+
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.Request;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.api.handler.CommandHandler;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * DATA命令，为本次事务创建{@link MessageSpool}并压入{@link DataLineHandler}，回复354
+ * <p>
+ * 不检查发件人和收件人，需要检查时在chain中把处理DATA的其他{@link CommandHandler}放在它前面，
+ * 由它们返回错误response。收到的正文交给构造时传入的{@link DataLineHandler.MessageHook}
+ */
+public class DataCmdHandler implements CommandHandler<ProtocolSession> {
+
+    private static final Collection<String> COMMANDS = Collections.singletonList("DATA");
+
+    private final DataLineHandler.MessageHook<ProtocolSession> hook;
+    private final ByteBufAllocator allocator;
+    private final int spoolThreshold;
+    private final File spoolDirectory;
+
+    public DataCmdHandler(DataLineHandler.MessageHook<ProtocolSession> hook) {
+        this(hook, PooledByteBufAllocator.DEFAULT, MessageSpool.DEFAULT_THRESHOLD, null);
+    }
+
+    /**
+     * @param hook
+     * @param allocator      暂存区在内存中时使用的allocator
+     * @param spoolThreshold 超过后转存到临时文件
+     * @param spoolDirectory 临时文件目录，为null时使用系统的临时目录
+     */
+    public DataCmdHandler(DataLineHandler.MessageHook<ProtocolSession> hook, ByteBufAllocator allocator, int spoolThreshold, File spoolDirectory) {
+        this.hook = hook;
+        this.allocator = allocator;
+        this.spoolThreshold = spoolThreshold;
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    @Override
+    public Response onCommand(ProtocolSession session, Request request) {
+        MessageSpool spool = new MessageSpool(allocator, spoolThreshold, spoolDirectory);
+        session.pushLineHandler(new DataLineHandler<ProtocolSession>(spool, hook));
+        return SMTPResponses.START_MAIL_INPUT;
+    }
+
+    @Override
+    public Collection<String> getImplCommands() {
+        return COMMANDS;
+    }
+
+    @Override
+    public void init(Configuration config) throws ConfigurationException {
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
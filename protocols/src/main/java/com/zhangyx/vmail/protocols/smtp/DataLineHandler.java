@@ -0,0 +1,112 @@
+package com.zhangyx.vmail.protocols.smtp;
+
+import com.google.common.io.Closeables;
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.api.handler.LineHandler;
+import com.zhangyx.vmail.protocols.api.handler.StreamingLineHandler;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * DATA阶段的{@link LineHandler}，由{@link DataCmdHandler}通过{@link ProtocolSession#pushLineHandler(LineHandler)}压入
+ * <p>
+ * 逐行去掉dot-stuffing后写入{@link MessageSpool}，收到结束行"."时弹出自己，并把正文交给{@link MessageHook}。
+ * 每个事务一个实例，连接中途断开时通过{@link #close()}释放暂存区
+ * <p>
+ * 正文的行长不受限制，framer把超长的行切成片段交付(见{@link StreamingLineHandler})
+ * <p>
+ * 只有前一行以CRLF结束时，"."CRLF才是结束行。framer也会在单独的LF处切分，这样的片段不是完整的行，
+ * 原样作为正文写入，下一个片段也不做dot-stuffing处理，防止用&lt;LF&gt;.&lt;LF&gt;等方式提前结束正文(SMTP smuggling)
+ */
+public class DataLineHandler<Session extends ProtocolSession> implements LineHandler<Session>, StreamingLineHandler, Closeable {
+
+    /**
+     * 收到完整正文后调用
+     */
+    public interface MessageHook<Session extends ProtocolSession> {
+
+        /**
+         * 处理收到的邮件正文，方法返回或抛出异常后spool被关闭，需要保留正文时在返回前复制出去
+         *
+         * @param session
+         * @param spool
+         * @return response
+         */
+        Response onMessage(Session session, MessageSpool spool);
+    }
+
+    private final MessageSpool spool;
+    private final MessageHook<Session> hook;
+    private boolean done;
+    // 上一个片段以CRLF结束，当前片段是新一行的开头
+    private boolean atLineStart = true;
+
+    public DataLineHandler(MessageSpool spool, MessageHook<Session> hook) {
+        this.spool = spool;
+        this.hook = hook;
+    }
+
+    @Override
+    public Response onLine(Session session, ByteBuffer buffer) {
+        int start = buffer.position();
+        boolean lineStart = atLineStart;
+        atLineStart = endsWithCRLF(buffer);
+        if (lineStart && buffer.remaining() > 0 && buffer.get(start) == '.') {
+            if (isTerminator(buffer, start)) {
+                session.popLineHandler();
+                done = true;
+                try {
+                    return hook.onMessage(session, spool);
+                } finally {
+                    closeSpool();
+                }
+            }
+            // 去掉行首多出来的"."
+            buffer.position(start + 1);
+        }
+        try {
+            spool.write(buffer);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to spool message data", e);
+        }
+        return null;
+    }
+
+    // 只接受".\r\n"
+    private static boolean isTerminator(ByteBuffer buffer, int start) {
+        return buffer.remaining() == 3 && buffer.get(start + 1) == '\r' && buffer.get(start + 2) == '\n';
+    }
+
+    private static boolean endsWithCRLF(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        return buffer.remaining() >= 2 && buffer.get(limit - 2) == '\r' && buffer.get(limit - 1) == '\n';
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!done) {
+            spool.close();
+        }
+    }
+
+    private void closeSpool() {
+        try {
+            Closeables.close(spool, true);
+        } catch (IOException e) {
+            // 不会发生，异常已被吞掉
+        }
+    }
+
+    @Override
+    public void init(Configuration config) throws ConfigurationException {
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
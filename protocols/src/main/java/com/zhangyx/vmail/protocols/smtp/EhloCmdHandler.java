@@ -0,0 +1,97 @@
+package com.zhangyx.vmail.protocols.smtp;
+
+import com.zhangyx.vmail.protocols.api.ProtocolConfiguration;
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.Request;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.api.StaticResponse;
+import com.zhangyx.vmail.protocols.api.handler.CommandHandler;
+import com.zhangyx.vmail.protocols.api.handler.ProtocolHandlerLookup;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * EHLO命令，回复hello name和所有{@link EhloExtension}通告的扩展，并重置当前事务
+ * <p>
+ * 总是通告{@link PipeliningEhloExtension}。扩展列表在创建时从chain中复制，之后替换chain中的handler不影响该实例。
+ * 内容相同的response只创建一次，{@link com.zhangyx.vmail.protocols.handler.ResponseEncoder}可以缓存它的编码结果
+ */
+public class EhloCmdHandler implements CommandHandler<ProtocolSession> {
+
+    private static final Collection<String> COMMANDS = Collections.singletonList("EHLO");
+    // 不同的扩展组合通常只有几种(TLS前后、认证前后)，超过后不再缓存
+    private static final int MAX_CACHED_RESPONSES = 64;
+
+    private final List<EhloExtension> extensions = new ArrayList<EhloExtension>();
+    private final ConcurrentHashMap<List<String>, Response> responses = new ConcurrentHashMap<List<String>, Response>();
+
+    public EhloCmdHandler(ProtocolHandlerLookup chain) {
+        extensions.add(new PipeliningEhloExtension());
+        for (EhloExtension extension : chain.getHandlers(EhloExtension.class)) {
+            if (!(extension instanceof PipeliningEhloExtension)) {
+                extensions.add(extension);
+            }
+        }
+    }
+
+    @Override
+    public Response onCommand(ProtocolSession session, Request request) {
+        if (request.getArgument() == null) {
+            return SMTPResponses.DOMAIN_REQUIRED;
+        }
+        session.resetState();
+        List<String> lines = new ArrayList<String>();
+        lines.add(getHelloName(session));
+        for (EhloExtension extension : extensions) {
+            List<String> features = extension.getImplementedEsmtpFeatures(session);
+            if (features != null) {
+                lines.addAll(features);
+            }
+        }
+        Response response = responses.get(lines);
+        if (response == null) {
+            response = newResponse(lines);
+            if (responses.size() < MAX_CACHED_RESPONSES) {
+                Response old = responses.putIfAbsent(lines, response);
+                if (old != null) {
+                    response = old;
+                }
+            }
+        }
+        return response;
+    }
+
+    private static String getHelloName(ProtocolSession session) {
+        ProtocolConfiguration config = session.getConfiguration();
+        String helloName = config != null ? config.getHelloName() : null;
+        return helloName != null ? helloName : session.getLocalAddress().getHostString();
+    }
+
+    // 除最后一行外使用"250-"
+    private static Response newResponse(List<String> lines) {
+        String[] formatted = new String[lines.size()];
+        for (int i = 0; i < formatted.length; i++) {
+            formatted[i] = (i == formatted.length - 1 ? "250 " : "250-") + lines.get(i);
+        }
+        return new StaticResponse("250", false, formatted);
+    }
+
+    @Override
+    public Collection<String> getImplCommands() {
+        return COMMANDS;
+    }
+
+    @Override
+    public void init(Configuration config) throws ConfigurationException {
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,20 @@
+package com.zhangyx.vmail.protocols.smtp;
+
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+
+import java.util.List;
+
+/**
+ * EHLO响应中通告的ESMTP扩展，注册在{@link com.zhangyx.vmail.protocols.api.handler.ProtocolHandlerChain}中，
+ * 由EHLO命令收集
+ */
+public interface EhloExtension {
+
+    /**
+     * 返回对当前session通告的扩展关键字
+     *
+     * @param session
+     * @return features
+     */
+    List<String> getImplementedEsmtpFeatures(ProtocolSession session);
+}
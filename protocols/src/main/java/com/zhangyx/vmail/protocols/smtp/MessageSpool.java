@@ -0,0 +1,151 @@
+package com.zhangyx.vmail.protocols.smtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 邮件正文的暂存区
+ * <p>
+ * 小邮件放在池化的direct buffer里，超过threshold后转存到临时文件，之后的数据先攒在写缓冲里再批量写入{@link FileChannel}，
+ * 大邮件不会占用堆内存。读取时返回只读的{@link ByteBuffer}，文件模式下是内存映射区域。
+ * 用完必须调用{@link #close()}释放buffer并删除临时文件
+ */
+public class MessageSpool implements Closeable {
+
+    public static final int DEFAULT_THRESHOLD = 256 * 1024;
+
+    // 文件模式下写缓冲的大小
+    private static final int WRITE_CHUNK_SIZE = 64 * 1024;
+
+    private final ByteBufAllocator allocator;
+    private final int threshold;
+    private final File directory;
+
+    private ByteBuf buffer;
+    private FileChannel fileChannel;
+    private Path file;
+    private long size;
+    private boolean closed;
+
+    public MessageSpool(ByteBufAllocator allocator, int threshold, File directory) {
+        this.allocator = allocator;
+        this.threshold = threshold;
+        this.directory = directory;
+        this.buffer = allocator.directBuffer(Math.min(threshold, WRITE_CHUNK_SIZE));
+    }
+
+    /**
+     * 追加数据，读取src中剩余的全部字节
+     *
+     * @param src
+     * @throws IOException
+     */
+    public void write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        int length = src.remaining();
+        if (fileChannel == null && buffer.readableBytes() + length > threshold) {
+            spill();
+        }
+        if (fileChannel != null && buffer.readableBytes() + length > WRITE_CHUNK_SIZE) {
+            flushBuffer();
+        }
+        if (fileChannel != null && length > WRITE_CHUNK_SIZE) {
+            writeFully(src);
+        } else {
+            buffer.writeBytes(src);
+        }
+        size += length;
+    }
+
+    // 超过阈值，把内存中的数据写入临时文件
+    private void spill() throws IOException {
+        file = directory == null ? Files.createTempFile("vmail-spool", ".eml") : Files.createTempFile(directory.toPath(), "vmail-spool", ".eml");
+        fileChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        flushBuffer();
+        if (buffer.capacity() < WRITE_CHUNK_SIZE) {
+            buffer.release();
+            buffer = allocator.directBuffer(WRITE_CHUNK_SIZE, WRITE_CHUNK_SIZE);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.isReadable()) {
+            writeFully(buffer.nioBuffer());
+        }
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            fileChannel.write(src);
+        }
+    }
+
+    /**
+     * 返回正文的只读视图，文件模式下为内存映射区域
+     *
+     * @return body
+     * @throws IOException
+     */
+    public ByteBuffer asByteBuffer() throws IOException {
+        ensureOpen();
+        if (fileChannel == null) {
+            return buffer.nioBuffer().asReadOnlyBuffer();
+        }
+        flushBuffer();
+        return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /**
+     * 以流的方式读取正文，每次调用都从头开始
+     *
+     * @return stream
+     * @throws IOException
+     */
+    public InputStream getInputStream() throws IOException {
+        return new ByteBufInputStream(Unpooled.wrappedBuffer(asByteBuffer()));
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * 是否已经转存到文件
+     *
+     * @return spilled
+     */
+    public boolean isSpilled() {
+        return fileChannel != null;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Spool already closed");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffer.release();
+        if (fileChannel != null) {
+            fileChannel.close();
+        }
+    }
+}
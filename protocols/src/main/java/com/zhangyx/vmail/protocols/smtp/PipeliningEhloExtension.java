@@ -0,0 +1,42 @@
+package com.zhangyx.vmail.protocols.smtp;
+
+import com.google.common.collect.ImmutableSet;
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.handler.ProtocolHandler;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 通告RFC 2920 PIPELINING
+ * <p>
+ * transport会处理一次read中的全部命令，并在read结束时一次flush所有response。
+ * {@link #GROUP_ENDING_COMMANDS}中的命令结束一个命令组，它们的response立即flush，
+ * 创建{@link com.zhangyx.vmail.protocols.api.handler.CommandDispatcher}时传入。
+ * {@link EhloCmdHandler}总是通告该扩展
+ */
+public class PipeliningEhloExtension implements EhloExtension, ProtocolHandler {
+
+    private static final List<String> FEATURES = Collections.singletonList("PIPELINING");
+
+    /**
+     * RFC 2920 3.1中只能出现在命令组末尾的命令，客户端发送后会等待response
+     */
+    public static final Set<String> GROUP_ENDING_COMMANDS = ImmutableSet.of("EHLO", "HELO", "DATA", "VRFY", "EXPN", "TURN", "QUIT", "NOOP");
+
+    @Override
+    public List<String> getImplementedEsmtpFeatures(ProtocolSession session) {
+        return FEATURES;
+    }
+
+    @Override
+    public void init(Configuration config) throws ConfigurationException {
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
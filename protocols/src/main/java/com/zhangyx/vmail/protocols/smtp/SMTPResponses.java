@@ -0,0 +1,59 @@
+package com.zhangyx.vmail.protocols.smtp;
+
+import com.google.common.collect.ImmutableList;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.api.StartTlsResponse;
+import com.zhangyx.vmail.protocols.api.StaticResponse;
+
+import java.util.List;
+
+/**
+ * 固定内容的SMTP response，启动时交给{@link com.zhangyx.vmail.protocols.handler.ResponseEncoder}预先编码
+ */
+public final class SMTPResponses {
+
+    public static final Response OK = new StaticResponse("250", "2.0.0 OK");
+
+    public static final Response START_MAIL_INPUT = new StaticResponse("354", "Ok Send data ending with <CRLF>.<CRLF>");
+
+    public static final Response RESET = new StaticResponse("250", "2.0.0 Reset state");
+
+    public static final Response TOO_MANY_CONNECTIONS = new StaticResponse("421", true, "421 4.7.0 Too many connections, try again later");
+
+    public static final Response SHUTTING_DOWN = new StaticResponse("421", true, "421 4.3.2 Service shutting down, closing transmission channel");
+
+    public static final Response UNKNOWN_COMMAND = new StaticResponse("500", "5.5.1 Command unrecognized");
+
+    public static final Response LINE_TOO_LONG = new StaticResponse("500", "5.5.6 Line too long");
+
+    public static final Response FATAL_ERROR = new StaticResponse("421", true, "421 4.3.0 Local error in processing, closing transmission channel");
+
+    public static final Response DOMAIN_REQUIRED = new StaticResponse("501", "5.5.4 Domain address required");
+
+    public static final Response TLS_NOT_AVAILABLE = new StaticResponse("454", "4.7.0 TLS not available due to temporary reason");
+
+    public static final Response READY_FOR_TLS = new StaticStartTlsResponse("220", "2.0.0 Ready to start TLS", TLS_NOT_AVAILABLE);
+
+    /**
+     * 所有的常量response
+     */
+    public static final List<Response> ALL = ImmutableList.of(OK, START_MAIL_INPUT, RESET, TOO_MANY_CONNECTIONS, SHUTTING_DOWN, UNKNOWN_COMMAND, LINE_TOO_LONG, FATAL_ERROR, DOMAIN_REQUIRED, TLS_NOT_AVAILABLE, READY_FOR_TLS);
+
+    private SMTPResponses() {
+    }
+
+    private static final class StaticStartTlsResponse extends StaticResponse implements StartTlsResponse {
+
+        private final Response temporaryFailure;
+
+        StaticStartTlsResponse(String retCode, CharSequence description, Response temporaryFailure) {
+            super(retCode, description);
+            this.temporaryFailure = temporaryFailure;
+        }
+
+        @Override
+        public Response getTemporaryFailureResponse() {
+            return temporaryFailure;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.zhangyx.vmail.protocols.smtp;
+
+import com.zhangyx.vmail.protocols.api.ProtocolConfiguration;
+import com.zhangyx.vmail.protocols.api.ProtocolSessionImpl;
+import com.zhangyx.vmail.protocols.api.ProtocolTransport;
+import com.zhangyx.vmail.protocols.api.Response;
+import io.netty.util.Recycler;
+
+/**
+ * SMTP的session，行太长和内部错误时返回{@link SMTPResponses}中的常量
+ * <p>
+ * 通过{@link #newInstance(ProtocolTransport, ProtocolConfiguration)}从对象池获取，连接关闭后由{@link #recycle()}放回
+ */
+public class SMTPSession extends ProtocolSessionImpl {
+
+    private static final Recycler<SMTPSession> RECYCLER = new Recycler<SMTPSession>() {
+        @Override
+        protected SMTPSession newObject(Handle<SMTPSession> handle) {
+            return new SMTPSession(handle);
+        }
+    };
+
+    public SMTPSession(ProtocolTransport transport, ProtocolConfiguration config) {
+        super(transport, config);
+    }
+
+    private SMTPSession(Recycler.Handle<SMTPSession> handle) {
+        super(handle);
+    }
+
+    /**
+     * 从对象池获取session
+     *
+     * @param transport
+     * @param config
+     * @return session
+     */
+    public static SMTPSession newInstance(ProtocolTransport transport, ProtocolConfiguration config) {
+        SMTPSession session = RECYCLER.get();
+        session.init(transport, config);
+        return session;
+    }
+
+    @Override
+    public Response newLineTooLongResponse() {
+        return SMTPResponses.LINE_TOO_LONG;
+    }
+
+    @Override
+    public Response newFatalErrorResponse() {
+        return SMTPResponses.FATAL_ERROR;
+    }
+}
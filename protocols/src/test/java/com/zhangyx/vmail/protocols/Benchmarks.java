@@ -0,0 +1,72 @@
+package com.zhangyx.vmail.protocols;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * 性能测试的公共方法
+ * <p>
+ * 性能测试耗时较长，只在-Dvmail.benchmark=true时运行，否则测试方法直接返回。结果输出到标准输出
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    public static boolean enabled() {
+        return Boolean.getBoolean("vmail.benchmark");
+    }
+
+    /**
+     * 读取int类型的参数，方便调整规模，比如-Dvmail.benchmark.connections=20000
+     *
+     * @param name
+     * @param defaultValue
+     * @return value
+     */
+    public static int intProperty(String name, int defaultValue) {
+        return Integer.getInteger("vmail.benchmark." + name, defaultValue);
+    }
+
+    /**
+     * @param values 会被排序
+     * @param p      0到100
+     * @return 百分位数
+     */
+    public static long percentile(long[] values, double p) {
+        Arrays.sort(values);
+        int index = (int) Math.ceil(p / 100 * values.length) - 1;
+        return values[Math.max(0, Math.min(values.length - 1, index))];
+    }
+
+    /**
+     * 当前线程累计分配的字节数，JVM不支持时返回-1
+     *
+     * @return bytes
+     */
+    public static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * 尽量回收垃圾后的已用堆内存
+     *
+     * @return bytes
+     */
+    public static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void report(String benchmark, String format, Object... args) {
+        System.out.println("[benchmark] " + benchmark + ": " + String.format(format, args));
+    }
+}
@@ -0,0 +1,154 @@
+package com.zhangyx.vmail.protocols;
+
+import com.zhangyx.vmail.ssl.Encryption;
+import com.zhangyx.vmail.ssl.SniKeyManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TLS相关测试的公共方法：用keytool生成自签名证书，按服务器的方式创建{@link Encryption}，在两个EmbeddedChannel之间完成握手
+ */
+public final class TlsTestSupport {
+
+    public static final String PASSWORD = "secret";
+
+    private TlsTestSupport() {
+    }
+
+    /**
+     * 生成JKS keystore，每个alias一张RSA自签名证书
+     *
+     * @param aliasAndHosts alias和证书subjectAltName中的主机名交替出现，比如"mail", "mail.example.com"
+     * @return keystore
+     */
+    public static KeyStore keyStore(String... aliasAndHosts) throws Exception {
+        File file = File.createTempFile("vmail-test", ".jks");
+        // keytool不接受已经存在的空文件
+        file.delete();
+        try {
+            for (int i = 0; i < aliasAndHosts.length; i += 2) {
+                keytool(file, aliasAndHosts[i], aliasAndHosts[i + 1]);
+            }
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            InputStream in = new FileInputStream(file);
+            try {
+                keyStore.load(in, PASSWORD.toCharArray());
+            } finally {
+                in.close();
+            }
+            return keyStore;
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void keytool(File file, String alias, String host) throws IOException, InterruptedException {
+        File keytool = new File(System.getProperty("java.home"), "bin" + File.separator + "keytool");
+        List<String> command = Arrays.asList(keytool.getPath(), "-genkeypair", "-keystore", file.getPath(),
+                "-storetype", "JKS", "-storepass", PASSWORD, "-keypass", PASSWORD, "-alias", alias,
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "1", "-dname", "CN=" + host, "-ext", "SAN=dns:" + host);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        if (!process.waitFor(60, TimeUnit.SECONDS) || process.exitValue() != 0) {
+            throw new IOException("keytool failed for " + alias);
+        }
+    }
+
+    /**
+     * 和服务器加载keystore的方式相同：SunX509 key manager外包一层{@link SniKeyManager}，设置session缓存大小
+     *
+     * @param keyStore
+     * @param sessionCacheSize
+     * @return encryption
+     */
+    public static Encryption encryption(KeyStore keyStore, int sessionCacheSize) throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+        kmf.init(keyStore, PASSWORD.toCharArray());
+        KeyManager[] keyManagers = kmf.getKeyManagers();
+        for (int i = 0; i < keyManagers.length; i++) {
+            if (keyManagers[i] instanceof X509ExtendedKeyManager) {
+                keyManagers[i] = SniKeyManager.create(keyStore, (X509ExtendedKeyManager) keyManagers[i]);
+            }
+        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers, null, null);
+        context.getServerSessionContext().setSessionCacheSize(sessionCacheSize);
+        return Encryption.createSsl(context, false, null);
+    }
+
+    /**
+     * 信任所有证书的客户端context，多次使用同一个context连接同一个host和port时可以恢复session
+     *
+     * @return context
+     */
+    public static SslContext clientContext() throws SSLException {
+        return SslContextBuilder.forClient().sslProvider(SslProvider.JDK)
+                .trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+    }
+
+    /**
+     * @param context
+     * @param host    作为SNI发送，同时是客户端session缓存的key
+     * @return 客户端channel，创建时开始握手
+     */
+    public static EmbeddedChannel client(SslContext context, String host) {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast(context.newHandler(channel.alloc(), host, 25));
+        return channel;
+    }
+
+    /**
+     * 在两个channel之间传递数据直到双方握手完成，握手的delegated task可能在其他线程中执行
+     *
+     * @param client
+     * @param server
+     * @return 双方是否都握手成功
+     */
+    public static boolean handshake(EmbeddedChannel client, EmbeddedChannel server) {
+        SslHandler clientSsl = client.pipeline().get(SslHandler.class);
+        SslHandler serverSsl = server.pipeline().get(SslHandler.class);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!(clientSsl.handshakeFuture().isDone() && serverSsl.handshakeFuture().isDone())) {
+            boolean moved = transfer(client, server) | transfer(server, client);
+            client.runPendingTasks();
+            server.runPendingTasks();
+            if (!moved) {
+                if (System.nanoTime() > deadline) {
+                    return false;
+                }
+                Thread.yield();
+            }
+        }
+        // TLS 1.3的NewSessionTicket在服务器握手完成后发出
+        transfer(server, client);
+        return clientSsl.handshakeFuture().isSuccess() && serverSsl.handshakeFuture().isSuccess();
+    }
+
+    private static boolean transfer(EmbeddedChannel from, EmbeddedChannel to) {
+        boolean moved = false;
+        ByteBuf buf;
+        while ((buf = from.readOutbound()) != null) {
+            to.writeInbound(buf);
+            moved = true;
+        }
+        return moved;
+    }
+}
@@ -0,0 +1,147 @@
+package com.zhangyx.vmail.protocols.api;
+
+import com.zhangyx.vmail.protocols.Benchmarks;
+import com.zhangyx.vmail.protocols.handler.NettyProtocolTransport;
+import com.zhangyx.vmail.protocols.smtp.SMTPSession;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 比较按下标存放在数组中的attachment和原来每个session两个HashMap的方式，每个session占用的内存和读写一次的耗时
+ * <p>
+ * 每个session保存4个connection和4个transaction attachment，值使用共享的常量，只统计容器本身分配的内存
+ */
+public class AttachmentBenchmarkTest {
+
+    private static final String[] CONNECTION_NAMES = {"bench.helo", "bench.user", "bench.tls", "bench.client"};
+    private static final String[] TRANSACTION_NAMES = {"bench.sender", "bench.recipients", "bench.size", "bench.body"};
+    private static final AttachmentKey<?>[] CONNECTION_KEYS = keys(CONNECTION_NAMES);
+    private static final AttachmentKey<?>[] TRANSACTION_KEYS = keys(TRANSACTION_NAMES);
+    private static final Object VALUE = "value";
+
+    private static AttachmentKey<?>[] keys(String[] names) {
+        AttachmentKey<?>[] keys = new AttachmentKey<?>[names.length];
+        for (int i = 0; i < names.length; i++) {
+            keys[i] = AttachmentKey.of(names[i], Object.class);
+        }
+        return keys;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void fill(ProtocolSession session, AttachmentKey<?>[] keys, ProtocolSession.State state) {
+        for (AttachmentKey<?> key : keys) {
+            session.setAttachment((AttachmentKey<Object>) key, VALUE, state);
+        }
+    }
+
+    private static Map<String, Object> map(String[] names) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (String name : names) {
+            map.put(name, VALUE);
+        }
+        return map;
+    }
+
+    @Test
+    public void arraysAgainstHashMaps() {
+        if (!Benchmarks.enabled()) {
+            return;
+        }
+        int sessions = Benchmarks.intProperty("sessions", 100000);
+        int rounds = Benchmarks.intProperty("rounds", 10000000);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        NettyProtocolTransport transport = new NettyProtocolTransport(channel, null);
+
+        // 分配的字节数和保留的内存一致：数组按已分配的key数量一次分配，4个元素的HashMap不会扩容
+        ProtocolSession[] holder = new ProtocolSession[sessions];
+        long before = Benchmarks.allocatedBytes();
+        for (int i = 0; i < sessions; i++) {
+            holder[i] = new SMTPSession(transport, null);
+        }
+        long empty = Benchmarks.allocatedBytes() - before;
+        before = Benchmarks.allocatedBytes();
+        for (ProtocolSession session : holder) {
+            fill(session, CONNECTION_KEYS, ProtocolSession.State.Connection);
+            fill(session, TRANSACTION_KEYS, ProtocolSession.State.Transaction);
+        }
+        long arrays = Benchmarks.allocatedBytes() - before;
+        Object[][] maps = new Object[sessions][];
+        before = Benchmarks.allocatedBytes();
+        for (int i = 0; i < sessions; i++) {
+            maps[i] = new Object[]{map(CONNECTION_NAMES), map(TRANSACTION_NAMES)};
+        }
+        long hashMaps = Benchmarks.allocatedBytes() - before;
+        Benchmarks.report("session attachments", "session without attachments %d bytes, attachment arrays %d bytes/session, "
+                + "two HashMaps %d bytes/session (%d attachment keys allocated)", empty / sessions, arrays / sessions,
+                hashMaps / sessions, AttachmentKey.count());
+
+        SMTPSession session = new SMTPSession(transport, null);
+        // 预热
+        typed(session, rounds / 10);
+        strings(session, rounds / 10);
+        hashMap(new HashMap<String, Object>(), rounds / 10);
+        long start = System.nanoTime();
+        int found = typed(session, rounds);
+        Benchmarks.report("session attachments", "AttachmentKey: %d ns/set+get", (System.nanoTime() - start) / rounds);
+        start = System.nanoTime();
+        found += strings(session, rounds);
+        Benchmarks.report("session attachments", "String key on arrays: %d ns/set+get", (System.nanoTime() - start) / rounds);
+        start = System.nanoTime();
+        found += hashMap(new HashMap<String, Object>(), rounds);
+        Benchmarks.report("session attachments", "HashMap: %d ns/set+get", (System.nanoTime() - start) / rounds);
+        assertTrue(found > 0);
+        channel.finishAndReleaseAll();
+    }
+
+    // 每条命令写入一个transaction attachment并读出，每4条命令RSET一次
+    @SuppressWarnings("unchecked")
+    private static int typed(ProtocolSession session, int rounds) {
+        int found = 0;
+        for (int i = 0; i < rounds; i++) {
+            AttachmentKey<Object> key = (AttachmentKey<Object>) TRANSACTION_KEYS[i & 3];
+            session.setAttachment(key, VALUE, ProtocolSession.State.Transaction);
+            if (session.getAttachment(key, ProtocolSession.State.Transaction) != null) {
+                found++;
+            }
+            if ((i & 3) == 3) {
+                session.resetState();
+            }
+        }
+        return found;
+    }
+
+    private static int strings(ProtocolSession session, int rounds) {
+        int found = 0;
+        for (int i = 0; i < rounds; i++) {
+            String key = TRANSACTION_NAMES[i & 3];
+            session.setAttachment(key, VALUE, ProtocolSession.State.Transaction);
+            if (session.getAttachment(key, ProtocolSession.State.Transaction) != null) {
+                found++;
+            }
+            if ((i & 3) == 3) {
+                session.resetState();
+            }
+        }
+        return found;
+    }
+
+    private static int hashMap(Map<String, Object> state, int rounds) {
+        int found = 0;
+        for (int i = 0; i < rounds; i++) {
+            String key = TRANSACTION_NAMES[i & 3];
+            state.put(key, VALUE);
+            if (state.get(key) != null) {
+                found++;
+            }
+            if ((i & 3) == 3) {
+                state.clear();
+            }
+        }
+        return found;
+    }
+}
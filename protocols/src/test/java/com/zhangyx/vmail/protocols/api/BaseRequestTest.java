@@ -0,0 +1,29 @@
+package com.zhangyx.vmail.protocols.api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class BaseRequestTest {
+
+    @Test
+    public void recycledRequestIsReused() {
+        BaseRequest request = BaseRequest.newInstance("MAIL", "FROM:<a@example.com>");
+        request.recycle();
+        BaseRequest reused = BaseRequest.newInstance("NOOP", null);
+        assertSame(request, reused);
+        assertEquals("NOOP", reused.getCommand());
+        assertNull(reused.getArgument());
+        reused.recycle();
+    }
+
+    @Test
+    public void unpooledRequestIsOnlyCleared() {
+        BaseRequest request = new BaseRequest("RSET", null);
+        request.recycle();
+        request.recycle();
+        assertNull(request.getCommand());
+    }
+}
@@ -0,0 +1,142 @@
+package com.zhangyx.vmail.protocols.api;
+
+import com.zhangyx.vmail.protocols.handler.NettyProtocolTransport;
+import com.zhangyx.vmail.protocols.smtp.SMTPSession;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProtocolSessionImplTest {
+
+    private static final AttachmentKey<String> SENDER = AttachmentKey.of("test.sender", String.class);
+    private static final AttachmentKey<String> HELO = AttachmentKey.of("test.helo", String.class);
+
+    private EmbeddedChannel channel;
+    private ProtocolSessionImpl session;
+
+    @Before
+    public void setUp() {
+        channel = new EmbeddedChannel();
+        session = new SMTPSession(new NettyProtocolTransport(channel, null), null);
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void transactionStateEndsWithReset() {
+        session.setAttachment(HELO, "client.example.com", ProtocolSession.State.Connection);
+        assertFalse(session.hasTransactionState());
+        session.setAttachment(SENDER, "a@example.com", ProtocolSession.State.Transaction);
+        assertTrue(session.hasTransactionState());
+        session.resetState();
+        assertFalse(session.hasTransactionState());
+    }
+
+    @Test
+    public void stateScopesAreSeparate() {
+        session.setAttachment(SENDER, "connection", ProtocolSession.State.Connection);
+        session.setAttachment(SENDER, "transaction", ProtocolSession.State.Transaction);
+        assertEquals("connection", session.getAttachment(SENDER, ProtocolSession.State.Connection));
+        session.resetState();
+        assertNull(session.getAttachment(SENDER, ProtocolSession.State.Transaction));
+        assertEquals("connection", session.getAttachment(SENDER, ProtocolSession.State.Connection));
+    }
+
+    @Test
+    public void stringKeysShareTheSlotOfTypedKeys() {
+        session.setAttachment("test.sender", "a@example.com", ProtocolSession.State.Transaction);
+        assertEquals("a@example.com", session.getAttachment(SENDER, ProtocolSession.State.Transaction));
+        assertEquals("a@example.com", session.setAttachment(SENDER, "b@example.com", ProtocolSession.State.Transaction));
+        assertEquals("b@example.com", session.getAttachment("test.sender", ProtocolSession.State.Transaction));
+        // 没有设置过的名字
+        assertNull(session.getAttachment("test.unset", ProtocolSession.State.Transaction));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void deprecatedMapsViewTheAttachments() {
+        Map<String, Object> state = session.getState();
+        assertTrue(state.isEmpty());
+        state.put("test.sender", "a@example.com");
+        session.setAttachment(HELO, "client.example.com", ProtocolSession.State.Transaction);
+        session.setAttachment(HELO, "client.example.com", ProtocolSession.State.Connection);
+        assertEquals("a@example.com", session.getAttachment(SENDER, ProtocolSession.State.Transaction));
+        assertEquals(2, state.size());
+        assertTrue(state.containsKey("test.helo"));
+
+        Iterator<Map.Entry<String, Object>> entries = state.entrySet().iterator();
+        while (entries.hasNext()) {
+            if ("test.helo".equals(entries.next().getKey())) {
+                entries.remove();
+            }
+        }
+        assertNull(session.getAttachment(HELO, ProtocolSession.State.Transaction));
+        assertEquals("a@example.com", state.remove("test.sender"));
+        assertFalse(session.hasTransactionState());
+
+        // clear只影响对应的state
+        state.put("test.sender", "a@example.com");
+        session.getConnectionState().clear();
+        assertNull(session.getAttachment(HELO, ProtocolSession.State.Connection));
+        assertEquals("a@example.com", session.getAttachment(SENDER, ProtocolSession.State.Transaction));
+    }
+
+    @Test
+    public void recycledSessionIsClearedAndReused() {
+        ProtocolSessionImpl pooled = SMTPSession.newInstance(new NettyProtocolTransport(channel, null), null);
+        pooled.setAttachment(HELO, "client.example.com", ProtocolSession.State.Connection);
+        pooled.setAttachment(SENDER, "a@example.com", ProtocolSession.State.Transaction);
+        pooled.setUser("user");
+        pooled.recycle();
+
+        ProtocolSessionImpl reused = SMTPSession.newInstance(new NettyProtocolTransport(channel, null), null);
+        assertSame(pooled, reused);
+        assertNull(reused.getAttachment(HELO, ProtocolSession.State.Connection));
+        assertNull(reused.getAttachment(SENDER, ProtocolSession.State.Transaction));
+        assertNull(reused.getUser());
+        assertFalse(reused.hasTransactionState());
+        reused.recycle();
+    }
+
+    @Test
+    public void staleHolderNoticesReuse() {
+        ProtocolSessionImpl pooled = SMTPSession.newInstance(new NettyProtocolTransport(channel, null), null);
+        int generation = pooled.getGeneration();
+        assertTrue(pooled.isCurrent(generation));
+        pooled.recycle();
+        ProtocolSessionImpl reused = SMTPSession.newInstance(new NettyProtocolTransport(channel, null), null);
+        assertSame(pooled, reused);
+        assertFalse(reused.isCurrent(generation));
+        try {
+            reused.ensureCurrent(generation);
+            fail("stale generation must be rejected");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+        reused.ensureCurrent(reused.getGeneration());
+        reused.recycle();
+    }
+
+    @Test
+    public void unpooledSessionIsOnlyCleared() {
+        session.setAttachment(HELO, "client.example.com", ProtocolSession.State.Connection);
+        int generation = session.getGeneration();
+        session.recycle();
+        assertFalse(session.isCurrent(generation));
+        session.recycle();
+    }
+}
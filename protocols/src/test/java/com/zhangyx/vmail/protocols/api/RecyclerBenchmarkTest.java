@@ -0,0 +1,139 @@
+package com.zhangyx.vmail.protocols.api;
+
+import com.zhangyx.vmail.protocols.Benchmarks;
+import com.zhangyx.vmail.protocols.api.handler.CommandDispatcher;
+import com.zhangyx.vmail.protocols.api.handler.CommandHandler;
+import com.zhangyx.vmail.protocols.api.handler.ProtocolHandlerChain;
+import com.zhangyx.vmail.protocols.api.handler.ProtocolHandlerChainImpl;
+import com.zhangyx.vmail.protocols.handler.BasicChannelInboundHandler;
+import com.zhangyx.vmail.protocols.smtp.SMTPResponses;
+import com.zhangyx.vmail.protocols.smtp.SMTPSession;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import org.apache.commons.configuration.Configuration;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.junit.Assert.assertSame;
+
+/**
+ * 池化session和Request前后每个连接、每条命令在堆上分配的字节数
+ * <p>
+ * 连接通过{@link BasicChannelInboundHandler}建立和关闭，比较{@link SMTPSession#newInstance}和直接创建session；
+ * 命令经过{@link CommandDispatcher}，其中的Request总是池化的，另外测量一个不池化的Request的大小作为对比。
+ * EmbeddedChannel本身的分配在两种方式中相同，单独测量一个只有空handler的channel作为基准
+ */
+public class RecyclerBenchmarkTest {
+
+    private static final CommandHandler<ProtocolSession> NOOP = new CommandHandler<ProtocolSession>() {
+        @Override
+        public Response onCommand(ProtocolSession session, Request request) {
+            return SMTPResponses.OK;
+        }
+
+        @Override
+        public Collection<String> getImplCommands() {
+            return Collections.singletonList("NOOP");
+        }
+
+        @Override
+        public void init(Configuration config) {
+        }
+
+        @Override
+        public void destroy() {
+        }
+    };
+
+    @ChannelHandler.Sharable
+    private static final class EmptyHandler extends ChannelInboundHandlerAdapter {
+    }
+
+    private static BasicChannelInboundHandler handler(final boolean pooled) {
+        ProtocolHandlerChainImpl commands = new ProtocolHandlerChainImpl(Collections.singletonList(NOOP));
+        final ProtocolHandlerChain chain = new ProtocolHandlerChainImpl(Arrays.asList(NOOP,
+                new CommandDispatcher<ProtocolSession>(commands, SMTPResponses.UNKNOWN_COMMAND)));
+        Protocol protocol = new Protocol() {
+            @Override
+            public ProtocolHandlerChain getProtocolChain() {
+                return chain;
+            }
+
+            @Override
+            public ProtocolConfiguration getConfiguration() {
+                return null;
+            }
+
+            @Override
+            public ProtocolSession newSession(ProtocolTransport transport) {
+                return pooled ? SMTPSession.newInstance(transport, null) : new SMTPSession(transport, null);
+            }
+        };
+        return new BasicChannelInboundHandler(protocol, null, null, null);
+    }
+
+    @Test
+    public void allocationPerConnectionAndCommand() {
+        if (!Benchmarks.enabled()) {
+            return;
+        }
+        int connections = Benchmarks.intProperty("connections", 200000);
+        int commands = Benchmarks.intProperty("commands", 1000000);
+        BasicChannelInboundHandler pooled = handler(true);
+        BasicChannelInboundHandler unpooled = handler(false);
+        // 预热
+        connect(pooled, connections / 10);
+        connect(unpooled, connections / 10);
+
+        long channelBytes = connect(new EmptyHandler(), connections);
+        long pooledBytes = connect(pooled, connections);
+        long unpooledBytes = connect(unpooled, connections);
+        Benchmarks.report("recycler", "per connection: pooled session %d bytes, new session %d bytes, "
+                        + "of which the EmbeddedChannel itself %d bytes",
+                pooledBytes / connections, unpooledBytes / connections, channelBytes / connections);
+
+        EmbeddedChannel channel = new EmbeddedChannel(pooled);
+        send(channel, commands / 10);
+        long commandBytes = send(channel, commands);
+        channel.finishAndReleaseAll();
+        Benchmarks.report("recycler", "per command: %d bytes with pooled Request, an unpooled Request adds %d bytes",
+                commandBytes / commands, unpooledRequestBytes(commands) / commands);
+    }
+
+    private static long connect(ChannelHandler handler, int connections) {
+        long allocated = Benchmarks.allocatedBytes();
+        for (int i = 0; i < connections; i++) {
+            EmbeddedChannel channel = new EmbeddedChannel(handler);
+            channel.close();
+        }
+        return Benchmarks.allocatedBytes() - allocated;
+    }
+
+    private static long send(EmbeddedChannel channel, int commands) {
+        byte[] line = "NOOP\r\n".getBytes(CharsetUtil.US_ASCII);
+        long allocated = Benchmarks.allocatedBytes();
+        for (int i = 0; i < commands; i++) {
+            ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(line.length);
+            channel.writeInbound(buf.writeBytes(line));
+            assertSame(SMTPResponses.OK, channel.readOutbound());
+        }
+        return Benchmarks.allocatedBytes() - allocated;
+    }
+
+    // 写入数组，避免逃逸分析消除分配
+    private static long unpooledRequestBytes(int commands) {
+        BaseRequest[] sink = new BaseRequest[1024];
+        long allocated = Benchmarks.allocatedBytes();
+        for (int i = 0; i < commands; i++) {
+            sink[i & 1023] = new BaseRequest("NOOP", null);
+        }
+        return Benchmarks.allocatedBytes() - allocated;
+    }
+}
@@ -0,0 +1,78 @@
+package com.zhangyx.vmail.protocols.api.handler;
+
+import io.netty.util.CharsetUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CommandTrieTest {
+
+    private CommandTrie<String> trie;
+
+    @Before
+    public void setUp() {
+        trie = new CommandTrie<String>();
+        trie.put("EHLO", "ehlo");
+        trie.put("HELO", "helo");
+        trie.put("mail", "mail");
+        trie.put("MAILX", "mailx");
+        trie.put("QUIT", "quit");
+    }
+
+    private String find(String line) {
+        return trie.find(ByteBuffer.wrap(line.getBytes(CharsetUtil.ISO_8859_1)));
+    }
+
+    @Test
+    public void lookupIgnoresCase() {
+        assertEquals("ehlo", find("ehlo client.example.com\r\n"));
+        assertEquals("ehlo", find("EhLo client.example.com\r\n"));
+        assertEquals("mail", find("MAIL FROM:<a@example.com>\r\n"));
+    }
+
+    @Test
+    public void commandEndsAtSpaceOrLineEnd() {
+        assertEquals("quit", find("QUIT\r\n"));
+        assertEquals("quit", find("quit\n"));
+        assertEquals("quit", find("QUIT"));
+        assertEquals("mail", find("MAIL FROM:<a@example.com>"));
+        assertEquals("mailx", find("MAILX\r\n"));
+    }
+
+    @Test
+    public void prefixesAndLongerWordsDoNotMatch() {
+        assertNull(find("MAI\r\n"));
+        assertNull(find("EHLOX client.example.com\r\n"));
+        assertNull(find("MAILFROM:<a@example.com>\r\n"));
+        assertNull(find("\r\n"));
+        assertNull(find(""));
+    }
+
+    @Test
+    public void nonAsciiBytesDoNotMatch() {
+        assertNull(find("EHLÖ client.example.com\r\n"));
+    }
+
+    @Test
+    public void lookupStartsAtPositionAndLeavesItUnchanged() {
+        ByteBuffer buffer = ByteBuffer.wrap("xxHELO client.example.com\r\n".getBytes(CharsetUtil.US_ASCII));
+        buffer.position(2);
+        assertEquals("helo", trie.find(buffer));
+        assertEquals(2, buffer.position());
+    }
+
+    @Test
+    public void putReplacesTheValue() {
+        assertEquals("quit", trie.put("quit", "quit2"));
+        assertEquals("quit2", find("QUIT\r\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void commandsMustBeAscii() {
+        trie.put("EHLÖ", "bad");
+    }
+}
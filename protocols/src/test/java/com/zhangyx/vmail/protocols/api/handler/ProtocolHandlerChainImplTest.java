@@ -0,0 +1,68 @@
+package com.zhangyx.vmail.protocols.api.handler;
+
+import org.apache.commons.configuration.Configuration;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProtocolHandlerChainImplTest {
+
+    private static final class CountingHandler implements ProtocolHandler {
+
+        int destroyed;
+
+        @Override
+        public void init(Configuration config) {
+        }
+
+        @Override
+        public void destroy() {
+            destroyed++;
+        }
+    }
+
+    @Test
+    public void handlerStaysWhileAnOlderSnapshotIsInUse() {
+        CountingHandler shared = new CountingHandler();
+        ProtocolHandlerChainImpl chain = new ProtocolHandlerChainImpl(Collections.singletonList(shared));
+        ProtocolHandlerChainImpl.Snapshot a = chain.acquire();
+
+        chain.setHandlers(Collections.singletonList(shared));
+        chain.setHandlers(Collections.emptyList());
+        assertEquals(0, shared.destroyed);
+
+        a.release();
+        assertEquals(1, shared.destroyed);
+    }
+
+    @Test
+    public void handlerReaddedLaterIsNotDestroyed() {
+        CountingHandler kept = new CountingHandler();
+        CountingHandler removed = new CountingHandler();
+        ProtocolHandlerChainImpl chain = new ProtocolHandlerChainImpl(Arrays.asList(kept, removed));
+        ProtocolHandlerChainImpl.Snapshot a = chain.acquire();
+
+        chain.setHandlers(Collections.emptyList());
+        chain.setHandlers(Collections.singletonList(kept));
+        a.release();
+        assertEquals(0, kept.destroyed);
+        assertEquals(1, removed.destroyed);
+
+        chain.destroy();
+        assertEquals(1, kept.destroyed);
+        assertEquals(1, removed.destroyed);
+    }
+
+    @Test
+    public void duplicateHandlerIsDestroyedOnce() {
+        CountingHandler handler = new CountingHandler();
+        ProtocolHandlerChainImpl chain = new ProtocolHandlerChainImpl(Arrays.asList(handler, handler));
+        chain.setHandlers(Collections.emptyList());
+        assertEquals(1, handler.destroyed);
+        chain.destroy();
+        assertEquals(1, handler.destroyed);
+    }
+}
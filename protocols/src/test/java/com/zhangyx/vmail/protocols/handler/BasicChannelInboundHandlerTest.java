@@ -0,0 +1,224 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.api.Protocol;
+import com.zhangyx.vmail.protocols.api.ProtocolConfiguration;
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.ProtocolTransport;
+import com.zhangyx.vmail.protocols.api.Request;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.api.handler.BlockingHandler;
+import com.zhangyx.vmail.protocols.api.handler.CommandDispatcher;
+import com.zhangyx.vmail.protocols.api.handler.CommandHandler;
+import com.zhangyx.vmail.protocols.api.handler.LineHandler;
+import com.zhangyx.vmail.protocols.api.handler.ProtocolHandlerChain;
+import com.zhangyx.vmail.protocols.api.handler.ProtocolHandlerChainImpl;
+import com.zhangyx.vmail.protocols.smtp.SMTPResponses;
+import com.zhangyx.vmail.protocols.smtp.SMTPSession;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import org.apache.commons.configuration.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BasicChannelInboundHandlerTest {
+
+    private final List<String> lines = new ArrayList<String>();
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+    private EmbeddedChannel channel;
+    // executor饱和，拒绝所有任务
+    private boolean rejecting;
+
+    @Before
+    public void setUp() {
+        final LineHandler<ProtocolSession> lineHandler = new LineHandler<ProtocolSession>() {
+            @Override
+            public Response onLine(ProtocolSession session, ByteBuffer buffer) {
+                String line = CharsetUtil.US_ASCII.decode(buffer).toString();
+                lines.add(line);
+                return line.startsWith("STARTTLS") ? SMTPResponses.READY_FOR_TLS : SMTPResponses.OK;
+            }
+
+            @Override
+            public void init(Configuration config) {
+            }
+
+            @Override
+            public void destroy() {
+            }
+        };
+        channel = newChannel(Collections.singletonList(lineHandler), true);
+    }
+
+    private EmbeddedChannel newChannel(List<?> handlers, final boolean offloadAll) {
+        final ProtocolHandlerChain chain = new ProtocolHandlerChainImpl(handlers);
+        Protocol protocol = new Protocol() {
+            @Override
+            public ProtocolHandlerChain getProtocolChain() {
+                return chain;
+            }
+
+            @Override
+            public ProtocolConfiguration getConfiguration() {
+                return null;
+            }
+
+            @Override
+            public ProtocolSession newSession(ProtocolTransport transport) {
+                return new SMTPSession(transport, null);
+            }
+        };
+        HandlerExecutorGroup executors = new HandlerExecutorGroup() {
+            @Override
+            public Executor next() {
+                return new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        if (rejecting) {
+                            throw new RejectedExecutionException();
+                        }
+                        tasks.add(command);
+                    }
+                };
+            }
+
+            @Override
+            public boolean isOffloadAll() {
+                return offloadAll;
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+        return new EmbeddedChannel(new BasicChannelInboundHandler(protocol, null, null, executors));
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+        channel.runPendingTasks();
+    }
+
+    private void writeLine(String line) {
+        channel.writeInbound(Unpooled.copiedBuffer(line, CharsetUtil.US_ASCII));
+    }
+
+    @Test
+    public void linesQueuedBehindStartTlsAreDropped() {
+        writeLine("STARTTLS\r\n");
+        writeLine("MAIL FROM:<evil@example.com>\r\n");
+        runTasks();
+        assertEquals(Collections.singletonList("STARTTLS\r\n"), lines);
+        assertSame(SMTPResponses.READY_FOR_TLS, channel.readOutbound());
+        assertEquals(null, channel.readOutbound());
+
+        writeLine("EHLO client.example.com\r\n");
+        runTasks();
+        assertEquals(Arrays.asList("STARTTLS\r\n", "EHLO client.example.com\r\n"), lines);
+        assertSame(SMTPResponses.OK, channel.readOutbound());
+    }
+
+    @Test
+    public void linesReadBeforeTlsStartsAreDropped() {
+        writeLine("STARTTLS\r\n");
+        tasks.remove(0).run();
+        writeLine("MAIL FROM:<evil@example.com>\r\n");
+        runTasks();
+        assertEquals(Collections.singletonList("STARTTLS\r\n"), lines);
+        assertSame(SMTPResponses.READY_FOR_TLS, channel.readOutbound());
+        assertEquals(null, channel.readOutbound());
+    }
+
+    private static class TestCommandHandler implements CommandHandler<ProtocolSession> {
+
+        private final String command;
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        TestCommandHandler(String command) {
+            this.command = command;
+        }
+
+        @Override
+        public Response onCommand(ProtocolSession session, Request request) {
+            threads.add(Thread.currentThread());
+            return SMTPResponses.OK;
+        }
+
+        @Override
+        public Collection<String> getImplCommands() {
+            return Collections.singletonList(command);
+        }
+
+        @Override
+        public void init(Configuration config) {
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    private static class BlockingCommandHandler extends TestCommandHandler implements BlockingHandler {
+
+        BlockingCommandHandler(String command) {
+            super(command);
+        }
+    }
+
+    @Test
+    public void blockingCommandHandlerRunsOnTheExecutor() throws Exception {
+        channel.finishAndReleaseAll();
+        TestCommandHandler noop = new TestCommandHandler("NOOP");
+        TestCommandHandler vrfy = new BlockingCommandHandler("VRFY");
+        CommandDispatcher<ProtocolSession> dispatcher = new CommandDispatcher<ProtocolSession>(
+                new ProtocolHandlerChainImpl(Arrays.asList(noop, vrfy)), SMTPResponses.UNKNOWN_COMMAND);
+        channel = newChannel(Arrays.asList(noop, vrfy, dispatcher), false);
+
+        // 非阻塞的命令在event loop中直接处理
+        writeLine("NOOP\r\n");
+        assertEquals(Collections.singletonList(Thread.currentThread()), noop.threads);
+        assertTrue(tasks.isEmpty());
+        assertSame(SMTPResponses.OK, channel.readOutbound());
+
+        writeLine("vrfy postmaster\r\n");
+        assertTrue(vrfy.threads.isEmpty());
+        assertEquals(1, tasks.size());
+        Thread worker = new Thread(tasks.remove(0), "handler-executor");
+        worker.start();
+        worker.join();
+        assertEquals(Collections.singletonList(worker), vrfy.threads);
+        channel.runPendingTasks();
+        assertSame(SMTPResponses.OK, channel.readOutbound());
+    }
+
+    @Test
+    public void saturatedExecutorClosesTheConnection() {
+        rejecting = true;
+        writeLine("MAIL FROM:<user@example.com>\r\n");
+        assertTrue(lines.isEmpty());
+        assertSame(SMTPResponses.FATAL_ERROR, channel.readOutbound());
+        assertFalse(channel.isOpen());
+    }
+}
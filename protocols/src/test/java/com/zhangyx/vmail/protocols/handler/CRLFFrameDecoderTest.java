@@ -0,0 +1,110 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class CRLFFrameDecoderTest {
+
+    private CRLFFrameDecoder decoder;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        decoder = new CRLFFrameDecoder(16);
+        channel = new EmbeddedChannel(decoder);
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    private void write(String data) {
+        channel.writeInbound(Unpooled.copiedBuffer(data, CharsetUtil.US_ASCII));
+    }
+
+    private String readLine() {
+        ByteBuf frame = channel.readInbound();
+        if (frame == null) {
+            return null;
+        }
+        try {
+            return frame.toString(CharsetUtil.US_ASCII);
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void linesSplitAcrossReadsAreReassembled() {
+        write("MA");
+        assertNull(readLine());
+        write("IL FROM:<>\r\nRC");
+        assertEquals("MAIL FROM:<>\r\n", readLine());
+        assertNull(readLine());
+        write("PT TO:<a@b>\r\n");
+        assertEquals("RCPT TO:<a@b>\r\n", readLine());
+    }
+
+    @Test
+    public void bareLfEndsALine() {
+        write("NOOP\nQUIT\r\n");
+        assertEquals("NOOP\n", readLine());
+        assertEquals("QUIT\r\n", readLine());
+    }
+
+    @Test
+    public void framesShareTheInputBuffer() {
+        write("NOOP\r\nQUIT\r\n");
+        ByteBuf frame = channel.readInbound();
+        try {
+            assertNotNull(frame.unwrap());
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void tooLongLineIsDiscardedUpToTheNextLineEnd() {
+        try {
+            write("0123456789ABCDEFGHIJ\r\nNOOP\r\n");
+            fail("Expected TooLongFrameException");
+        } catch (TooLongFrameException e) {
+            // 后面的行照常切分
+        }
+        assertEquals("NOOP\r\n", readLine());
+    }
+
+    @Test
+    public void unterminatedLongLineIsDiscardedAcrossReads() {
+        try {
+            write("0123456789ABCDEFGHIJ");
+            fail("Expected TooLongFrameException");
+        } catch (TooLongFrameException e) {
+            // 继续丢弃直到行尾
+        }
+        write("KLMNOP\r\nQUIT\r\n");
+        assertEquals("QUIT\r\n", readLine());
+        assertNull(readLine());
+    }
+
+    @Test
+    public void bufferedInputCanBeDiscarded() {
+        write("STARTTLS\r\nMAIL FROM");
+        assertEquals("STARTTLS\r\n", readLine());
+        decoder.discardBufferedInput();
+        write(":<>\r\n");
+        assertEquals(":<>\r\n", readLine());
+    }
+}
@@ -0,0 +1,103 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.smtp.SMTPResponses;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultChannelId;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionLimitInboundHandlerTest {
+
+    // EmbeddedChannel的远程地址不是InetSocketAddress，注册前设置好地址
+    private static class RemoteChannel extends EmbeddedChannel {
+
+        private final InetSocketAddress remote;
+
+        RemoteChannel(String ip, ChannelHandler... handlers) throws Exception {
+            super(DefaultChannelId.newInstance(), false, false, handlers);
+            this.remote = new InetSocketAddress(ip, 25);
+            register();
+        }
+
+        @Override
+        protected SocketAddress remoteAddress0() {
+            return remote;
+        }
+    }
+
+    // 记录channelActive是否传播到后面的handler
+    private static class ActiveRecorder extends ChannelInboundHandlerAdapter {
+
+        private boolean active;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            active = true;
+            super.channelActive(ctx);
+        }
+    }
+
+    @Test
+    public void connectionsOverTheLimitGetTheResponseAndAreClosed() throws Exception {
+        ConnectionLimitInboundHandler limit = new ConnectionLimitInboundHandler(1, 0, SMTPResponses.TOO_MANY_CONNECTIONS);
+        ActiveRecorder admitted = new ActiveRecorder();
+        EmbeddedChannel first = new RemoteChannel("192.0.2.1", limit, admitted);
+        assertTrue(admitted.active);
+        assertEquals(1, limit.getConnectionCount());
+
+        ActiveRecorder rejected = new ActiveRecorder();
+        EmbeddedChannel second = new RemoteChannel("192.0.2.2", limit, rejected);
+        assertFalse(rejected.active);
+        assertSame(SMTPResponses.TOO_MANY_CONNECTIONS, second.readOutbound());
+        assertFalse(second.isOpen());
+        // 被拒绝的连接关闭时不会释放计数
+        assertEquals(1, limit.getConnectionCount());
+
+        first.close();
+        assertEquals(0, limit.getConnectionCount());
+        EmbeddedChannel third = new RemoteChannel("192.0.2.2", limit);
+        assertTrue(third.isOpen());
+        third.close();
+    }
+
+    @Test
+    public void perIPLimitIsTrackedSeparately() throws Exception {
+        ConnectionLimitInboundHandler limit = new ConnectionLimitInboundHandler(0, 1, SMTPResponses.TOO_MANY_CONNECTIONS);
+        EmbeddedChannel first = new RemoteChannel("192.0.2.1", limit);
+        EmbeddedChannel other = new RemoteChannel("192.0.2.2", limit);
+        assertTrue(other.isOpen());
+        assertEquals(2, limit.getTrackedIPCount());
+
+        EmbeddedChannel second = new RemoteChannel("192.0.2.1", limit);
+        assertFalse(second.isOpen());
+
+        // 计数归零的ip从map中移除
+        first.close();
+        other.close();
+        assertEquals(0, limit.getTrackedIPCount());
+        EmbeddedChannel again = new RemoteChannel("192.0.2.1", limit);
+        assertTrue(again.isOpen());
+        again.close();
+    }
+
+    @Test
+    public void withoutResponseTheConnectionIsClosedSilently() throws Exception {
+        ConnectionLimitInboundHandler limit = new ConnectionLimitInboundHandler(1, 0, null);
+        EmbeddedChannel first = new RemoteChannel("192.0.2.1", limit);
+        EmbeddedChannel second = new RemoteChannel("192.0.2.1", limit);
+        assertFalse(second.isOpen());
+        assertNull(second.readOutbound());
+        first.close();
+    }
+}
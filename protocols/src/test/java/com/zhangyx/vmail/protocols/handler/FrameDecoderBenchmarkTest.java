@@ -0,0 +1,96 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.Benchmarks;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DelimiterBasedFrameDecoder;
+import io.netty.handler.codec.Delimiters;
+import io.netty.handler.codec.string.StringDecoder;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 比较{@link CRLFFrameDecoder}和原来的DelimiterBasedFrameDecoder + StringDecoder切分同样输入的速度和每行分配的字节数
+ * <p>
+ * 输入是一批典型的SMTP命令和DATA中的正文行，每轮写入一个池化的ByteBuf
+ */
+public class FrameDecoderBenchmarkTest {
+
+    private static final String[] LINES = {
+            "EHLO client.example.com\r\n",
+            "MAIL FROM:<sender@example.com> SIZE=12345\r\n",
+            "RCPT TO:<recipient@example.org>\r\n",
+            "Subject: quarterly report for the mail infrastructure team\r\n",
+            "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt\r\n",
+    };
+
+    private interface ChannelFactory {
+        EmbeddedChannel create();
+    }
+
+    @Test
+    public void crlfDecoderAgainstStringPipeline() {
+        if (!Benchmarks.enabled()) {
+            return;
+        }
+        int rounds = Benchmarks.intProperty("rounds", 200000);
+        byte[] batch = batch();
+        ChannelFactory crlf = new ChannelFactory() {
+            @Override
+            public EmbeddedChannel create() {
+                return new EmbeddedChannel(new CRLFFrameDecoder(8192));
+            }
+        };
+        ChannelFactory string = new ChannelFactory() {
+            @Override
+            public EmbeddedChannel create() {
+                return new EmbeddedChannel(new DelimiterBasedFrameDecoder(8192, false, Delimiters.lineDelimiter()),
+                        new StringDecoder(CharsetUtil.US_ASCII));
+            }
+        };
+        // 预热
+        run(crlf, batch, rounds / 10);
+        run(string, batch, rounds / 10);
+        report("CRLFFrameDecoder", crlf, batch, rounds);
+        report("DelimiterBasedFrameDecoder+StringDecoder", string, batch, rounds);
+    }
+
+    private static byte[] batch() {
+        StringBuilder sb = new StringBuilder();
+        for (String line : LINES) {
+            sb.append(line);
+        }
+        return sb.toString().getBytes(CharsetUtil.US_ASCII);
+    }
+
+    private static void report(String name, ChannelFactory factory, byte[] batch, int rounds) {
+        long allocated = Benchmarks.allocatedBytes();
+        long start = System.nanoTime();
+        run(factory, batch, rounds);
+        long elapsed = System.nanoTime() - start;
+        allocated = Benchmarks.allocatedBytes() - allocated;
+        long lines = (long) rounds * LINES.length;
+        Benchmarks.report("frame decoder", "%s: %d ns/line, %d bytes allocated/line", name, elapsed / lines, allocated / lines);
+    }
+
+    private static void run(ChannelFactory factory, byte[] batch, int rounds) {
+        EmbeddedChannel channel = factory.create();
+        int frames = 0;
+        for (int i = 0; i < rounds; i++) {
+            ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(batch.length);
+            buf.writeBytes(batch);
+            channel.writeInbound(buf);
+            Object frame;
+            while ((frame = channel.readInbound()) != null) {
+                ReferenceCountUtil.release(frame);
+                frames++;
+            }
+        }
+        channel.finishAndReleaseAll();
+        assertEquals(rounds * LINES.length, frames);
+    }
+}
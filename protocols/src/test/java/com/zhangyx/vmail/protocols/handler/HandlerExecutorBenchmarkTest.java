@@ -0,0 +1,97 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.Benchmarks;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 5万个并发session分别使用{@link OrderedHandlerExecutorGroup}和{@link VirtualThreadHandlerExecutorGroup}时的吞吐量和内存占用
+ * <p>
+ * 每个session依次执行几条命令，每条命令阻塞几毫秒模拟DNS查询或存储，执行完再提交下一条。
+ * 第一条命令先停在一个闸门上，此时所有session都有未完成的命令，测量每个session占用的堆内存；
+ * 打开闸门后测量所有命令执行完的时间。当前JVM不支持virtual thread时只输出线程池的结果
+ */
+public class HandlerExecutorBenchmarkTest {
+
+    private static class Session implements Runnable {
+
+        private final Executor executor;
+        private final CountDownLatch gate;
+        private final CountDownLatch done;
+        private final long blockMillis;
+        private int remaining;
+
+        Session(Executor executor, CountDownLatch gate, CountDownLatch done, int commands, long blockMillis) {
+            this.executor = executor;
+            this.gate = gate;
+            this.done = done;
+            this.remaining = commands;
+            this.blockMillis = blockMillis;
+        }
+
+        @Override
+        public void run() {
+            try {
+                gate.await();
+                Thread.sleep(blockMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            // 回复后客户端发送下一条命令
+            if (--remaining > 0) {
+                executor.execute(this);
+            } else {
+                done.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void pooledAgainstVirtualThreads() throws Exception {
+        if (!Benchmarks.enabled()) {
+            return;
+        }
+        int sessions = Benchmarks.intProperty("sessions", 50000);
+        int threads = Benchmarks.intProperty("threads", 200);
+        run("pooled(" + threads + " threads)", new OrderedHandlerExecutorGroup(threads, sessions, "benchmark"), sessions);
+        if (VirtualThreadHandlerExecutorGroup.isSupported()) {
+            run("virtual threads", new VirtualThreadHandlerExecutorGroup(), sessions);
+        } else {
+            Benchmarks.report("handler executor", "virtual threads are not supported by this JVM (%s)",
+                    System.getProperty("java.version"));
+        }
+    }
+
+    private static void run(String name, HandlerExecutorGroup group, int sessions) throws Exception {
+        int commands = Benchmarks.intProperty("commands", 4);
+        long blockMillis = Benchmarks.intProperty("blockMillis", 5);
+        try {
+            CountDownLatch gate = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(sessions);
+            long before = Benchmarks.usedHeap();
+            for (int i = 0; i < sessions; i++) {
+                Executor executor = group.next();
+                executor.execute(new Session(executor, gate, done, commands, blockMillis));
+            }
+            // 等线程或virtual thread都停在闸门上
+            Thread.sleep(1000);
+            long perSession = (Benchmarks.usedHeap() - before) / sessions;
+
+            long start = System.nanoTime();
+            gate.countDown();
+            assertTrue(done.await(10, TimeUnit.MINUTES));
+            long elapsed = System.nanoTime() - start;
+            long total = (long) sessions * commands;
+            Benchmarks.report("handler executor", "%s: %d sessions, %d commands/s, %d bytes/session while blocked",
+                    name, sessions, total * TimeUnit.SECONDS.toNanos(1) / elapsed, perSession);
+        } finally {
+            group.shutdown();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.Benchmarks;
+import com.zhangyx.vmail.protocols.TlsTestSupport;
+import com.zhangyx.vmail.ssl.Encryption;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import org.junit.Test;
+
+import javax.net.ssl.SSLSession;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 服务端使用共享的context和session缓存时，完整握手和重复发件人恢复session的握手速度，以及恢复的命中率
+ * <p>
+ * 客户端的session缓存以host和port为key：每次连接使用不同的host时总是完整握手，
+ * 少量host轮流连接时模拟重复发件人。客户端和服务端在同一个线程中握手，耗时包括双方的计算
+ */
+public class HandshakeBenchmarkTest {
+
+    @Test
+    public void fullHandshakesAgainstResumption() throws Exception {
+        if (!Benchmarks.enabled()) {
+            return;
+        }
+        int handshakes = Benchmarks.intProperty("handshakes", 2000);
+        int senders = Benchmarks.intProperty("senders", 100);
+        Encryption encryption = TlsTestSupport.encryption(TlsTestSupport.keyStore("mail", "mail.example.com"), 20480);
+        HandshakeExecutor executor = new HandshakeExecutor(Runtime.getRuntime().availableProcessors(), 1024, 1000);
+        SslHandlerFactory factory = new SslHandlerFactory(encryption, executor, 0);
+        SslContext client = TlsTestSupport.clientContext();
+        try {
+            // 预热
+            run(factory, client, handshakes / 10, handshakes / 10, "warmup");
+            report(factory, client, handshakes, handshakes, "new senders");
+            report(factory, client, handshakes, senders, "repeat senders");
+            Benchmarks.report("tls handshake", "handshake executor: %d handshakes, average %d us, max %d us, %d failed",
+                    executor.getHandshakeCount(), TimeUnit.NANOSECONDS.toMicros(executor.getAverageHandshakeNanos()),
+                    TimeUnit.NANOSECONDS.toMicros(executor.getMaxHandshakeNanos()), executor.getFailedHandshakeCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void report(SslHandlerFactory factory, SslContext client, int handshakes, int senders, String name) throws Exception {
+        long start = System.nanoTime();
+        int resumed = run(factory, client, handshakes, senders, name);
+        long elapsed = System.nanoTime() - start;
+        Benchmarks.report("tls handshake", "%s (%d hosts): %d handshakes/s, resumption hit rate %.1f%%",
+                name, senders, handshakes * TimeUnit.SECONDS.toNanos(1) / elapsed, resumed * 100.0 / handshakes);
+    }
+
+    // 返回恢复session的次数
+    private static int run(SslHandlerFactory factory, SslContext client, int handshakes, int senders, String prefix) throws Exception {
+        int resumed = 0;
+        for (int i = 0; i < handshakes; i++) {
+            long connectedAt = System.currentTimeMillis();
+            EmbeddedChannel server = new EmbeddedChannel();
+            server.pipeline().addLast(factory.create(server, false));
+            EmbeddedChannel sender = TlsTestSupport.client(client, prefix + "-" + (i % senders) + ".example.com");
+            assertTrue(TlsTestSupport.handshake(sender, server));
+            SSLSession session = server.pipeline().get(SslHandler.class).engine().getSession();
+            // 恢复的session沿用第一次握手时的创建时间
+            if (session.getCreationTime() < connectedAt) {
+                resumed++;
+            }
+            sender.finishAndReleaseAll();
+            server.finishAndReleaseAll();
+        }
+        return resumed;
+    }
+}
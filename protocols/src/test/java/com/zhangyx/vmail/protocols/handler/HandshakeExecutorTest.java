@@ -0,0 +1,130 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.TlsTestSupport;
+import com.zhangyx.vmail.ssl.Encryption;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HandshakeExecutorTest {
+
+    private HandshakeExecutor executor;
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    private static Runnable await(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    // 等待线程取走第一个任务
+    private void awaitEmptyQueue() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void fullQueueIsOverloadedAndRejects() throws Exception {
+        executor = new HandshakeExecutor(1, 1, 60000);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(await(release));
+        awaitEmptyQueue();
+        assertFalse(executor.isOverloaded());
+        executor.execute(NOOP);
+        assertTrue(executor.isOverloaded());
+        try {
+            executor.execute(NOOP);
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, executor.getRejectedCount());
+        }
+        release.countDown();
+    }
+
+    @Test
+    public void headWaitingPastTheDeadlineIsOverloaded() throws Exception {
+        executor = new HandshakeExecutor(1, 10, 50);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(await(release));
+        awaitEmptyQueue();
+        executor.execute(NOOP);
+        assertFalse(executor.isOverloaded());
+        Thread.sleep(100);
+        assertTrue(executor.isOverloaded());
+        release.countDown();
+        awaitEmptyQueue();
+        assertFalse(executor.isOverloaded());
+    }
+
+    @Test
+    public void overloadedFactoryCountsShedStartTls() throws Exception {
+        executor = new HandshakeExecutor(1, 1, 60000);
+        SslHandlerFactory factory = new SslHandlerFactory(null, executor, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(await(release));
+        awaitEmptyQueue();
+        assertFalse(factory.isOverloaded());
+        executor.execute(NOOP);
+        assertTrue(factory.isOverloaded());
+        assertEquals(1, executor.getShedCount());
+        release.countDown();
+    }
+
+    @Test
+    public void handshakesAreTimed() throws Exception {
+        executor = new HandshakeExecutor(2, 16, 60000);
+        Encryption encryption = TlsTestSupport.encryption(TlsTestSupport.keyStore("mail", "mail.example.com"), 100);
+        SslHandlerFactory factory = new SslHandlerFactory(encryption, executor, 0);
+
+        EmbeddedChannel server = new EmbeddedChannel();
+        server.pipeline().addLast(factory.create(server, false));
+        EmbeddedChannel client = TlsTestSupport.client(TlsTestSupport.clientContext(), "mail.example.com");
+        assertTrue(TlsTestSupport.handshake(client, server));
+        assertEquals(1, executor.getHandshakeCount());
+        assertTrue(executor.getAverageHandshakeNanos() > 0);
+        assertEquals(executor.getAverageHandshakeNanos(), executor.getMaxHandshakeNanos());
+        client.finishAndReleaseAll();
+        server.finishAndReleaseAll();
+
+        // 不是TLS的数据使握手失败
+        EmbeddedChannel plain = new EmbeddedChannel();
+        plain.pipeline().addLast(factory.create(plain, false));
+        try {
+            plain.writeInbound(Unpooled.wrappedBuffer("EHLO client.example.com\r\n".getBytes("US-ASCII")));
+        } catch (Exception e) {
+            // SslHandler抛出NotSslRecordException
+        }
+        assertEquals(1, executor.getFailedHandshakeCount());
+        assertEquals(1, executor.getHandshakeCount());
+        plain.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,163 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.api.handler.LineHandler;
+import com.zhangyx.vmail.protocols.api.handler.StreamingLineHandler;
+import com.zhangyx.vmail.protocols.smtp.SMTPSession;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.apache.commons.configuration.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IdleTimeoutHandlerTest {
+
+    // 三个阶段的超时时间不同，按挂上的延迟判断当前阶段
+    private static final int GREETING = 10;
+    private static final int COMMAND = 20;
+    private static final int DATA = 30;
+
+    /**
+     * 记录最后挂上的timeout，测试中手动触发
+     */
+    private static final class RecordingTimer implements Timer {
+        private final HashedWheelTimer delegate = new HashedWheelTimer();
+        private Timeout last;
+        private long lastDelayNanos;
+
+        @Override
+        public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+            lastDelayNanos = unit.toNanos(delay);
+            last = delegate.newTimeout(task, delay, unit);
+            return last;
+        }
+
+        @Override
+        public Set<Timeout> stop() {
+            return delegate.stop();
+        }
+    }
+
+    private static class TestLineHandler implements LineHandler<ProtocolSession> {
+        @Override
+        public Response onLine(ProtocolSession session, ByteBuffer buffer) {
+            return null;
+        }
+
+        @Override
+        public void init(Configuration config) {
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    private static final class TestStreamingLineHandler extends TestLineHandler implements StreamingLineHandler {
+    }
+
+    private RecordingTimer timer;
+    private IdleTimeoutHandler handler;
+    private EmbeddedChannel channel;
+    private NettyProtocolTransport transport;
+
+    @Before
+    public void setUp() {
+        timer = new RecordingTimer();
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        timer.stop();
+    }
+
+    // 先放好transport和session再注册，handler在channelActive时挂上greeting的timeout
+    private void open(int greeting, int command, int data) throws Exception {
+        handler = new IdleTimeoutHandler(timer, greeting, command, data);
+        channel = new EmbeddedChannel(false, false);
+        transport = new NettyProtocolTransport(channel, null);
+        channel.attr(BasicChannelInboundHandler.TRANSPORT_KEY).set(transport);
+        channel.attr(BasicChannelInboundHandler.SESSION_KEY).set(new SMTPSession(transport, null));
+        channel.pipeline().addLast(handler);
+        channel.register();
+    }
+
+    private void read(String line) {
+        channel.writeInbound(Unpooled.copiedBuffer(line, CharsetUtil.US_ASCII));
+    }
+
+    // 触发最后挂上的timeout，返回检查后重新挂上的延迟，向上取整到秒
+    private long fire() throws Exception {
+        Timeout timeout = timer.last;
+        timer.last = null;
+        handler.run(timeout);
+        channel.runPendingTasks();
+        assertTrue(timer.last != null);
+        return (timer.lastDelayNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    @Test
+    public void greetingPhaseLastsUntilTheFirstRead() throws Exception {
+        open(GREETING, COMMAND, DATA);
+        assertEquals(TimeUnit.SECONDS.toNanos(GREETING), timer.lastDelayNanos);
+        assertEquals(GREETING, fire());
+        read("EHLO client.example.com\r\n");
+        assertEquals(COMMAND, fire());
+    }
+
+    @Test
+    public void pushedCommandHandlerKeepsTheCommandTimeout() throws Exception {
+        open(GREETING, COMMAND, DATA);
+        read("AUTH LOGIN\r\n");
+        // AUTH等多行命令push的handler不是DATA正文
+        transport.pushLineHandler(new TestLineHandler(), null);
+        assertEquals(COMMAND, fire());
+    }
+
+    @Test
+    public void dataPhaseFollowsTheStreamingHandler() throws Exception {
+        open(GREETING, COMMAND, DATA);
+        read("DATA\r\n");
+        transport.pushLineHandler(new TestStreamingLineHandler(), null);
+        assertEquals(DATA, fire());
+        // 正文结束后回到命令阶段
+        transport.popLineHandler();
+        assertEquals(COMMAND, fire());
+    }
+
+    @Test
+    public void disabledPhaseKeepsCheckingAtTheLongestTimeout() throws Exception {
+        open(GREETING, 0, DATA);
+        read("EHLO client.example.com\r\n");
+        assertEquals(DATA, fire());
+        assertTrue(channel.isActive());
+    }
+
+    @Test
+    public void expiredPhaseWritesTheFatalErrorAndCloses() throws Exception {
+        open(1, COMMAND, DATA);
+        Thread.sleep(1100);
+        Timeout timeout = timer.last;
+        handler.run(timeout);
+        channel.runPendingTasks();
+        Response response = channel.readOutbound();
+        assertEquals("421", response.getRetCode());
+        assertFalse(channel.isActive());
+    }
+}
@@ -0,0 +1,39 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InFlightByteBudgetTest {
+
+    @Test
+    public void transportWaitsOnlyOnce() {
+        InFlightByteBudget budget = new InFlightByteBudget(10, 5);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        NettyProtocolTransport transport = new NettyProtocolTransport(channel, null, budget);
+        assertFalse(budget.acquire(20));
+        budget.await(transport);
+        budget.await(transport);
+        assertEquals(1, budget.getWaitingCount());
+        budget.release(20);
+        assertEquals(0, budget.getWaitingCount());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void closedTransportLeavesTheQueue() {
+        InFlightByteBudget budget = new InFlightByteBudget(10, 5);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        NettyProtocolTransport transport = new NettyProtocolTransport(channel, null, budget);
+        assertFalse(budget.acquire(20));
+        budget.await(transport);
+        channel.close();
+        transport.dispose();
+        assertEquals(0, budget.getWaitingCount());
+        budget.release(20);
+        assertTrue(budget.acquire(1));
+    }
+}
@@ -0,0 +1,200 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.api.ProtocolConfiguration;
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.Request;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.api.handler.CommandDispatcher;
+import com.zhangyx.vmail.protocols.api.handler.CommandHandler;
+import com.zhangyx.vmail.protocols.api.handler.ProtocolHandlerChainImpl;
+import com.zhangyx.vmail.protocols.smtp.EhloCmdHandler;
+import com.zhangyx.vmail.protocols.smtp.PipeliningEhloExtension;
+import com.zhangyx.vmail.protocols.smtp.SMTPResponses;
+import com.zhangyx.vmail.protocols.smtp.SMTPSession;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.apache.commons.configuration.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NettyProtocolTransportTest {
+
+    private EmbeddedChannel channel;
+    private NettyProtocolTransport transport;
+    private ProtocolSession session;
+    private CommandDispatcher<ProtocolSession> dispatcher;
+
+    @Before
+    public void setUp() {
+        channel = new EmbeddedChannel();
+        transport = new NettyProtocolTransport(channel, null);
+        session = new SMTPSession(transport, new ProtocolConfiguration() {
+            @Override
+            public String getGreeting() {
+                return null;
+            }
+
+            @Override
+            public String getSoftwareName() {
+                return null;
+            }
+
+            @Override
+            public String getHelloName() {
+                return "mx.example.com";
+            }
+        });
+        CommandHandler<ProtocolSession> mail = new CommandHandler<ProtocolSession>() {
+            @Override
+            public Response onCommand(ProtocolSession session, Request request) {
+                return SMTPResponses.OK;
+            }
+
+            @Override
+            public Collection<String> getImplCommands() {
+                return Collections.singletonList("MAIL");
+            }
+
+            @Override
+            public void init(Configuration config) {
+            }
+
+            @Override
+            public void destroy() {
+            }
+        };
+        EhloCmdHandler ehlo = new EhloCmdHandler(new ProtocolHandlerChainImpl(Collections.singletonList(new PipeliningEhloExtension())));
+        dispatcher = new CommandDispatcher<ProtocolSession>(new ProtocolHandlerChainImpl(Arrays.asList(ehlo, mail)),
+                SMTPResponses.UNKNOWN_COMMAND, PipeliningEhloExtension.GROUP_ENDING_COMMANDS);
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    private void command(String line) {
+        Response response = dispatcher.onLine(session, ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII)));
+        transport.writeResponse(response, session);
+    }
+
+    @Test
+    public void responsesAreFlushedAtTheEndOfTheBatch() {
+        transport.beginBatch();
+        command("MAIL FROM:<a@example.com>\r\n");
+        command("MAIL FROM:<b@example.com>\r\n");
+        assertNull(channel.readOutbound());
+        transport.endBatch();
+        assertSame(SMTPResponses.OK, channel.readOutbound());
+        assertSame(SMTPResponses.OK, channel.readOutbound());
+    }
+
+    @Test
+    public void groupEndingCommandIsFlushedImmediately() {
+        transport.beginBatch();
+        command("MAIL FROM:<a@example.com>\r\n");
+        command("ehlo client.example.com\r\n");
+        assertSame(SMTPResponses.OK, channel.readOutbound());
+        Response ehlo = channel.readOutbound();
+        assertEquals(Arrays.asList("250-mx.example.com", "250 PIPELINING"), ehlo.getLines());
+        command("MAIL FROM:<b@example.com>\r\n");
+        assertNull(channel.readOutbound());
+        transport.endBatch();
+        assertSame(SMTPResponses.OK, channel.readOutbound());
+    }
+
+    @Test
+    public void ehloResponseIsReused() {
+        command("EHLO client.example.com\r\n");
+        command("EHLO other.example.com\r\n");
+        Response first = channel.readOutbound();
+        assertSame(first, channel.readOutbound());
+    }
+
+    @Test
+    public void queuedLinesPauseReading() {
+        InFlightByteBudget budget = new InFlightByteBudget(1 << 20, 1 << 19);
+        transport = new NettyProtocolTransport(channel, null, budget);
+        for (int i = 0; i < 255; i++) {
+            transport.incrementOffloaded(10);
+        }
+        assertTrue(channel.config().isAutoRead());
+        assertEquals(2550, budget.getInFlightBytes());
+        transport.incrementOffloaded(10);
+        assertFalse(channel.config().isAutoRead());
+        while (transport.getOffloadedCount() > 129) {
+            transport.decrementOffloaded(10, false);
+        }
+        assertFalse(channel.config().isAutoRead());
+        transport.decrementOffloaded(10, false);
+        assertTrue(channel.config().isAutoRead());
+        while (transport.getOffloadedCount() > 0) {
+            transport.decrementOffloaded(10, false);
+        }
+        assertEquals(0, budget.getInFlightBytes());
+    }
+
+    @Test
+    public void budgetPauseLastsUntilTheBudgetRecovers() throws Exception {
+        InFlightByteBudget budget = new InFlightByteBudget(100, 50);
+        transport = new NettyProtocolTransport(channel, null, budget);
+        transport.onPushedLine(200, false);
+        assertFalse(channel.config().isAutoRead());
+        // 预算没有回落，定期检查后继续暂停
+        Thread.sleep(250);
+        channel.runScheduledPendingTasks();
+        assertFalse(channel.config().isAutoRead());
+        // 回落到两个水位之间不会唤醒等待的连接，由定期检查恢复
+        budget.release(120);
+        assertFalse(channel.config().isAutoRead());
+        Thread.sleep(250);
+        channel.runScheduledPendingTasks();
+        assertTrue(channel.config().isAutoRead());
+        assertEquals(0, budget.getWaitingCount());
+    }
+
+    @Test
+    public void budgetResumeCancelsTheRecheck() {
+        InFlightByteBudget budget = new InFlightByteBudget(100, 50);
+        transport = new NettyProtocolTransport(channel, null, budget);
+        transport.onPushedLine(200, false);
+        assertFalse(channel.config().isAutoRead());
+        budget.release(200);
+        channel.runPendingTasks();
+        assertTrue(channel.config().isAutoRead());
+        assertEquals(-1, channel.runScheduledPendingTasks());
+    }
+
+    @Test
+    public void offloadedPushedLineIsChargedOnce() {
+        InFlightByteBudget budget = new InFlightByteBudget(100, 50);
+        transport = new NettyProtocolTransport(channel, null, budget);
+        transport.incrementOffloaded(60);
+        transport.onPushedLine(60, true);
+        transport.decrementOffloaded(60, true);
+        assertEquals(60, budget.getInFlightBytes());
+        assertTrue(channel.config().isAutoRead());
+        transport.dispose();
+        assertEquals(0, budget.getInFlightBytes());
+    }
+
+    @Test
+    public void queuedBytesPauseReading() {
+        transport.incrementOffloaded(256 * 1024);
+        assertFalse(channel.config().isAutoRead());
+        transport.decrementOffloaded(256 * 1024, false);
+        assertTrue(channel.config().isAutoRead());
+    }
+}
@@ -0,0 +1,111 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OrderedHandlerExecutorGroupTest {
+
+    private OrderedHandlerExecutorGroup group;
+
+    @After
+    public void tearDown() {
+        group.shutdown();
+    }
+
+    private static Runnable await(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void tasksOfASessionRunInOrder() throws Exception {
+        group = new OrderedHandlerExecutorGroup(4, "test");
+        Executor session = group.next();
+        final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int n = i;
+            session.execute(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(n);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, order.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void blockedSessionDoesNotDelayOthers() throws Exception {
+        group = new OrderedHandlerExecutorGroup(2, "test");
+        CountDownLatch release = new CountDownLatch(1);
+        group.next().execute(await(release));
+        // 其他连接使用空闲的线程，不排在阻塞的连接后面
+        CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            group.next().execute(countDown(done));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void saturatedPoolRejectsNewSessions() throws Exception {
+        group = new OrderedHandlerExecutorGroup(1, 1, "test");
+        CountDownLatch release = new CountDownLatch(1);
+        Executor running = group.next();
+        running.execute(await(release));
+        // 等待线程开始执行，队列为空
+        long deadline = System.currentTimeMillis() + 5000;
+        while (group.getTaskCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        CountDownLatch done = new CountDownLatch(2);
+        Executor queued = group.next();
+        queued.execute(countDown(done));
+        try {
+            group.next().execute(countDown(done));
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, group.getRejectedCount());
+        }
+        // 已经排队或正在执行的连接继续提交不会被拒绝
+        queued.execute(countDown(done));
+        running.execute(countDown(new CountDownLatch(1)));
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, group.getRejectedCount());
+    }
+}
@@ -0,0 +1,105 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.Benchmarks;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.smtp.SMTPResponses;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 比较{@link ResponseEncoder}写出预先编码的response、动态response和原来每次用writeCharSequence编码的方式，
+ * 每个response的耗时和分配的字节数
+ */
+public class ResponseEncoderBenchmarkTest {
+
+    private static final Response[] STATIC = {SMTPResponses.OK, SMTPResponses.START_MAIL_INPUT, SMTPResponses.RESET};
+
+    // 没有缓存的动态response，比如带有队列号的250回复
+    private static final Response DYNAMIC = new Response() {
+        private final List<CharSequence> lines = Arrays.<CharSequence>asList("250 2.0.0 Ok: queued as 4F2A91C03B");
+
+        @Override
+        public String getRetCode() {
+            return "250";
+        }
+
+        @Override
+        public List<CharSequence> getLines() {
+            return lines;
+        }
+
+        @Override
+        public boolean isEndSession() {
+            return false;
+        }
+    };
+
+    // 原来NettyProtocolTransport中的编码方式
+    @ChannelHandler.Sharable
+    private static class CharSequenceEncoder extends MessageToByteEncoder<Response> {
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, Response response, ByteBuf out) {
+            for (CharSequence line : response.getLines()) {
+                out.writeCharSequence(line, CharsetUtil.US_ASCII);
+                out.writeCharSequence("\r\n", CharsetUtil.US_ASCII);
+            }
+        }
+    }
+
+    @Test
+    public void preEncodedAgainstPerWriteEncoding() {
+        if (!Benchmarks.enabled()) {
+            return;
+        }
+        int rounds = Benchmarks.intProperty("rounds", 1000000);
+        ResponseEncoder encoder = new ResponseEncoder(SMTPResponses.ALL);
+        CharSequenceEncoder baseline = new CharSequenceEncoder();
+        Response[] dynamic = {DYNAMIC};
+        // 预热
+        run(encoder, STATIC, rounds / 10);
+        run(encoder, dynamic, rounds / 10);
+        run(baseline, STATIC, rounds / 10);
+
+        report("ResponseEncoder static", encoder, STATIC, rounds);
+        report("ResponseEncoder dynamic", encoder, dynamic, rounds);
+        report("writeCharSequence static", baseline, STATIC, rounds);
+        report("writeCharSequence dynamic", baseline, dynamic, rounds);
+    }
+
+    private static void report(String name, ChannelHandler encoder, Response[] responses, int rounds) {
+        long allocated = Benchmarks.allocatedBytes();
+        long start = System.nanoTime();
+        run(encoder, responses, rounds);
+        long elapsed = System.nanoTime() - start;
+        allocated = Benchmarks.allocatedBytes() - allocated;
+        Benchmarks.report("response encoder", "%s: %d ns/response, %d bytes allocated/response",
+                name, elapsed / rounds, allocated / rounds);
+    }
+
+    private static void run(ChannelHandler encoder, Response[] responses, int rounds) {
+        EmbeddedChannel channel = new EmbeddedChannel(encoder);
+        int written = 0;
+        for (int i = 0; i < rounds; i++) {
+            channel.writeOutbound(responses[i % responses.length]);
+            Object buf;
+            while ((buf = channel.readOutbound()) != null) {
+                ReferenceCountUtil.release(buf);
+                written++;
+            }
+        }
+        channel.finishAndReleaseAll();
+        assertEquals(rounds, written);
+    }
+}
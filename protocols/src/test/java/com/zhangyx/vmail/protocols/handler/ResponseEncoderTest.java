@@ -0,0 +1,88 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.api.StaticResponse;
+import com.zhangyx.vmail.protocols.smtp.SMTPResponses;
+import com.zhangyx.vmail.protocols.smtp.SMTPSession;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseEncoderTest {
+
+    private ResponseEncoder encoder;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        encoder = new ResponseEncoder(SMTPResponses.ALL);
+        channel = new EmbeddedChannel(encoder);
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    private String write(Response response, Charset charset) {
+        channel.writeOutbound(response);
+        ByteBuf buf = channel.readOutbound();
+        try {
+            return buf.toString(charset);
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void staticResponsesArePreEncoded() {
+        assertTrue(encoder.isCached(SMTPResponses.OK));
+        assertEquals("250 2.0.0 OK\r\n", write(SMTPResponses.OK, CharsetUtil.US_ASCII));
+        assertEquals("250 2.0.0 OK\r\n", write(SMTPResponses.OK, CharsetUtil.US_ASCII));
+    }
+
+    @Test
+    public void releasingWrittenBuffersKeepsTheEncodedResponse() {
+        for (int i = 0; i < 3; i++) {
+            channel.writeOutbound(SMTPResponses.OK);
+            ByteBuf buf = channel.readOutbound();
+            assertTrue(buf.release());
+            assertEquals(0, buf.refCnt());
+        }
+        assertEquals("250 2.0.0 OK\r\n", write(SMTPResponses.OK, CharsetUtil.US_ASCII));
+    }
+
+    @Test
+    public void staticResponsesAreCachedOnFirstWrite() {
+        Response ehlo = new StaticResponse("250", false, "250-mx.example.com", "250 PIPELINING");
+        assertFalse(encoder.isCached(ehlo));
+        assertEquals("250-mx.example.com\r\n250 PIPELINING\r\n", write(ehlo, CharsetUtil.US_ASCII));
+        assertTrue(encoder.isCached(ehlo));
+    }
+
+    @Test
+    public void usesCharsetAndDelimiterOfTheSession() {
+        channel.attr(BasicChannelInboundHandler.SESSION_KEY).set(new SMTPSession(new NettyProtocolTransport(channel, null), null) {
+            @Override
+            public Charset getCharset() {
+                return CharsetUtil.UTF_8;
+            }
+
+            @Override
+            public String getLineDelimiter() {
+                return "\n";
+            }
+        });
+        assertEquals("250 2.0.0 OK\n", write(SMTPResponses.OK, CharsetUtil.UTF_8));
+        assertEquals("250 2.1.5 Destinatär OK\n", write(new StaticResponse("250", "2.1.5 Destinatär OK"), CharsetUtil.UTF_8));
+    }
+}
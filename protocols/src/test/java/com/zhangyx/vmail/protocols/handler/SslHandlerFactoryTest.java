@@ -0,0 +1,101 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import com.zhangyx.vmail.protocols.TlsTestSupport;
+import com.zhangyx.vmail.ssl.Encryption;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.CharsetUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLSession;
+import java.security.cert.X509Certificate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SslHandlerFactoryTest {
+
+    private SslHandlerFactory factory;
+
+    @Before
+    public void setUp() throws Exception {
+        Encryption encryption = TlsTestSupport.encryption(TlsTestSupport.keyStore("mail", "mail.example.com"), 100);
+        factory = new SslHandlerFactory(encryption);
+    }
+
+    // 握手完成后返回服务端的session
+    private SSLSession connect(SslContext clientContext, String host) throws Exception {
+        EmbeddedChannel server = new EmbeddedChannel();
+        server.pipeline().addLast(factory.create(server, false));
+        EmbeddedChannel client = TlsTestSupport.client(clientContext, host);
+        try {
+            assertTrue(TlsTestSupport.handshake(client, server));
+            return server.pipeline().get(SslHandler.class).engine().getSession();
+        } finally {
+            client.finishAndReleaseAll();
+            server.finishAndReleaseAll();
+        }
+    }
+
+    // 恢复的session沿用第一次握手时创建的session
+    private static boolean resumed(SSLSession session, long connectedAt) {
+        return session.getCreationTime() < connectedAt;
+    }
+
+    // 服务器在握手中使用的证书
+    private static String certificate(SSLSession session) {
+        return ((X509Certificate) session.getLocalCertificates()[0]).getSubjectX500Principal().getName();
+    }
+
+    @Test
+    public void repeatSenderResumesTheSession() throws Exception {
+        SslContext client = TlsTestSupport.clientContext();
+        long first = System.currentTimeMillis();
+        assertFalse(resumed(connect(client, "mail.example.com"), first));
+        Thread.sleep(10);
+        long second = System.currentTimeMillis();
+        assertTrue(resumed(connect(client, "mail.example.com"), second));
+
+        // 新的客户端需要完整握手
+        Thread.sleep(10);
+        long other = System.currentTimeMillis();
+        assertFalse(resumed(connect(TlsTestSupport.clientContext(), "mail.example.com"), other));
+    }
+
+    @Test
+    public void replacedEncryptionIsUsedForNewHandshakes() throws Exception {
+        SslContext client = TlsTestSupport.clientContext();
+        assertEquals("CN=mail.example.com", certificate(connect(client, "mail.example.com")));
+        factory.setEncryption(TlsTestSupport.encryption(TlsTestSupport.keyStore("mx", "mx.example.org"), 100));
+        // 新的context没有原来的session，完整握手并使用新证书
+        long connectedAt = System.currentTimeMillis();
+        SSLSession session = connect(client, "mail.example.com");
+        assertFalse(resumed(session, connectedAt));
+        assertEquals("CN=mx.example.org", certificate(session));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void startTlsModeCanNotChange() throws Exception {
+        Encryption current = factory.getEncryption();
+        factory.setEncryption(Encryption.createSsl(current.getContext(), true, null));
+    }
+
+    @Test
+    public void startTlsResponseIsWrittenInPlaintext() throws Exception {
+        EmbeddedChannel server = new EmbeddedChannel();
+        server.pipeline().addLast(factory.create(server, true));
+        server.writeOutbound(Unpooled.copiedBuffer("220 2.0.0 Ready to start TLS\r\n", CharsetUtil.US_ASCII));
+        ByteBuf response = server.readOutbound();
+        try {
+            assertEquals("220 2.0.0 Ready to start TLS\r\n", response.toString(CharsetUtil.US_ASCII));
+        } finally {
+            response.release();
+        }
+        server.finishAndReleaseAll();
+    }
+}
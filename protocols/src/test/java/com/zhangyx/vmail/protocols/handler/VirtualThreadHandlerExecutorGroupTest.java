@@ -0,0 +1,59 @@
+package com.zhangyx.vmail.protocols.handler;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VirtualThreadHandlerExecutorGroupTest {
+
+    @Test
+    public void unsupportedJvmRejectsTheGroup() {
+        if (VirtualThreadHandlerExecutorGroup.isSupported()) {
+            return;
+        }
+        try {
+            new VirtualThreadHandlerExecutorGroup();
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // 由服务器退回到线程池
+        }
+    }
+
+    @Test
+    public void tasksOfASessionRunInOrderOnVirtualThreads() throws Exception {
+        if (!VirtualThreadHandlerExecutorGroup.isSupported()) {
+            return;
+        }
+        VirtualThreadHandlerExecutorGroup group = new VirtualThreadHandlerExecutorGroup();
+        try {
+            assertTrue(group.isOffloadAll());
+            Executor session = group.next();
+            final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+            final CountDownLatch done = new CountDownLatch(100);
+            for (int i = 0; i < 100; i++) {
+                final int n = i;
+                session.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        order.add(n);
+                        done.countDown();
+                    }
+                });
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, order.get(i).intValue());
+            }
+        } finally {
+            group.shutdown();
+        }
+    }
+}
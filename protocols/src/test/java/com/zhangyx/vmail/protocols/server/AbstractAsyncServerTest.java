@@ -0,0 +1,146 @@
+package com.zhangyx.vmail.protocols.server;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AbstractAsyncServerTest {
+
+    private GreetingServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    // 分片需要固定的端口，先由系统分配一个空闲端口
+    private static InetSocketAddress freeAddress() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+        } finally {
+            socket.close();
+        }
+    }
+
+    static String greeting(InetSocketAddress address) throws IOException {
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), CharsetUtil.US_ASCII));
+            return reader.readLine();
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void nioBindsEveryAddressOnce() throws Exception {
+        server = new GreetingServer(TransportType.NIO, 4, freeAddress());
+        server.start();
+        assertFalse(server.isEpoll());
+        List<InetSocketAddress> bound = server.getBoundAddresses();
+        assertEquals(1, bound.size());
+        assertEquals(GreetingServer.GREETING, greeting(bound.get(0)));
+    }
+
+    @Test
+    public void epollBindsOneSocketPerShard() throws Exception {
+        if (!Epoll.isAvailable()) {
+            return;
+        }
+        InetSocketAddress address = freeAddress();
+        server = new GreetingServer(TransportType.EPOLL, 3, address);
+        server.start();
+        assertTrue(server.isEpoll());
+        List<InetSocketAddress> bound = server.getBoundAddresses();
+        assertEquals(3, bound.size());
+        for (InetSocketAddress shard : bound) {
+            assertEquals(address.getPort(), shard.getPort());
+        }
+        // 内核把连接分配给各个分片，每个连接都能收到问候
+        for (int i = 0; i < 20; i++) {
+            assertEquals(GreetingServer.GREETING, greeting(address));
+        }
+    }
+
+    @Test
+    public void autoUsesEpollWhenAvailable() throws Exception {
+        server = new GreetingServer(TransportType.AUTO, 1, freeAddress());
+        server.start();
+        assertEquals(Epoll.isAvailable(), server.isEpoll());
+        assertEquals(GreetingServer.GREETING, greeting(server.getBoundAddresses().get(0)));
+    }
+
+    // 连接并读出问候
+    private static Socket connect(InetSocketAddress address) throws IOException {
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        socket.setSoTimeout(10000);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), CharsetUtil.US_ASCII));
+        assertEquals(GreetingServer.GREETING, reader.readLine());
+        return socket;
+    }
+
+    @Test
+    public void idleConnectionsAreClosedWithoutWaitingForTheTimeout() throws Exception {
+        server = new GreetingServer(TransportType.NIO, 1, freeAddress());
+        server.setDrainTimeout(30);
+        server.start();
+        Socket socket = connect(server.getBoundAddresses().get(0));
+        long start = System.nanoTime();
+        server.stop();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(-1, socket.getInputStream().read());
+        assertFalse(server.isBound());
+        socket.close();
+    }
+
+    @Test
+    public void busyConnectionIsKilledAfterTheTimeoutWithoutHoldingTheLock() throws Exception {
+        server = new GreetingServer(TransportType.NIO, 1, freeAddress());
+        server.busy = true;
+        server.setDrainTimeout(1);
+        server.start();
+        Socket socket = connect(server.getBoundAddresses().get(0));
+        final GreetingServer stopping = server;
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stopping.stop();
+            }
+        });
+        long start = System.nanoTime();
+        stopper.start();
+        Thread.sleep(200);
+        // 排空期间同步方法不会被阻塞，第二次stop直接返回
+        server.stop();
+        try {
+            server.setListenAddresses(new InetSocketAddress(0));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(900));
+        }
+        stopper.join(10000);
+        assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+        assertEquals(-1, socket.getInputStream().read());
+        assertFalse(server.isBound());
+        socket.close();
+    }
+}
@@ -0,0 +1,70 @@
+package com.zhangyx.vmail.protocols.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.util.CharsetUtil;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * 测试用的服务器，连接建立后写出一行问候，之后丢弃收到的数据
+ */
+class GreetingServer extends AbstractAsyncServer {
+
+    static final String GREETING = "220 test ready";
+
+    // 为true时所有连接都处于事务中，排空时不会关闭
+    volatile boolean busy;
+
+    private static final ByteBuf GREETING_BYTES = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer().writeBytes((GREETING + "\r\n").getBytes(CharsetUtil.US_ASCII)));
+
+    @ChannelHandler.Sharable
+    private static final class GreetingHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ctx.writeAndFlush(GREETING_BYTES.duplicate());
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ((ByteBuf) msg).release();
+        }
+    }
+
+    GreetingServer(TransportType transportType, int acceptorShards, InetSocketAddress address) {
+        setTransportType(transportType);
+        setAcceptorShards(acceptorShards);
+        setIoWorker(2);
+        setListenAddresses(address);
+    }
+
+    @Override
+    protected ChannelInitializer<Channel> createChannelInitializer() {
+        final GreetingHandler handler = new GreetingHandler();
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel channel) {
+                channel.pipeline().addLast(handler);
+            }
+        };
+    }
+
+    @Override
+    protected boolean isIdle(Channel channel) {
+        return !busy;
+    }
+
+    @Override
+    public List<InetSocketAddress> getListenAddresses() {
+        return getBoundAddresses();
+    }
+}
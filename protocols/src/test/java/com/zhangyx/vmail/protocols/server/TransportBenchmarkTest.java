@@ -0,0 +1,86 @@
+package com.zhangyx.vmail.protocols.server;
+
+import com.zhangyx.vmail.protocols.Benchmarks;
+import io.netty.channel.epoll.Epoll;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 比较nio和epoll两种传输方式每秒能建立的连接数和收到问候的p99延迟
+ * <p>
+ * 多个客户端线程反复建立连接、读到问候后关闭。规模可以通过-Dvmail.benchmark.connections和-Dvmail.benchmark.clients调整
+ */
+public class TransportBenchmarkTest {
+
+    @Test
+    public void connectionsPerSecondAndGreetingLatency() throws Exception {
+        if (!Benchmarks.enabled()) {
+            return;
+        }
+        int connections = Benchmarks.intProperty("connections", 20000);
+        int clients = Benchmarks.intProperty("clients", 8);
+        run(TransportType.NIO, connections, clients);
+        if (Epoll.isAvailable()) {
+            run(TransportType.EPOLL, connections, clients);
+        } else {
+            Benchmarks.report("transport", "epoll is not available, skipped");
+        }
+    }
+
+    private static void run(TransportType transport, int connections, int clients) throws Exception {
+        GreetingServer server = new GreetingServer(transport, 1, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.start();
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            InetSocketAddress address = server.getBoundAddresses().get(0);
+            // 预热
+            measure(executor, address, connections / 10, clients);
+            long start = System.nanoTime();
+            long[] latencies = measure(executor, address, connections, clients);
+            long elapsed = System.nanoTime() - start;
+            Benchmarks.report("transport", "%s: %d connections/s, greeting latency p50 %d us, p99 %d us",
+                    transport, connections * TimeUnit.SECONDS.toNanos(1) / elapsed,
+                    Benchmarks.percentile(latencies, 50) / 1000, Benchmarks.percentile(latencies, 99) / 1000);
+        } finally {
+            executor.shutdownNow();
+            server.stop();
+        }
+    }
+
+    // 每个连接从connect开始到读到问候的时间，单位纳秒
+    private static long[] measure(ExecutorService executor, final InetSocketAddress address, int connections, int clients) throws Exception {
+        final int perClient = connections / clients;
+        List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+        for (int i = 0; i < clients; i++) {
+            futures.add(executor.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws IOException {
+                    long[] latencies = new long[perClient];
+                    for (int n = 0; n < perClient; n++) {
+                        long start = System.nanoTime();
+                        assertEquals(GreetingServer.GREETING, AbstractAsyncServerTest.greeting(address));
+                        latencies[n] = System.nanoTime() - start;
+                    }
+                    return latencies;
+                }
+            }));
+        }
+        long[] all = new long[perClient * clients];
+        for (int i = 0; i < clients; i++) {
+            System.arraycopy(futures.get(i).get(), 0, all, i * perClient, perClient);
+        }
+        return all;
+    }
+}
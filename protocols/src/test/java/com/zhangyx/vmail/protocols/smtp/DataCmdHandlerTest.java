@@ -0,0 +1,117 @@
+package com.zhangyx.vmail.protocols.smtp;
+
+import com.zhangyx.vmail.protocols.api.Protocol;
+import com.zhangyx.vmail.protocols.api.ProtocolConfiguration;
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.ProtocolTransport;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.api.handler.CommandDispatcher;
+import com.zhangyx.vmail.protocols.api.handler.ProtocolHandlerChain;
+import com.zhangyx.vmail.protocols.api.handler.ProtocolHandlerChainImpl;
+import com.zhangyx.vmail.protocols.handler.BasicChannelInboundHandler;
+import com.zhangyx.vmail.protocols.handler.CRLFFrameDecoder;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DataCmdHandlerTest {
+
+    private static final int MAX_LINE_LENGTH = 16;
+
+    private EmbeddedChannel channel;
+    private String message;
+
+    @Before
+    public void setUp() {
+        DataCmdHandler data = new DataCmdHandler(new DataLineHandler.MessageHook<ProtocolSession>() {
+            @Override
+            public Response onMessage(ProtocolSession session, MessageSpool spool) {
+                try {
+                    ByteBuffer content = spool.asByteBuffer();
+                    byte[] bytes = new byte[content.remaining()];
+                    content.get(bytes);
+                    message = new String(bytes, StandardCharsets.US_ASCII);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return SMTPResponses.OK;
+            }
+        }, UnpooledByteBufAllocator.DEFAULT, 1024, null);
+        CommandDispatcher<ProtocolSession> dispatcher = new CommandDispatcher<ProtocolSession>(
+                new ProtocolHandlerChainImpl(Arrays.asList(data)), SMTPResponses.UNKNOWN_COMMAND);
+        final ProtocolHandlerChain chain = new ProtocolHandlerChainImpl(Arrays.asList(data, dispatcher));
+        Protocol protocol = new Protocol() {
+            @Override
+            public ProtocolHandlerChain getProtocolChain() {
+                return chain;
+            }
+
+            @Override
+            public ProtocolConfiguration getConfiguration() {
+                return null;
+            }
+
+            @Override
+            public ProtocolSession newSession(ProtocolTransport transport) {
+                return new SMTPSession(transport, null);
+            }
+        };
+        channel = new EmbeddedChannel(new CRLFFrameDecoder(MAX_LINE_LENGTH), new BasicChannelInboundHandler(protocol, null));
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    private void write(String data) {
+        channel.writeInbound(Unpooled.copiedBuffer(data, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void longBodyLinesAreStreamedIntact() {
+        write("DATA\r\n");
+        assertSame(SMTPResponses.START_MAIL_INPUT, channel.readOutbound());
+        // 第一段在第16个字节的CR之前切开，CRLF留在同一段中
+        String body = "0123456789abcde\r\n"
+                + "a line that is much longer than the sixteen byte limit\r\n"
+                + "..stuffed\r\n";
+        write(body);
+        write(".\r\n");
+        assertSame(SMTPResponses.OK, channel.readOutbound());
+        assertNull(channel.readOutbound());
+        assertEquals("0123456789abcde\r\na line that is much longer than the sixteen byte limit\r\n.stuffed\r\n", message);
+    }
+
+    @Test
+    public void dotAfterChunkedLineStillTerminates() {
+        write("DATA\r\n");
+        channel.readOutbound();
+        // 分多次到达的长行
+        write("xxxxxxxxxxxxxxxxxxxxxxxx");
+        write("yyyyyyyyyyyyyyy\r");
+        write("\n.\r\n");
+        assertSame(SMTPResponses.OK, channel.readOutbound());
+        assertEquals("xxxxxxxxxxxxxxxxxxxxxxxxyyyyyyyyyyyyyyy\r\n", message);
+    }
+
+    @Test
+    public void longCommandLinesAreStillRejected() {
+        write("NOOP with a far too long argument\r\n");
+        assertSame(SMTPResponses.LINE_TOO_LONG, channel.readOutbound());
+        write("DATA\r\n");
+        assertSame(SMTPResponses.START_MAIL_INPUT, channel.readOutbound());
+    }
+}
@@ -0,0 +1,115 @@
+package com.zhangyx.vmail.protocols.smtp;
+
+import com.zhangyx.vmail.protocols.api.ProtocolSession;
+import com.zhangyx.vmail.protocols.api.Response;
+import com.zhangyx.vmail.protocols.handler.NettyProtocolTransport;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class DataLineHandlerTest {
+
+    private EmbeddedChannel channel;
+    private ProtocolSession session;
+    private DataLineHandler<ProtocolSession> handler;
+    private MessageSpool spool;
+    private String message;
+
+    @Before
+    public void setUp() {
+        channel = new EmbeddedChannel();
+        session = new SMTPSession(new NettyProtocolTransport(channel, null), null);
+        spool = new MessageSpool(UnpooledByteBufAllocator.DEFAULT, 1024, null);
+        handler = new DataLineHandler<ProtocolSession>(spool, new DataLineHandler.MessageHook<ProtocolSession>() {
+            @Override
+            public Response onMessage(ProtocolSession session, MessageSpool spool) {
+                try {
+                    ByteBuffer content = spool.asByteBuffer();
+                    byte[] bytes = new byte[content.remaining()];
+                    content.get(bytes);
+                    message = new String(bytes, StandardCharsets.US_ASCII);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return SMTPResponses.OK;
+            }
+        });
+        session.pushLineHandler(handler);
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    private Response line(String line) {
+        return handler.onLine(session, ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void endsOnDotCRLFAndRemovesDotStuffing() {
+        assertNull(line("Subject: test\r\n"));
+        assertNull(line("..leading dot\r\n"));
+        assertSame(SMTPResponses.OK, line(".\r\n"));
+        assertEquals("Subject: test\r\n.leading dot\r\n", message);
+        assertEquals(0, session.getPushedLineHandlerCount());
+    }
+
+    @Test
+    public void dotLFIsNotATerminator() {
+        assertNull(line("body\r\n"));
+        assertNull(line(".\n"));
+        assertNull(line("MAIL FROM:<evil@example.com>\r\n"));
+        assertEquals(1, session.getPushedLineHandlerCount());
+        assertSame(SMTPResponses.OK, line(".\r\n"));
+        // 行首的"."按dot-stuffing去掉，LF留在正文中
+        assertEquals("body\r\n\nMAIL FROM:<evil@example.com>\r\n", message);
+    }
+
+    @Test
+    public void dotCRLFAfterBareLFIsContent() {
+        // <LF>.<CR><LF>：framer在单独的LF处切分，"."CRLF前面的片段没有以CRLF结束
+        assertNull(line("body\n"));
+        assertNull(line(".\r\n"));
+        assertNull(line("MAIL FROM:<evil@example.com>\r\n"));
+        assertEquals(1, session.getPushedLineHandlerCount());
+        assertSame(SMTPResponses.OK, line(".\r\n"));
+        assertEquals("body\n.\r\nMAIL FROM:<evil@example.com>\r\n", message);
+    }
+
+    @Test
+    public void spoolIsClosedWhenTheHookThrows() {
+        handler = new DataLineHandler<ProtocolSession>(spool, new DataLineHandler.MessageHook<ProtocolSession>() {
+            @Override
+            public Response onMessage(ProtocolSession session, MessageSpool spool) {
+                throw new IllegalStateException("queue unavailable");
+            }
+        });
+        session.popLineHandler();
+        session.pushLineHandler(handler);
+        assertNull(line("body\r\n"));
+        try {
+            line(".\r\n");
+            fail("Expected the hook failure");
+        } catch (IllegalStateException e) {
+            assertEquals("queue unavailable", e.getMessage());
+        }
+        try {
+            spool.asByteBuffer();
+            fail("Spool should be closed");
+        } catch (IOException e) {
+            // closed
+        }
+    }
+}